@@ -1,14 +1,22 @@
 package edu.ncsu.csc.CoffeeMaker.controllers;
 
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RestController;
 
-import edu.ncsu.csc.CoffeeMaker.models.Inventory;
+import edu.ncsu.csc.CoffeeMaker.forms.BrewForm;
 import edu.ncsu.csc.CoffeeMaker.models.Recipe;
 import edu.ncsu.csc.CoffeeMaker.services.InventoryService;
 import edu.ncsu.csc.CoffeeMaker.services.RecipeService;
@@ -42,6 +50,13 @@ public class APICoffeeController extends APIController {
     @Autowired
     private RecipeService    recipeService;
 
+    /**
+     * IdempotencyStore object, used to answer retried brews with the original
+     * response
+     */
+    @Autowired
+    private IdempotencyStore idempotency;
+
     /**
      * REST API method to make coffee by completing a POST request with the ID
      * of the recipe as the path variable and the amount that has been paid as
@@ -51,10 +66,32 @@ public class APICoffeeController extends APIController {
      *            recipe name
      * @param amtPaid
      *            amount paid
+     * @param idempotencyKey
+     *            optional key identifying the request across retries; a retry
+     *            with the same key gets the original response and makes no
+     *            second drink
+     * @param principal
+     *            the user making the request, if logged in
      * @return The change the customer is due if successful
      */
     @PostMapping ( BASE_PATH + "/makecoffee/{name}" )
-    public ResponseEntity makeCoffee ( @PathVariable ( "name" ) final String name, @RequestBody final int amtPaid ) {
+    public ResponseEntity makeCoffee ( @PathVariable ( "name" ) final String name, @RequestBody final int amtPaid,
+            @RequestHeader ( value = IdempotencyStore.HEADER, required = false ) final String idempotencyKey,
+            final Principal principal ) {
+        return idempotency.execute( idempotencyKey, "POST /makecoffee " + nameOf( principal ), name + ":" + amtPaid,
+                () -> brew( name, amtPaid ) );
+    }
+
+    /**
+     * Makes one drink of the named recipe
+     *
+     * @param name
+     *            recipe name
+     * @param amtPaid
+     *            amount paid
+     * @return the response to send
+     */
+    private ResponseEntity brew ( final String name, final int amtPaid ) {
         final Recipe recipe = recipeService.findByName( name );
         if ( recipe == null ) {
             return new ResponseEntity( errorResponse( "No recipe selected" ), HttpStatus.NOT_FOUND );
@@ -73,6 +110,93 @@ public class APICoffeeController extends APIController {
 
     }
 
+    /**
+     * REST API method to make several drinks in one request. All of the
+     * recipes are looked up in one query and all of the ingredients are
+     * deducted in one transaction. Each drink succeeds or fails on its own,
+     * with the same rules and messages as making a single coffee. A batch with
+     * a missing entry or recipe name is rejected as a whole.
+     *
+     * @param brews
+     *            the recipe name and amount paid for each drink
+     * @param idempotencyKey
+     *            optional key identifying the request across retries
+     * @param principal
+     *            the user making the request, if logged in
+     * @return a result for each drink, in the order they were given: either
+     *         the change due or the reason the drink could not be made; 400 if
+     *         an entry or its recipe name is missing
+     */
+    @PostMapping ( BASE_PATH + "/makecoffee/batch" )
+    public ResponseEntity makeCoffeeBatch ( @RequestBody final List<BrewForm> brews,
+            @RequestHeader ( value = IdempotencyStore.HEADER, required = false ) final String idempotencyKey,
+            final Principal principal ) {
+        if ( brews == null ) {
+            return new ResponseEntity( errorResponse( "No drinks provided" ), HttpStatus.BAD_REQUEST );
+        }
+        for ( int i = 0; i < brews.size(); i++ ) {
+            final BrewForm brew = brews.get( i );
+            if ( brew == null || brew.getRecipe() == null || brew.getRecipe().isEmpty() ) {
+                return new ResponseEntity( errorResponse( "Invalid drink at position " + i ), HttpStatus.BAD_REQUEST );
+            }
+        }
+        return idempotency.execute( idempotencyKey, "POST /makecoffee/batch " + nameOf( principal ),
+                toJson( brews ), () -> brewBatch( brews ) );
+    }
+
+    /**
+     * Makes every drink in a batch
+     *
+     * @param brews
+     *            the recipe name and amount paid for each drink
+     * @return the response to send
+     */
+    private ResponseEntity brewBatch ( final List<BrewForm> brews ) {
+        final Set<String> names = new HashSet<String>();
+        for ( final BrewForm brew : brews ) {
+            names.add( brew.getRecipe() );
+        }
+        final Map<String, Recipe> recipes = recipeService.findByNames( names );
+
+        // only drinks that are paid for compete for the inventory
+        final List<Recipe> toMake = new ArrayList<Recipe>();
+        for ( final BrewForm brew : brews ) {
+            final Recipe recipe = recipes.get( brew.getRecipe() );
+            toMake.add( recipe != null && recipe.getPrice() <= brew.getPaid() ? recipe : null );
+        }
+        final boolean[] made = inventoryService.useIngredients( toMake );
+
+        final List<BrewResult> results = new ArrayList<BrewResult>();
+        for ( int i = 0; i < brews.size(); i++ ) {
+            final BrewForm brew = brews.get( i );
+            final Recipe recipe = recipes.get( brew.getRecipe() );
+            if ( recipe == null ) {
+                results.add( BrewResult.failed( brew.getRecipe(), "No recipe selected" ) );
+            }
+            else if ( brew.getPaid() < recipe.getPrice() ) {
+                results.add( BrewResult.failed( brew.getRecipe(), "Not enough money paid" ) );
+            }
+            else if ( !made[i] ) {
+                results.add( BrewResult.failed( brew.getRecipe(), "Not enough inventory" ) );
+            }
+            else {
+                results.add( BrewResult.made( brew.getRecipe(), brew.getPaid() - recipe.getPrice() ) );
+            }
+        }
+        return new ResponseEntity( toJson( results ), HttpStatus.OK );
+    }
+
+    /**
+     * Gets the name idempotency keys are scoped to
+     *
+     * @param principal
+     *            the user making the request, or null
+     * @return the user's name, or an empty string if nobody is logged in
+     */
+    private static String nameOf ( final Principal principal ) {
+        return principal == null ? "" : principal.getName();
+    }
+
     /**
      * Helper method to make coffee
      *
@@ -85,14 +209,12 @@ public class APICoffeeController extends APIController {
      */
     public int makeCoffee ( final Recipe toPurchase, final int amtPaid ) {
         int change = amtPaid;
-        final Inventory inventory = inventoryService.getInventory();
 
         if ( toPurchase == null ) {
             throw new IllegalArgumentException( "Recipe not found" );
         }
         else if ( toPurchase.getPrice() <= amtPaid ) {
-            if ( inventory.useIngredients( toPurchase ) ) {
-                inventoryService.save( inventory );
+            if ( inventoryService.useIngredients( toPurchase ) ) {
                 change = amtPaid - toPurchase.getPrice();
                 return change;
             }
@@ -104,4 +226,57 @@ public class APICoffeeController extends APIController {
         // not enough money
         return change;
     }
+
+    /**
+     * Result of making one drink in a batch, serialized back to the client
+     *
+     */
+    static protected class BrewResult {
+
+        /** Name of the recipe that was requested */
+        String  recipe;
+
+        /** Status of the drink (success/failed) */
+        String  status;
+
+        /** Change due to the customer, if the drink was made */
+        Integer change;
+
+        /** Why the drink was not made, if it failed */
+        String  message;
+
+        /**
+         * Creates a successful result
+         *
+         * @param recipe
+         *            the recipe name
+         * @param change
+         *            the change due
+         * @return the result
+         */
+        static BrewResult made ( final String recipe, final int change ) {
+            final BrewResult result = new BrewResult();
+            result.recipe = recipe;
+            result.status = "success";
+            result.change = change;
+            return result;
+        }
+
+        /**
+         * Creates a failed result
+         *
+         * @param recipe
+         *            the recipe name
+         * @param message
+         *            why the drink was not made
+         * @return the result
+         */
+        static BrewResult failed ( final String recipe, final String message ) {
+            final BrewResult result = new BrewResult();
+            result.recipe = recipe;
+            result.status = "failed";
+            result.message = message;
+            return result;
+        }
+    }
 }
@@ -1,7 +1,13 @@
 package edu.ncsu.csc.CoffeeMaker.controllers;
 
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+
 import com.google.gson.Gson;
 
+import edu.ncsu.csc.CoffeeMaker.services.OrderService;
+
 /**
  * Base class for all of the API controllers for manipulating DomainObjects. Add
  * in any fields or functionality that ought to be shared throughout.
@@ -34,7 +40,13 @@ public abstract class APIController {
      * Used to serialize data and messages to JSON for transmitting through the
      * REST API
      */
-    static final private Gson     GSON      = new Gson();
+    static final private Gson     GSON              = new Gson();
+
+    /** Orders per page when no limit is given */
+    static final protected String DEFAULT_PAGE_SIZE = "50";
+
+    /** Response header carrying the cursor for the next page */
+    static final protected String NEXT_CURSOR       = "X-Next-Cursor";
 
     /**
      * Turns the provided object into JSON
@@ -99,6 +111,23 @@ public abstract class APIController {
         return responseMessage( "success", message );
     }
 
+    /**
+     * Builds the response for a page of orders: the orders as an array, and
+     * the next cursor in a header if there is another page
+     *
+     * @param page
+     *            the page
+     * @return the response
+     */
+    @SuppressWarnings ( { "unchecked", "rawtypes" } )
+    static final protected ResponseEntity page ( final OrderService.Page page ) {
+        final HttpHeaders headers = new HttpHeaders();
+        if ( page.getNext() != null ) {
+            headers.set( NEXT_CURSOR, page.getNext().toString() );
+        }
+        return new ResponseEntity( page.getOrders(), headers, HttpStatus.OK );
+    }
+
     /**
      * Small class used for creating simple success/error messages to return via
      * the REST API. Contains a status of the action and an message.
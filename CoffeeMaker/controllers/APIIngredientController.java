@@ -15,6 +15,7 @@ import org.springframework.web.bind.annotation.RestController;
 
 import edu.ncsu.csc.CoffeeMaker.models.Ingredient;
 import edu.ncsu.csc.CoffeeMaker.services.IngredientService;
+import edu.ncsu.csc.CoffeeMaker.services.InventoryService;
 
 /**
  * This is the controller that holds the REST endpoints that handle add and
@@ -37,6 +38,13 @@ public class APIIngredientController extends APIController {
     @Autowired
     private IngredientService ingredientService;
 
+    /**
+     * InventoryService object, notified when an ingredient is edited directly
+     * so that the in-memory inventory is refreshed
+     */
+    @Autowired
+    private InventoryService  inventoryService;
+
     /**
      * Endpoint that gets a specific ingredient by name
      *
@@ -102,6 +110,7 @@ public class APIIngredientController extends APIController {
         }
 
         ingredientService.delete( current );
+        inventoryService.invalidateLedger();
 
         return new ResponseEntity( name + "Deleted", HttpStatus.OK );
 
@@ -124,6 +133,7 @@ public class APIIngredientController extends APIController {
 
         current.setAmount( ingredient.getAmount() );
         ingredientService.save( current );
+        inventoryService.ingredientEdited( current.getName(), current.getAmount() );
         return new ResponseEntity( current.getName() + "Updated", HttpStatus.OK );
     }
 }
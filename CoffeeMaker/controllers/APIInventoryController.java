@@ -1,14 +1,19 @@
 package edu.ncsu.csc.CoffeeMaker.controllers;
 
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import edu.ncsu.csc.CoffeeMaker.models.Ingredient;
@@ -61,12 +66,43 @@ public class APIInventoryController extends APIController {
      */
     @PutMapping ( BASE_PATH + "/inventory" )
     public ResponseEntity updateInventory ( @RequestBody final Inventory inventory ) {
-        final Inventory inventoryCurrent = service.getInventory();
-        inventoryCurrent.addIngredients( inventory.getIngredients() );
-        service.save( inventoryCurrent );
+        final Inventory inventoryCurrent = service.restock( inventory.getIngredients() );
         return new ResponseEntity( inventoryCurrent, HttpStatus.OK );
     }
 
+    /**
+     * REST API endpoint to apply changes to some ingredients in CoffeeMaker's
+     * singleton Inventory. The request body maps ingredient names to the
+     * amount to add, which may be negative. Either every change is applied or,
+     * if any ingredient would go negative, none are. Only the changed
+     * ingredients are returned, along with the new Inventory version.
+     *
+     * @param deltas
+     *            amount to add to each ingredient, by name
+     * @return response to the request
+     */
+    @PatchMapping ( BASE_PATH + "/inventory" )
+    public ResponseEntity patchInventory ( @RequestBody final Map<String, Integer> deltas ) {
+        if ( deltas == null ) {
+            return new ResponseEntity( errorResponse( "No changes provided" ), HttpStatus.BAD_REQUEST );
+        }
+        for ( final Map.Entry<String, Integer> delta : deltas.entrySet() ) {
+            if ( delta.getKey() == null || delta.getKey().isEmpty() || delta.getValue() == null ) {
+                return new ResponseEntity( errorResponse( "Invalid change for ingredient " + delta.getKey() ),
+                        HttpStatus.BAD_REQUEST );
+            }
+        }
+
+        final Map<String, Integer> changed;
+        try {
+            changed = service.applyDeltas( deltas );
+        }
+        catch ( final IllegalArgumentException e ) {
+            return new ResponseEntity( errorResponse( e.getMessage() ), HttpStatus.CONFLICT );
+        }
+        return new ResponseEntity( toJson( new InventoryPatch( service.getVersion(), changed ) ), HttpStatus.OK );
+    }
+
     /**
      * REST API endpoint to provide add access to CoffeeMaker's singleton
      * Inventory. This will add an Ingredient to the Inventory if it is valid.
@@ -97,8 +133,53 @@ public class APIInventoryController extends APIController {
             }
         }
 
-        inventoryCurrent.addIngredient( ingredient.getName(), ingredient.getAmount() );
-        service.save( inventoryCurrent );
-        return new ResponseEntity( inventoryCurrent, HttpStatus.OK );
+        return new ResponseEntity( service.addIngredient( ingredient.getName(), ingredient.getAmount() ),
+                HttpStatus.OK );
+    }
+
+    /**
+     * REST API endpoint to get the amount of every ingredient in the Inventory
+     * as it was at a point in time, rebuilt from the inventory journal
+     *
+     * @param asOf
+     *            the point in time, as an ISO-8601 instant or epoch milliseconds
+     * @return response to the request
+     */
+    @GetMapping ( BASE_PATH + "/inventory/history" )
+    public ResponseEntity getInventoryAsOf ( @RequestParam final String asOf ) {
+        final long epochMillis;
+        try {
+            epochMillis = asOf.chars().allMatch( Character::isDigit ) ? Long.parseLong( asOf )
+                    : Instant.parse( asOf ).toEpochMilli();
+        }
+        catch ( final DateTimeParseException | NumberFormatException e ) {
+            return new ResponseEntity( errorResponse( "Invalid time " + asOf ), HttpStatus.BAD_REQUEST );
+        }
+        return new ResponseEntity( service.getInventoryAsOf( epochMillis ), HttpStatus.OK );
+    }
+
+    /**
+     * Response to a PATCH of the Inventory
+     */
+    static protected class InventoryPatch {
+
+        /** Version of the Inventory after the change */
+        private final long                 version;
+
+        /** New amount of each ingredient that changed, by name */
+        private final Map<String, Integer> changed;
+
+        /**
+         * Creates the response
+         *
+         * @param version
+         *            version of the Inventory after the change
+         * @param changed
+         *            new amount of each ingredient that changed
+         */
+        InventoryPatch ( final long version, final Map<String, Integer> changed ) {
+            this.version = version;
+            this.changed = changed;
+        }
     }
 }
@@ -1,9 +1,14 @@
 package edu.ncsu.csc.CoffeeMaker.controllers;
 
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
@@ -14,15 +19,30 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
 import edu.ncsu.csc.CoffeeMaker.models.Recipe;
 import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
 import edu.ncsu.csc.CoffeeMaker.models.user.User;
+import edu.ncsu.csc.CoffeeMaker.services.BaristaDispatcher;
+import edu.ncsu.csc.CoffeeMaker.services.OrderAdmission;
+import edu.ncsu.csc.CoffeeMaker.services.OrderAdmission.Rejection;
+import edu.ncsu.csc.CoffeeMaker.services.OrderArchive;
+import edu.ncsu.csc.CoffeeMaker.services.OrderEtaEstimator;
+import edu.ncsu.csc.CoffeeMaker.services.OrderEventBroadcaster;
+import edu.ncsu.csc.CoffeeMaker.services.OrderIngestion;
 import edu.ncsu.csc.CoffeeMaker.services.OrderService;
+import edu.ncsu.csc.CoffeeMaker.services.OrderService.Cursor;
 import edu.ncsu.csc.CoffeeMaker.services.RecipeService;
+import edu.ncsu.csc.CoffeeMaker.services.ReservationService;
+import edu.ncsu.csc.CoffeeMaker.services.ReservationService.Reservation;
+import edu.ncsu.csc.CoffeeMaker.services.RevenueLedger;
 import edu.ncsu.csc.CoffeeMaker.services.UserService;
 
 /**
@@ -40,7 +60,7 @@ public class APIOrdersController extends APIController {
      * the Orders model
      */
     @Autowired
-    private OrderService  ordersService;
+    private OrderService          ordersService;
 
     /**
      * CustomerService object, to be autowired in by Spring to allow for
@@ -48,29 +68,112 @@ public class APIOrdersController extends APIController {
      */
     @Autowired
 
-    private UserService   userService;
+    private UserService           userService;
 
     /**
      * RecipeService object, to be autowired in by Spring to allow for manipulating
      * the Recipe model
      */
     @Autowired
-    private RecipeService recipeService;
+    private RecipeService         recipeService;
 
     /**
-     * Creates a new order using the object passed in.
+     * ReservationService object, used to hold an order's ingredients from the
+     * time it is placed
+     */
+    @Autowired
+    private ReservationService    reservationService;
+
+    /**
+     * OrderEventBroadcaster object, used to push order changes to the staff
+     * order board
+     */
+    @Autowired
+    private OrderEventBroadcaster eventBroadcaster;
+
+    /**
+     * RevenueLedger object, which keeps the running revenue total
+     */
+    @Autowired
+    private RevenueLedger         revenueLedger;
+
+    /**
+     * OrderArchive object, which holds finished orders moved out of the
+     * database
+     */
+    @Autowired
+    private OrderArchive          orderArchive;
+
+    /**
+     * IdempotencyStore object, used to answer retried order placements with
+     * the original response
+     */
+    @Autowired
+    private IdempotencyStore      idempotency;
+
+    /**
+     * BaristaDispatcher object, which hands orders to baristas in push mode
+     */
+    @Autowired
+    private BaristaDispatcher     dispatcher;
+
+    /**
+     * OrderEtaEstimator object, which estimates when orders will be ready
+     */
+    @Autowired
+    private OrderEtaEstimator     etaEstimator;
+
+    /**
+     * OrderAdmission object, which turns orders away when the queue is too
+     * long
+     */
+    @Autowired
+    private OrderAdmission        admission;
+
+    /**
+     * OrderIngestion object, which takes orders without waiting for the
+     * database when that is turned on
+     */
+    @Autowired
+    private OrderIngestion        ingestion;
+
+    /**
+     * Creates a new order using the object passed in. The recipe's ingredients
+     * are reserved for the order; if there are not enough of them the order is
+     * rejected. A client that retries with the same Idempotency-Key gets the
+     * original response rather than a second order.
      *
      * @param auth
      *            authentication token, to get user
      * @param json
      *            json formatted data, key value of string: long
-     * @return response entity with 200 status
+     * @param idempotencyKey
+     *            optional key identifying the request across retries
+     * @return response entity with 200 status, 409 if there is not enough
+     *         inventory to make the order
      */
 
     @PostMapping
     public ResponseEntity createOrder ( @AuthenticationPrincipal final Authentication auth,
-            @RequestBody final Map<String, String> json ) {
+            @RequestBody final Map<String, String> json,
+            @RequestHeader ( value = IdempotencyStore.HEADER, required = false ) final String idempotencyKey ) {
+        return idempotency.execute( idempotencyKey, "POST /orders " + auth.getName(), String.valueOf( json ),
+                () -> placeOrder( auth, json ) );
+    }
 
+    /**
+     * Places an order for the recipe named in the request
+     *
+     * @param auth
+     *            authentication token, to get user
+     * @param json
+     *            json formatted data, key value of string: long
+     * @return the response to send
+     */
+    private ResponseEntity placeOrder ( final Authentication auth, final Map<String, String> json ) {
+        if ( ingestion.isEnabled() ) {
+            return acceptOrder( auth, json );
+        }
         final User customer = userService.findByName( auth.getName() );
         if ( customer == null ) {
             return new ResponseEntity( errorResponse( "customer " + auth.getName() + " could not be found" ),
@@ -83,64 +186,320 @@ public class APIOrdersController extends APIController {
                     HttpStatus.NOT_FOUND );
         }
 
+        final Rejection rejection = admission.check( recipe.getName() );
+        if ( rejection != null ) {
+            return tooManyRequests( rejection.getReason(), rejection.getRetryAfter() );
+        }
+
+        final Reservation reservation = reservationService.reserve( recipe );
+        if ( reservation == null ) {
+            return new ResponseEntity( errorResponse( "Not enough inventory to make " + recipe.getName() ),
+                    HttpStatus.CONFLICT );
+        }
+
         final CustomerOrder orders = customer.placeOrder( recipe );
         System.out.println( "Hit!" );
-        ordersService.save( orders );
-        System.out.println( "The system has " + ordersService.count() + " orders" );
+        try {
+            ordersService.save( orders );
+        }
+        catch ( final RuntimeException e ) {
+            reservationService.release( reservation );
+            throw e;
+        }
+        reservationService.hold( orders.getId(), reservation );
         return new ResponseEntity(
                 successResponse( "New order by " + customer.getUsername() + " successfully created" ), HttpStatus.OK );
     }
 
     /**
-     * Gets all orders within the database. Returns them in sorted order by creation
-     * date
+     * Takes an order without waiting for the database. The customer and recipe
+     * are checked against cached data, the ingredients are reserved, and the
+     * order is handed to OrderIngestion to be inserted with others.
      *
-     * @return all orders as list
+     * @param auth
+     *            authentication token, to get user
+     * @param json
+     *            json formatted data, key value of string: long
+     * @return 202 with a receipt whose reference can be looked up at
+     *         /pending/{reference}, 404 if the customer or recipe does not
+     *         exist, 409 if there is not enough inventory, 429 if the queue or
+     *         the buffer is full
      */
+    private ResponseEntity acceptOrder ( final Authentication auth, final Map<String, String> json ) {
+        if ( !ingestion.isCustomer( auth.getName() ) ) {
+            return new ResponseEntity( errorResponse( "customer " + auth.getName() + " could not be found" ),
+                    HttpStatus.NOT_FOUND );
+        }
+        final Recipe recipe = recipeService.findCachedByName( json.get( "recipe" ) );
+        if ( recipe == null ) {
+            return new ResponseEntity( errorResponse( "recipe " + json.get( "recipe" ) + " could not be found" ),
+                    HttpStatus.NOT_FOUND );
+        }
+        final Rejection rejection = admission.check( recipe.getName() );
+        if ( rejection != null ) {
+            return tooManyRequests( rejection.getReason(), rejection.getRetryAfter() );
+        }
+        final Reservation reservation = reservationService.reserve( recipe );
+        if ( reservation == null ) {
+            return new ResponseEntity( errorResponse( "Not enough inventory to make " + recipe.getName() ),
+                    HttpStatus.CONFLICT );
+        }
+        final OrderIngestion.Receipt receipt = ingestion.submit( auth.getName(), recipe, reservation );
+        if ( receipt == null ) {
+            reservationService.release( reservation );
+            return tooManyRequests( "Too many orders are being placed; please try again", 1 );
+        }
+        final HttpHeaders headers = new HttpHeaders();
+        headers.set( HttpHeaders.LOCATION, "/api/v1/orders/pending/" + receipt.getReference() );
+        return new ResponseEntity( toJson( receipt ), headers, HttpStatus.ACCEPTED );
+    }
 
-    @GetMapping
-    public ResponseEntity getOrders () {
+    /**
+     * Builds a 429 response telling the client when to try again
+     *
+     * @param reason
+     *            why the request was turned away
+     * @param retryAfter
+     *            seconds to wait
+     * @return the response
+     */
+    private static ResponseEntity tooManyRequests ( final String reason, final long retryAfter ) {
+        final HttpHeaders headers = new HttpHeaders();
+        headers.set( HttpHeaders.RETRY_AFTER, Long.toString( retryAfter ) );
+        return new ResponseEntity( errorResponse( reason ), headers, HttpStatus.TOO_MANY_REQUESTS );
+    }
 
-        final List<CustomerOrder> orders = ordersService.ordersByTimestamp();
-        return null == orders
-                ? new ResponseEntity( errorResponse( "Error returning all orders" ), HttpStatus.NOT_FOUND )
-                : new ResponseEntity( orders, HttpStatus.OK );
+    /**
+     * Gets the username to record as making an order transition
+     *
+     * @param auth
+     *            the current user, or null if the request was not
+     *            authenticated
+     * @return the username, or null
+     */
+    private static String actorName ( final Authentication auth ) {
+        return auth == null ? null : auth.getName();
     }
 
     /**
-     * Gets all unclaimed orders within the database.
+     * Looks up an order taken without waiting for the database, to find out
+     * whether it has been placed and what its id is
      *
-     * @return all orders as list
+     * @param reference
+     *            the reference returned when the order was taken
+     * @return 200 with the receipt, whose status is PENDING, PLACED or FAILED;
+     *         404 if the reference is unknown or too old
+     */
+    @GetMapping ( "/pending/{reference}" )
+    public ResponseEntity getPendingOrder ( @PathVariable final String reference ) {
+        final OrderIngestion.Receipt receipt = ingestion.getReceipt( reference );
+        if ( receipt == null ) {
+            return new ResponseEntity( errorResponse( "No pending order found: " + reference ),
+                    HttpStatus.NOT_FOUND );
+        }
+        return new ResponseEntity( toJson( receipt ), HttpStatus.OK );
+    }
+
+    /**
+     * Gets one page of orders, oldest first, with optional filters. The
+     * response is an array of orders; if there are more, the cursor for the
+     * next page is returned in the X-Next-Cursor header.
+     *
+     * @param cursor
+     *            X-Next-Cursor from the previous page, or none for the first
+     * @param limit
+     *            most orders to return, at most OrderService.MAX_PAGE_SIZE
+     * @param status
+     *            only orders in this state
+     * @param customer
+     *            only orders by this customer
+     * @param from
+     *            only orders placed at or after this ISO-8601 instant
+     * @param to
+     *            only orders placed before this ISO-8601 instant
+     * @return the page of orders, 400 if a filter is invalid
      */
-    @GetMapping ( "/unclaimed" )
-    public ResponseEntity getUnclaimedOrders () {
-        final List<CustomerOrder> orders = ordersService.getUnclaimedOrders();
 
-        return null == orders
-                ? new ResponseEntity( errorResponse( "Error returning all orders" ), HttpStatus.NOT_FOUND )
-                : new ResponseEntity( orders, HttpStatus.OK );
+    @GetMapping
+    public ResponseEntity getOrders ( @RequestParam ( required = false ) final String cursor,
+            @RequestParam ( defaultValue = DEFAULT_PAGE_SIZE ) final int limit,
+            @RequestParam ( required = false ) final String status,
+            @RequestParam ( required = false ) final String customer,
+            @RequestParam ( required = false ) final String from,
+            @RequestParam ( required = false ) final String to ) {
+        final Cursor after;
+        final OrderEnum state;
+        final Instant start;
+        final Instant end;
+        try {
+            after = Cursor.parse( cursor );
+            state = status == null ? null : OrderEnum.valueOf( status );
+            start = from == null ? null : Instant.parse( from );
+            end = to == null ? null : Instant.parse( to );
+        }
+        catch ( final IllegalArgumentException | DateTimeParseException e ) {
+            return new ResponseEntity( errorResponse( "Invalid filter: " + e.getMessage() ), HttpStatus.BAD_REQUEST );
+        }
+        return page( ordersService.findPage( after, state, customer, start, end, limit ) );
     }
 
     /**
-     * Gets all the orders under a specific customer
+     * Gets one page of unclaimed orders, in the order they will be claimed.
+     * These come from the in-memory dispatch queue rather than a query over
+     * every order. The cursor for the
+     * next page, if any, is returned in the X-Next-Cursor header.
+     *
+     * @param cursor
+     *            X-Next-Cursor from the previous page, or none for the first
+     * @param limit
+     *            most orders to return
+     * @return the page of orders
+     */
+    @GetMapping ( "/unclaimed" )
+    public ResponseEntity getUnclaimedOrders ( @RequestParam ( required = false ) final String cursor,
+            @RequestParam ( defaultValue = DEFAULT_PAGE_SIZE ) final int limit ) {
+        final Cursor after;
+        try {
+            after = Cursor.parse( cursor );
+        }
+        catch ( final IllegalArgumentException e ) {
+            return new ResponseEntity( errorResponse( e.getMessage() ), HttpStatus.BAD_REQUEST );
+        }
+        return page( ordersService.unclaimedPage( after, limit ) );
+    }
+
+    /**
+     * Gets one page of the orders under a specific customer, oldest first. The
+     * cursor for the next page, if any, is returned in the X-Next-Cursor
+     * header.
      *
      * @param auth
      *            the authenication which called this endpoint
+     * @param cursor
+     *            X-Next-Cursor from the previous page, or none for the first
+     * @param limit
+     *            most orders to return
      * @return orders as list
      */
 
     @GetMapping ( "/myorders" )
-    public ResponseEntity getOrdersByCustomer ( @AuthenticationPrincipal Authentication auth ) {
-        final List<CustomerOrder> orders = ordersService.getOrdersByCustomer( auth.getName() );
-        return null == orders
-                ? new ResponseEntity( errorResponse( "No orders under " + auth.getName() + " name" ),
-                        HttpStatus.NOT_FOUND )
-                : new ResponseEntity( orders, HttpStatus.OK );
+    public ResponseEntity getOrdersByCustomer ( @AuthenticationPrincipal Authentication auth,
+            @RequestParam ( required = false ) final String cursor,
+            @RequestParam ( defaultValue = DEFAULT_PAGE_SIZE ) final int limit ) {
+        final Cursor after;
+        try {
+            after = Cursor.parse( cursor );
+        }
+        catch ( final IllegalArgumentException e ) {
+            return new ResponseEntity( errorResponse( e.getMessage() ), HttpStatus.BAD_REQUEST );
+        }
+        return page( ordersService.findPage( after, null, auth.getName(), null, null, limit ) );
+    }
+
+    /**
+     * Gets archived orders, oldest first. Finished orders are moved to the
+     * archive some time after they are placed, and are no longer returned by
+     * the other order endpoints.
+     *
+     * @param from
+     *            only orders placed at or after this ISO-8601 instant
+     * @param to
+     *            only orders placed before this ISO-8601 instant
+     * @param customer
+     *            only orders by this customer
+     * @param status
+     *            only orders in this state
+     * @param limit
+     *            most orders to return, at most OrderService.MAX_PAGE_SIZE
+     * @return the archived orders, 400 if a filter is invalid
+     */
+    @GetMapping ( "/archive" )
+    public ResponseEntity getArchivedOrders ( @RequestParam ( required = false ) final String from,
+            @RequestParam ( required = false ) final String to,
+            @RequestParam ( required = false ) final String customer,
+            @RequestParam ( required = false ) final String status,
+            @RequestParam ( defaultValue = DEFAULT_PAGE_SIZE ) final int limit ) {
+        final long start;
+        final long end;
+        final OrderEnum state;
+        try {
+            start = from == null ? 0 : Instant.parse( from ).toEpochMilli();
+            end = to == null ? Long.MAX_VALUE : Instant.parse( to ).toEpochMilli();
+            state = status == null ? null : OrderEnum.valueOf( status );
+        }
+        catch ( final IllegalArgumentException | DateTimeParseException e ) {
+            return new ResponseEntity( errorResponse( "Invalid filter: " + e.getMessage() ), HttpStatus.BAD_REQUEST );
+        }
+        final int size = Math.max( 1, Math.min( limit, OrderService.MAX_PAGE_SIZE ) );
+        return new ResponseEntity( toJson( orderArchive.find( start, end, customer, state, size ) ), HttpStatus.OK );
+    }
+
+    /**
+     * Opens a Server-Sent Events stream of order changes for the staff order
+     * board. Events are named created, claimed, status-changed and deleted, and
+     * carry the order as JSON. A client reconnecting with Last-Event-ID is sent
+     * the events it missed, or a reset event if they are no longer available.
+     *
+     * @param lastEventId
+     *            id of the last event received, sent by the browser on
+     *            reconnect
+     * @return the event stream
+     */
+    @GetMapping ( "/stream" )
+    public SseEmitter streamOrders (
+            @RequestHeader ( value = "Last-Event-ID", required = false ) final String lastEventId ) {
+        return eventBroadcaster.subscribe( lastEventId );
+    }
+
+    /**
+     * Gets the history of an order: every state change it has made, oldest
+     * first, both as records and as the lines of the old order log
+     *
+     * @param id
+     *            id of the order
+     * @return 200 with the transitions and the log, 404 if the order does not
+     *         exist
+     */
+    @GetMapping ( "/{id}/history" )
+    public ResponseEntity getOrderHistory ( @PathVariable final Long id ) {
+        final CustomerOrder order = ordersService.findById( id );
+        if ( order == null ) {
+            return new ResponseEntity( errorResponse( "No order found: " + id.toString() ), HttpStatus.NOT_FOUND );
+        }
+        final List<OrderTransition> transitions = ordersService.history( id );
+        final List<String> log = new ArrayList<String>( transitions.size() );
+        for ( final OrderTransition transition : transitions ) {
+            log.add( transition.describe( order.getCustomer() ) );
+        }
+        final Map<String, Object> history = new LinkedHashMap<String, Object>();
+        history.put( "transitions", transitions );
+        history.put( "log", log );
+        return new ResponseEntity( toJson( history ), HttpStatus.OK );
+    }
+
+    /**
+     * Estimates when an order will be ready: its position in the queue if it
+     * is waiting, and the milliseconds until it is ready and the time it will
+     * be, which are null if there is no way to tell
+     *
+     * @param id
+     *            id of the order
+     * @return 200 with the estimate, 404 if the order does not exist
+     */
+    @GetMapping ( "/{id}/eta" )
+    public ResponseEntity getOrderEta ( @PathVariable final Long id ) {
+        final CustomerOrder order = ordersService.findById( id );
+        if ( order == null ) {
+            return new ResponseEntity( errorResponse( "No order found: " + id.toString() ), HttpStatus.NOT_FOUND );
+        }
+        return new ResponseEntity( toJson( etaEstimator.estimate( order ) ), HttpStatus.OK );
     }
 
     /**
      * Updates an order given its id and the new status
      *
+     * @param auth
+     *            the user making the change, recorded with the transition
      * @param id
      *            id of the order to update
      * @param status
@@ -149,7 +508,8 @@ public class APIOrdersController extends APIController {
      *         416 if status is wrong
      */
     @PutMapping ( "/{id}/{status}" )
-    public ResponseEntity updateOrderStatus ( @PathVariable final Long id, @PathVariable final String status ) {
+    public ResponseEntity updateOrderStatus ( @AuthenticationPrincipal final Authentication auth,
+            @PathVariable final Long id, @PathVariable final String status ) {
         final OrderEnum e = OrderEnum.valueOf( status );
         // Attempt to find order
 
@@ -160,7 +520,7 @@ public class APIOrdersController extends APIController {
 
         // attempt to update the order, if it fails (returns false) tell the
         // frontend
-        if ( !db.updateOrder( e ) ) {
+        if ( !db.updateOrder( e, actorName( auth ) ) ) {
             return new ResponseEntity( errorResponse( "This status [" + status + "] is not a valid transition." ),
                     HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE );
         }
@@ -169,6 +529,35 @@ public class APIOrdersController extends APIController {
         return new ResponseEntity( successResponse( id.toString() + " updated successfully" ), HttpStatus.OK );
     }
 
+    /**
+     * Moves many orders to new states at once. The body maps each order id to
+     * the state to move it to, e.g. {"12": "COMPLETED", "15": "CANCELLED"}.
+     * All the orders are loaded together and saved with one flush; orders that
+     * do not exist or cannot make the change are reported and left alone.
+     *
+     * @param auth
+     *            the user making the changes, recorded with the transitions
+     * @param updates
+     *            the new state for each order id
+     * @return 200 with the outcome for each order id, 400 if an id or state
+     *         cannot be read
+     */
+    @PutMapping ( "/status" )
+    public ResponseEntity updateOrderStatuses ( @AuthenticationPrincipal final Authentication auth,
+            @RequestBody final Map<String, String> updates ) {
+        final Map<Long, OrderEnum> parsed = new LinkedHashMap<Long, OrderEnum>();
+        try {
+            for ( final Map.Entry<String, String> update : updates.entrySet() ) {
+                parsed.put( Long.valueOf( update.getKey() ), OrderEnum.valueOf( update.getValue() ) );
+            }
+        }
+        catch ( final IllegalArgumentException | NullPointerException e ) {
+            return new ResponseEntity( errorResponse( "Invalid status update: " + e.getMessage() ),
+                    HttpStatus.BAD_REQUEST );
+        }
+        return new ResponseEntity( toJson( ordersService.updateStatuses( parsed, actorName( auth ) ) ), HttpStatus.OK );
+    }
+
     /**
      * Updates an order given its id and the new staff owner
      *
@@ -177,7 +566,9 @@ public class APIOrdersController extends APIController {
      * @param auth
      *            The authentication which called this endpoint
      * 
-     * @return 200 HTTP response entity if successful, 404 if order does not exist
+     * @return 200 HTTP response entity if successful, 404 if order does not exist,
+     *         409 if the order is not waiting to be claimed (for instance
+     *         because another staff member claimed it first)
      */
     @PutMapping ( "/staff/{id}" )
     public ResponseEntity updateOrderStaff ( @AuthenticationPrincipal final Authentication auth,
@@ -194,13 +585,71 @@ public class APIOrdersController extends APIController {
                     HttpStatus.NOT_FOUND );
         }
 
-        staff.claimOrder( order );
-        userService.save( staff );
-        ordersService.save( order );
+        if ( ordersService.claim( id, staff ) == null ) {
+            return new ResponseEntity( errorResponse( "Order " + id + " is not waiting to be claimed" ),
+                    HttpStatus.CONFLICT );
+        }
 
         return new ResponseEntity( successResponse( id.toString() + " updated successfully" ), HttpStatus.OK );
     }
 
+    /**
+     * Puts the staff member who called this endpoint on shift and opens a
+     * Server-Sent Events stream of the orders the dispatcher gives them, as
+     * assigned events carrying the order as JSON. They stay on shift until the
+     * stream closes. Only available when orders are pushed to baristas.
+     *
+     * @param auth
+     *            The authentication which called this endpoint
+     * @return 200 with the assignment stream, 409 if baristas claim orders
+     *         themselves
+     */
+    @GetMapping ( "/staff/assignments" )
+    public ResponseEntity streamAssignments ( @AuthenticationPrincipal final Authentication auth ) {
+        if ( !dispatcher.isPushMode() ) {
+            return new ResponseEntity( errorResponse( "Orders are claimed by baristas, not dispatched" ),
+                    HttpStatus.CONFLICT );
+        }
+        return new ResponseEntity( dispatcher.startShift( auth.getName() ), HttpStatus.OK );
+    }
+
+    /**
+     * Gets how order dispatching is doing: the mode, who is on shift, and how
+     * long orders waited to be claimed and how many were completed
+     *
+     * @return 200 with the statistics
+     */
+    @GetMapping ( "/dispatch" )
+    public ResponseEntity getDispatchStats () {
+        return new ResponseEntity( toJson( dispatcher.getStats() ), HttpStatus.OK );
+    }
+
+    /**
+     * Gives the order that has been waiting longest to the staff member who
+     * called this endpoint. Each order is handed out exactly once, however many
+     * staff members call this at the same time.
+     *
+     * @param auth
+     *            The authentication which called this endpoint
+     *
+     * @return 200 HTTP response entity with the claimed order, 404 if the staff
+     *         member does not exist or no orders are waiting
+     */
+    @PostMapping ( "/claim-next" )
+    public ResponseEntity claimNextOrder ( @AuthenticationPrincipal final Authentication auth ) {
+        final User staff = userService.findByName( auth.getName() );
+        if ( staff == null ) {
+            return new ResponseEntity( errorResponse( "Staff " + auth.getName() + " not found" ),
+                    HttpStatus.NOT_FOUND );
+        }
+
+        final CustomerOrder order = ordersService.claimNext( staff );
+        if ( order == null ) {
+            return new ResponseEntity( errorResponse( "No orders are waiting" ), HttpStatus.NOT_FOUND );
+        }
+        return new ResponseEntity( order, HttpStatus.OK );
+    }
+
     /**
      * Deletes an order given it's id
      *
@@ -222,19 +671,16 @@ public class APIOrdersController extends APIController {
         return new ResponseEntity( successResponse( id + " was deleted successfully" ), HttpStatus.OK );
     }
 
+    /**
+     * Gets the revenue from every completed order, from the running total kept
+     * by the RevenueLedger
+     *
+     * @return 200 with the revenue
+     */
     @GetMapping ( "/finances" )
     public ResponseEntity getRevenue () {
-        final List<CustomerOrder> orders = ordersService.findAll();
-        int revenue = 0;
-        if ( orders == null ) {
-            return new ResponseEntity( errorResponse( "No orders found" ), HttpStatus.NOT_FOUND );
-        }
-        for ( final CustomerOrder co : orders ) {
-            if ( co.getCurrentState() == OrderEnum.COMPLETED || co.getCurrentState() == OrderEnum.PICKED_UP ) {
-                revenue += co.getRecipe().getPrice();
-            }
-        }
-        return new ResponseEntity( successResponse( "Current revenue is: " + revenue ), HttpStatus.OK );
+        return new ResponseEntity( successResponse( "Current revenue is: " + revenueLedger.getRevenue() ),
+                HttpStatus.OK );
     }
 
 }
@@ -14,6 +14,7 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
 
 import edu.ncsu.csc.CoffeeMaker.models.Recipe;
+import edu.ncsu.csc.CoffeeMaker.services.InventoryService;
 import edu.ncsu.csc.CoffeeMaker.services.RecipeService;
 
 /**
@@ -36,7 +37,14 @@ public class APIRecipeController extends APIController {
      * manipulating the Recipe model
      */
     @Autowired
-    private RecipeService service;
+    private RecipeService    service;
+
+    /**
+     * InventoryService object, used to report how many of each recipe can be
+     * made
+     */
+    @Autowired
+    private InventoryService inventoryService;
 
     /**
      * REST API method to provide GET access to all recipes in the system
@@ -48,6 +56,18 @@ public class APIRecipeController extends APIController {
         return service.findAll();
     }
 
+    /**
+     * REST API method to provide GET access to how many drinks of each recipe
+     * can still be made with the inventory that is not reserved. Recipes that
+     * no ingredient in the Inventory limits are reported as null.
+     *
+     * @return JSON map of recipe name to number of drinks
+     */
+    @GetMapping ( BASE_PATH + "/recipes/availability" )
+    public ResponseEntity getAvailability () {
+        return new ResponseEntity( inventoryService.getAvailability(), HttpStatus.OK );
+    }
+
     /**
      * REST API method to provide GET access to a specific recipe, as indicated
      * by the path variable provided (the name of the recipe desired)
@@ -0,0 +1,77 @@
+package edu.ncsu.csc.CoffeeMaker.controllers;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import edu.ncsu.csc.CoffeeMaker.models.enums.SalesGranularity;
+import edu.ncsu.csc.CoffeeMaker.services.SalesRollup;
+
+/**
+ * This is the controller that holds the REST endpoints for the managers'
+ * reports.
+ *
+ * Spring will automatically convert all of the ResponseEntity and List results
+ * to JSON
+ */
+@SuppressWarnings ( { "unchecked", "rawtypes" } )
+@RestController
+public class APIReportsController extends APIController {
+
+    /** How far back a report goes when no start is given */
+    private static final Duration DEFAULT_RANGE = Duration.ofDays( 7 );
+
+    /**
+     * SalesRollup object, to be autowired in by Spring to provide the
+     * pre-aggregated sales figures
+     */
+    @Autowired
+    private SalesRollup           salesRollup;
+
+    /**
+     * REST API endpoint to report sales per recipe and order state in time
+     * buckets. Each bucket gives the number of orders that entered the state
+     * and, for COMPLETED, the revenue they earned.
+     *
+     * @param granularity
+     *            MINUTE, HOUR, DAY or WEEK
+     * @param from
+     *            start of the report as an ISO-8601 instant; defaults to a week
+     *            before the end
+     * @param to
+     *            end of the report as an ISO-8601 instant; defaults to now
+     * @param recipe
+     *            only this recipe
+     * @return 200 with the buckets, 400 if a parameter is invalid
+     */
+    @GetMapping ( BASE_PATH + "/reports/sales" )
+    public ResponseEntity getSales ( @RequestParam ( defaultValue = "HOUR" ) final String granularity,
+            @RequestParam ( required = false ) final String from,
+            @RequestParam ( required = false ) final String to,
+            @RequestParam ( required = false ) final String recipe ) {
+        final SalesGranularity size;
+        final Instant end;
+        final Instant start;
+        try {
+            size = SalesGranularity.valueOf( granularity );
+            end = to == null ? Instant.now() : Instant.parse( to );
+            start = from == null ? end.minus( DEFAULT_RANGE ) : Instant.parse( from );
+        }
+        catch ( final IllegalArgumentException | DateTimeParseException e ) {
+            return new ResponseEntity( errorResponse( "Invalid parameter: " + e.getMessage() ),
+                    HttpStatus.BAD_REQUEST );
+        }
+        if ( !start.isBefore( end ) ) {
+            return new ResponseEntity( errorResponse( "from must be before to" ), HttpStatus.BAD_REQUEST );
+        }
+        return new ResponseEntity( salesRollup.report( size, start, end, recipe ), HttpStatus.OK );
+    }
+
+}
@@ -13,9 +13,12 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import edu.ncsu.csc.CoffeeMaker.models.user.User;
+import edu.ncsu.csc.CoffeeMaker.services.OrderService;
+import edu.ncsu.csc.CoffeeMaker.services.OrderService.Cursor;
 import edu.ncsu.csc.CoffeeMaker.services.UserService;
 
 /**
@@ -33,7 +36,13 @@ public class APIUserController extends APIController {
      * manipulating the Users model
      */
     @Autowired
-    private UserService userService;
+    private UserService  userService;
+
+    /**
+     * OrderService object, used to read a user's orders a page at a time
+     */
+    @Autowired
+    private OrderService orderService;
 
     /**
      * Base path creates a new CUSTOMER user { username: 'John Smith', password:
@@ -90,6 +99,38 @@ public class APIUserController extends APIController {
         return userService.findAll();
     }
 
+    /**
+     * Gets one page of the orders a user has placed, oldest first. The cursor
+     * for the next page, if any, is returned in the X-Next-Cursor header.
+     * Orders that have been archived are not included.
+     *
+     * @param id
+     *            id of the user
+     * @param cursor
+     *            X-Next-Cursor from the previous page, or none for the first
+     * @param limit
+     *            most orders to return
+     * @return the page of orders, 400 if the cursor is invalid, 404 if the
+     *         user does not exist
+     */
+    @GetMapping ( "/{id}/orders" )
+    public ResponseEntity getUserOrders ( @PathVariable final Long id,
+            @RequestParam ( required = false ) final String cursor,
+            @RequestParam ( defaultValue = DEFAULT_PAGE_SIZE ) final int limit ) {
+        final User user = userService.findById( id );
+        if ( user == null ) {
+            return new ResponseEntity( errorResponse( "No user found: " + id.toString() ), HttpStatus.NOT_FOUND );
+        }
+        final Cursor after;
+        try {
+            after = Cursor.parse( cursor );
+        }
+        catch ( final IllegalArgumentException e ) {
+            return new ResponseEntity( errorResponse( e.getMessage() ), HttpStatus.BAD_REQUEST );
+        }
+        return page( orderService.findPage( after, null, user.getUsername(), null, null, limit ) );
+    }
+
     /**
      * Deletes a user
      *
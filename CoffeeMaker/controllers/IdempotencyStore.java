@@ -0,0 +1,368 @@
+package edu.ncsu.csc.CoffeeMaker.controllers;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import com.google.gson.Gson;
+
+/**
+ * Remembers the responses to recent requests sent with an Idempotency-Key
+ * header, so that a client retrying a request it never got an answer to gets
+ * the original response instead of placing a second order or making a second
+ * drink. A retry that arrives while the original is still running waits for
+ * it.
+ *
+ * Keys are scoped to the endpoint and the user, and a key reused with a
+ * different request is rejected. Responses are kept for a limited time and
+ * only the most recent ones are kept; server errors and 429s are not kept, so
+ * a request that failed that way can be retried. If a file is configured the kept
+ * responses are saved there on shutdown and loaded again on startup.
+ */
+@Component
+public class IdempotencyStore {
+
+    /** Request header carrying the key */
+    public static final String           HEADER   = "Idempotency-Key";
+
+    /** Response header marking a response as a replay */
+    public static final String           REPLAYED = "Idempotent-Replayed";
+
+    /** Longest key accepted */
+    private static final int             MAX_KEY  = 255;
+
+    /** Serializes kept responses to the file */
+    private static final Gson            GSON     = new Gson();
+
+    /** Most responses kept */
+    @Value ( "${coffeemaker.idempotency.max-keys:10000}" )
+    private int                          maxKeys;
+
+    /** How long responses are kept */
+    @Value ( "${coffeemaker.idempotency.ttl-hours:24}" )
+    private int                          ttlHours;
+
+    /** How long a retry waits for the original request to finish */
+    @Value ( "${coffeemaker.idempotency.wait-ms:5000}" )
+    private long                         waitMs;
+
+    /** File the responses are saved to over a restart, or empty for none */
+    @Value ( "${coffeemaker.idempotency.file:}" )
+    private String                       file;
+
+    /** Kept requests by scope and key, oldest first; guarded by itself */
+    private final Map<String, Entry>     entries  = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Loads the responses saved at the last shutdown, if there is a file
+     */
+    @PostConstruct
+    public void load () {
+        if ( file.isEmpty() || !Files.exists( Paths.get( file ) ) ) {
+            return;
+        }
+        try ( BufferedReader reader = Files.newBufferedReader( Paths.get( file ), StandardCharsets.UTF_8 ) ) {
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                final Saved saved = GSON.fromJson( line, Saved.class );
+                final Entry entry = new Entry( saved.fingerprint, saved.createdAt );
+                entry.result.complete( new Stored( saved.status, saved.body ) );
+                entries.put( saved.id, entry );
+            }
+            expire( System.currentTimeMillis() );
+        }
+        catch ( final IOException | RuntimeException e ) {
+            System.out.println( "Could not load idempotency keys from " + file + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Saves the kept responses, if there is a file
+     */
+    @PreDestroy
+    public void save () {
+        if ( file.isEmpty() ) {
+            return;
+        }
+        final List<String> lines = new ArrayList<String>();
+        synchronized ( entries ) {
+            for ( final Map.Entry<String, Entry> kept : entries.entrySet() ) {
+                final Stored stored = kept.getValue().result.getNow( null );
+                if ( stored != null ) {
+                    lines.add( GSON.toJson( new Saved( kept.getKey(), kept.getValue(), stored ) ) );
+                }
+            }
+        }
+        final Path target = Paths.get( file );
+        final Path temp = Paths.get( file + ".tmp" );
+        try {
+            try ( BufferedWriter writer = Files.newBufferedWriter( temp, StandardCharsets.UTF_8 ) ) {
+                for ( final String line : lines ) {
+                    writer.write( line );
+                    writer.newLine();
+                }
+            }
+            Files.move( temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( final IOException e ) {
+            System.out.println( "Could not save idempotency keys to " + file + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Runs a request at most once per key. Without a key the request simply
+     * runs.
+     *
+     * @param key
+     *            the Idempotency-Key header, or null
+     * @param scope
+     *            the endpoint and user the key belongs to
+     * @param fingerprint
+     *            what the request asked for, to detect a key reused for a
+     *            different request
+     * @param request
+     *            runs the request and returns its response; the body must be a
+     *            String
+     * @return the response, or the original one if this is a retry; 422 if the
+     *         key was used for a different request, 409 if the original has
+     *         not finished or failed
+     */
+    @SuppressWarnings ( { "unchecked", "rawtypes" } )
+    public ResponseEntity execute ( final String key, final String scope, final String fingerprint,
+            final Supplier<ResponseEntity> request ) {
+        if ( key == null ) {
+            return request.get();
+        }
+        if ( key.isEmpty() || key.length() > MAX_KEY ) {
+            return new ResponseEntity( APIController.errorResponse( HEADER + " must be 1 to " + MAX_KEY
+                    + " characters" ), HttpStatus.BAD_REQUEST );
+        }
+        final String id = scope + " " + key;
+        final Entry mine = new Entry( fingerprint, System.currentTimeMillis() );
+        final Entry original;
+        synchronized ( entries ) {
+            expire( mine.createdAt );
+            original = entries.putIfAbsent( id, mine );
+        }
+        if ( original != null ) {
+            return replay( original, fingerprint );
+        }
+
+        final ResponseEntity response;
+        try {
+            response = request.get();
+        }
+        catch ( final RuntimeException e ) {
+            forget( id, mine, e );
+            throw e;
+        }
+        if ( response.getStatusCodeValue() >= 500
+                || response.getStatusCodeValue() == HttpStatus.TOO_MANY_REQUESTS.value() ) {
+            forget( id, mine, new IllegalStateException( "status " + response.getStatusCodeValue() ) );
+        }
+        else {
+            mine.result.complete( new Stored( response.getStatusCodeValue(), (String) response.getBody() ) );
+        }
+        return response;
+    }
+
+    /**
+     * Answers a retry with the original response
+     *
+     * @param original
+     *            the kept request
+     * @param fingerprint
+     *            what the retry asked for
+     * @return the response
+     */
+    @SuppressWarnings ( { "unchecked", "rawtypes" } )
+    private ResponseEntity replay ( final Entry original, final String fingerprint ) {
+        if ( !original.fingerprint.equals( fingerprint ) ) {
+            return new ResponseEntity(
+                    APIController.errorResponse( HEADER + " was already used for a different request" ),
+                    HttpStatus.UNPROCESSABLE_ENTITY );
+        }
+        final Stored stored;
+        try {
+            stored = original.result.get( waitMs, TimeUnit.MILLISECONDS );
+        }
+        catch ( final TimeoutException e ) {
+            return new ResponseEntity( APIController.errorResponse( "The original request is still in progress" ),
+                    HttpStatus.CONFLICT );
+        }
+        catch ( final ExecutionException e ) {
+            return new ResponseEntity( APIController.errorResponse( "The original request failed; retry it" ),
+                    HttpStatus.CONFLICT );
+        }
+        catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return new ResponseEntity( APIController.errorResponse( "Interrupted" ), HttpStatus.CONFLICT );
+        }
+        final HttpHeaders headers = new HttpHeaders();
+        headers.set( REPLAYED, "true" );
+        return new ResponseEntity( stored.body, headers, HttpStatus.valueOf( stored.status ) );
+    }
+
+    /**
+     * Drops a request that failed, so it can be retried, and tells any retry
+     * waiting for it
+     *
+     * @param id
+     *            scope and key
+     * @param entry
+     *            the request's entry
+     * @param failure
+     *            what went wrong
+     */
+    private void forget ( final String id, final Entry entry, final Exception failure ) {
+        synchronized ( entries ) {
+            entries.remove( id, entry );
+        }
+        entry.result.completeExceptionally( failure );
+    }
+
+    /**
+     * Drops requests older than the time they are kept for, and the oldest
+     * ones beyond the most that are kept. Called while holding the entries
+     * lock.
+     *
+     * @param now
+     *            the current time
+     */
+    private void expire ( final long now ) {
+        final long oldest = now - Duration.ofHours( ttlHours ).toMillis();
+        final Iterator<Entry> it = entries.values().iterator();
+        int excess = entries.size() - maxKeys + 1;
+        while ( it.hasNext() ) {
+            final Entry entry = it.next();
+            if ( entry.createdAt >= oldest && excess <= 0 ) {
+                break;
+            }
+            it.remove();
+            excess--;
+        }
+    }
+
+    /**
+     * A kept request: what it asked for and, once it has finished, its
+     * response
+     */
+    private static final class Entry {
+
+        /** What the request asked for */
+        private final String                     fingerprint;
+
+        /** When the request arrived, in epoch milliseconds */
+        private final long                       createdAt;
+
+        /** The response, once there is one */
+        private final CompletableFuture<Stored>  result = new CompletableFuture<Stored>();
+
+        /**
+         * Creates an entry
+         *
+         * @param fingerprint
+         *            what the request asked for
+         * @param createdAt
+         *            when it arrived
+         */
+        private Entry ( final String fingerprint, final long createdAt ) {
+            this.fingerprint = fingerprint;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /**
+     * A kept response
+     */
+    private static final class Stored {
+
+        /** HTTP status code */
+        private final int    status;
+
+        /** Response body */
+        private final String body;
+
+        /**
+         * Creates a kept response
+         *
+         * @param status
+         *            HTTP status code
+         * @param body
+         *            response body
+         */
+        private Stored ( final int status, final String body ) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A kept response as it is saved to the file
+     */
+    private static final class Saved {
+
+        /** Scope and key */
+        private String id;
+
+        /** What the request asked for */
+        private String fingerprint;
+
+        /** When the request arrived */
+        private long   createdAt;
+
+        /** HTTP status code */
+        private int    status;
+
+        /** Response body */
+        private String body;
+
+        /** For Gson */
+        private Saved () {
+        }
+
+        /**
+         * Describes a kept response
+         *
+         * @param id
+         *            scope and key
+         * @param entry
+         *            the request
+         * @param stored
+         *            its response
+         */
+        private Saved ( final String id, final Entry entry, final Stored stored ) {
+            this.id = id;
+            this.fingerprint = entry.fingerprint;
+            this.createdAt = entry.createdAt;
+            this.status = stored.status;
+            this.body = stored.body;
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package edu.ncsu.csc.CoffeeMaker.forms;
+
+/**
+ * A single drink in a batch brew request: the name of the recipe to make and
+ * the amount the customer paid for it.
+ */
+public class BrewForm {
+
+    /** Name of the recipe to make */
+    private String recipe;
+
+    /** Amount paid for the drink */
+    private int    paid;
+
+    /**
+     * Empty constructor for Jackson
+     */
+    public BrewForm () {
+    }
+
+    /**
+     * Creates a BrewForm
+     *
+     * @param recipe
+     *            name of the recipe to make
+     * @param paid
+     *            amount paid for the drink
+     */
+    public BrewForm ( final String recipe, final int paid ) {
+        this.recipe = recipe;
+        this.paid = paid;
+    }
+
+    /**
+     * Gets the recipe name
+     *
+     * @return the recipe name
+     */
+    public String getRecipe () {
+        return recipe;
+    }
+
+    /**
+     * Sets the recipe name
+     *
+     * @param recipe
+     *            the recipe name
+     */
+    public void setRecipe ( final String recipe ) {
+        this.recipe = recipe;
+    }
+
+    /**
+     * Gets the amount paid
+     *
+     * @return the amount paid
+     */
+    public int getPaid () {
+        return paid;
+    }
+
+    /**
+     * Sets the amount paid
+     *
+     * @param paid
+     *            the amount paid
+     */
+    public void setPaid ( final int paid ) {
+        this.paid = paid;
+    }
+
+}
@@ -5,11 +5,19 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
-import javax.persistence.ElementCollection;
+import javax.persistence.Column;
+import javax.persistence.Embedded;
 import javax.persistence.Entity;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.OneToOne;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
 import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
 
@@ -20,35 +28,56 @@ import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
  *
  */
 @Entity
+@Table ( indexes = { @Index ( columnList = "placed_at, id" ), @Index ( columnList = "status, placed_at, id" ),
+        @Index ( columnList = "customer, placed_at, id" ) } )
 public class CustomerOrder extends DomainObject {
 
     /** The unique ID for the order */
     @Id
     @GeneratedValue
-    private Long         id;
+    private Long           id;
 
-    /** The time the order was placed */
-    private String       timestamp;
+    /** The time the order was placed, in epoch milliseconds */
+    @Column ( name = "placed_at" )
+    private Long           placedAt;
 
-    /** The log of order transitions */
-    @ElementCollection
-    private List<String> log;
+    /**
+     * The time the order was placed, as an ISO-8601 string. Only set on orders
+     * placed before placedAt existed, until OrderTimestampMigration copies it
+     * over; no longer written.
+     */
+    @Column ( name = "timestamp" )
+    private String         legacyTimestamp;
 
     /** whether the recipe has enough ingredients or not */
-    private boolean      enoughIngredients;
+    private boolean        enoughIngredients;
 
     /** The order status */
-    private OrderEnum    status;
+    private OrderEnum      status;
 
     /** the staff member completing the order */
-    private String       barista;
+    private String         barista;
 
     /** The customer that placed the order */
-    private String       customer;
+    private String         customer;
+
+    /**
+     * The recipe for the order. Only loaded when the ingredients are needed;
+     * everything else reads the snapshot.
+     */
+    @OneToOne ( fetch = FetchType.LAZY )
+    private Recipe         recipe;
+
+    /** The recipe's id, name and price when the order was placed */
+    @Embedded
+    private RecipeSnapshot snapshot;
 
-    /** The recipe for the order */
-    @OneToOne
-    private Recipe       recipe;
+    /**
+     * Transitions made since the order was last saved, waiting to be handed to
+     * the OrderTransitionListeners
+     */
+    @Transient
+    private transient List<OrderTransition> pendingTransitions;
 
     /** Hibernate constructor */
     public CustomerOrder () {
@@ -66,23 +95,30 @@ public class CustomerOrder extends DomainObject {
      *            the order recipe
      */
     public CustomerOrder ( String customer, Recipe recipe ) {
-        this.customer = customer;
-        this.recipe = recipe;
-        barista = null;
-        timestamp = Instant.now().toString();
-        log = new ArrayList<String>();
-        enoughIngredients = true;
-        status = OrderEnum.IN_QUEUE;
-        addToLog( null, OrderEnum.IN_QUEUE );
+        this( customer, recipe, System.currentTimeMillis() );
     }
 
     /**
-     * Gets the order log
+     * The constructor for an Order that was taken before it is created, such
+     * as one buffered by OrderIngestion. It is placed, and its first
+     * transition made, at the time given.
      *
-     * @return the order log
+     * @param customer
+     *            the customer who placed the order
+     * @param recipe
+     *            the order recipe
+     * @param placedAt
+     *            when the order was taken, in epoch milliseconds
      */
-    public List<String> getOrderLog () {
-        return log;
+    public CustomerOrder ( String customer, Recipe recipe, long placedAt ) {
+        this.customer = customer;
+        this.recipe = recipe;
+        this.snapshot = recipe == null ? null : new RecipeSnapshot( recipe );
+        barista = null;
+        this.placedAt = placedAt;
+        enoughIngredients = true;
+        status = OrderEnum.IN_QUEUE;
+        recordTransition( null, OrderEnum.IN_QUEUE, customer, placedAt );
     }
 
     /**
@@ -90,77 +126,65 @@ public class CustomerOrder extends DomainObject {
      *
      * @param update
      *            the new order state
+     * @param actor
+     *            username of whoever is making the change, or null if it is
+     *            not known
      * @return if the change in state is valid
      */
-    public boolean updateOrder ( OrderEnum update ) {
+    public boolean updateOrder ( OrderEnum update, String actor ) {
         final OrderEnum prev = status;
-        // handles transition starting in cancelled or picked up
-        if ( update == status || status == OrderEnum.CANCELLED || status == OrderEnum.PICKED_UP ) {
+        if ( !prev.canTransitionTo( update ) ) {
             return false;
         }
-        // handles transitions starting in completed
-        if ( status == OrderEnum.COMPLETED ) {
-            if ( update != OrderEnum.PICKED_UP ) {
-                return false;
-            }
-            status = OrderEnum.PICKED_UP;
-            return true;
-        }
-        // handles transitions starting in in queue
-        if ( status == OrderEnum.IN_QUEUE ) {
-            if ( update == OrderEnum.IN_PROGRESS || update == OrderEnum.NOT_ENOUGH_INGREDIENTS
-                    || update == OrderEnum.CANCELLED ) {
-                status = update;
-                addToLog( prev, status );
-                if ( update == OrderEnum.NOT_ENOUGH_INGREDIENTS ) {
-                    enoughIngredients = false;
-                }
-                return true;
-            }
+        status = update;
+        recordTransition( prev, status, actor, System.currentTimeMillis() );
+        if ( update == OrderEnum.NOT_ENOUGH_INGREDIENTS ) {
+            enoughIngredients = false;
         }
-        // handles transitions starting in in progress
-        if ( status == OrderEnum.IN_PROGRESS ) {
-            if ( update == OrderEnum.IN_QUEUE || update == OrderEnum.NOT_ENOUGH_INGREDIENTS
-                    || update == OrderEnum.CANCELLED || update == OrderEnum.COMPLETED ) {
-                status = update;
-                addToLog( prev, status );
-                barista = null;
-                if ( update == OrderEnum.NOT_ENOUGH_INGREDIENTS ) {
-                    enoughIngredients = false;
-                }
-                return true;
-            }
+        else if ( prev == OrderEnum.NOT_ENOUGH_INGREDIENTS ) {
+            enoughIngredients = true;
         }
-        // handles transitions starting in not enough ingredients
-        if ( status == OrderEnum.NOT_ENOUGH_INGREDIENTS ) {
-            if ( update == OrderEnum.CANCELLED || update == OrderEnum.IN_QUEUE || update == OrderEnum.IN_PROGRESS ) {
-                status = update;
-                addToLog( prev, status );
-                if ( update == OrderEnum.CANCELLED || update == OrderEnum.IN_QUEUE ) {
-                    barista = null;
-                }
-                enoughIngredients = true;
-                return true;
-            }
+        // whoever was working on the order lets it go, unless a barista is
+        // picking it up again after the ingredients arrived
+        if ( prev == OrderEnum.IN_PROGRESS
+                || prev == OrderEnum.NOT_ENOUGH_INGREDIENTS && update != OrderEnum.IN_PROGRESS ) {
+            barista = null;
         }
-        return false;
+        return true;
     }
 
     /**
-     * Helper for adding to the log
+     * Helper for remembering a transition until the order is saved
      *
      * @param previousState
-     *            the previous order state
+     *            the previous order state, null for a new order
      * @param update
      *            the new order state
+     * @param actor
+     *            username of whoever made the change, or null
+     * @param at
+     *            when it happened, in epoch milliseconds
      */
-    private void addToLog ( OrderEnum previousState, OrderEnum update ) {
-        if ( previousState == null ) {
-            log.add( "Order Created in state " + update.name() + " by " + customer + " at " + timestamp.toString() );
-        }
-        else {
-            log.add( previousState.name() + " => " + update.name() + " at " + Instant.now() );
+    private void recordTransition ( OrderEnum previousState, OrderEnum update, String actor, long at ) {
+        if ( pendingTransitions == null ) {
+            pendingTransitions = new ArrayList<OrderTransition>();
         }
+        final OrderTransition transition = new OrderTransition( previousState, update, at );
+        transition.setActorName( actor );
+        pendingTransitions.add( transition );
+    }
+
+    /**
+     * Returns the transitions made since this was last called, and forgets
+     * them. Used by OrderService to notify listeners once the order is saved.
+     *
+     * @return the pending transitions, oldest first; empty if there are none
+     */
+    public List<OrderTransition> drainTransitions () {
+        final List<OrderTransition> drained = pendingTransitions == null ? new ArrayList<OrderTransition>()
+                : pendingTransitions;
+        pendingTransitions = null;
+        return drained;
     }
 
     /**
@@ -186,29 +210,64 @@ public class CustomerOrder extends DomainObject {
      *
      * @param staff
      *            staff member
+     * @param actor
+     *            username of whoever is making the change, or null if it is
+     *            not known
      * @return if the staff member was set successfully
      */
-    public boolean setStaffMember ( String staff ) {
+    public boolean setStaffMember ( String staff, String actor ) {
         if ( staff == null ) {
             barista = null;
-            return updateOrder( OrderEnum.IN_QUEUE );
+            return updateOrder( OrderEnum.IN_QUEUE, actor );
         }
         if ( barista == null ) {
             barista = staff;
-            return updateOrder( OrderEnum.IN_PROGRESS );
+            return updateOrder( OrderEnum.IN_PROGRESS, actor );
         }
         return false;
     }
 
     /**
-     * gets the order recipe
+     * gets the order recipe, as it is now. This loads the recipe and its
+     * ingredients; use getRecipeSnapshot for what was ordered.
      *
      * @return the recipe
      */
+    @JsonIgnore
     public Recipe getRecipe () {
         return recipe;
     }
 
+    /**
+     * Gets the recipe as it was when the order was placed
+     *
+     * @return the snapshot, or null if the order has no recipe
+     */
+    @JsonProperty ( "recipe" )
+    public RecipeSnapshot getRecipeSnapshot () {
+        return snapshot;
+    }
+
+    /**
+     * Gets the name of the ordered recipe
+     *
+     * @return the name, or null if the order has no recipe
+     */
+    @JsonIgnore
+    public String getRecipeName () {
+        return snapshot == null ? null : snapshot.getName();
+    }
+
+    /**
+     * Gets the price of the order, fixed when it was placed
+     *
+     * @return the price, or null if the order has no recipe
+     */
+    @JsonIgnore
+    public Integer getPrice () {
+        return snapshot == null ? null : snapshot.getPrice();
+    }
+
     /**
      * Checks if recipe has enough ingredients
      *
@@ -240,10 +299,20 @@ public class CustomerOrder extends DomainObject {
     /**
      * Gets the timestamp
      *
-     * @return timestamp
+     * @return timestamp, as an ISO-8601 string
      */
     public String getTimestamp () {
-        return timestamp;
+        return placedAt == null ? legacyTimestamp : Instant.ofEpochMilli( placedAt ).toString();
+    }
+
+    /**
+     * Gets the time the order was placed
+     *
+     * @return epoch milliseconds, or null for an old order that has not been
+     *         migrated yet
+     */
+    public Long getPlacedAt () {
+        return placedAt;
     }
 
     @Override
@@ -258,20 +327,17 @@ public class CustomerOrder extends DomainObject {
             return false;
         }
         final CustomerOrder other = (CustomerOrder) obj;
-        System.out.println( Objects.equals( barista, other.barista ) && Objects.equals( customer, other.customer )
-                && enoughIngredients == other.enoughIngredients && Objects.equals( log, other.log )
-                && Objects.equals( recipe, other.recipe ) && status == other.status
-                && Objects.equals( timestamp, other.timestamp ) && Objects.equals( id, other.id ) );
         return Objects.equals( barista, other.barista ) && Objects.equals( customer, other.customer )
-                && enoughIngredients == other.enoughIngredients && Objects.equals( log, other.log )
-                && Objects.equals( recipe, other.recipe ) && status == other.status
-                && Objects.equals( timestamp, other.timestamp ) && Objects.equals( id, other.id );
+                && enoughIngredients == other.enoughIngredients
+                && Objects.equals( snapshot, other.snapshot ) && status == other.status
+                && Objects.equals( placedAt, other.placedAt ) && Objects.equals( id, other.id );
     }
 
     @Override
     public String toString () {
-        return "CustomerOrder [id=" + id + ", timestamp=" + timestamp + ", enoughIngredients=" + enoughIngredients
-                + ", status=" + status + ", barista=" + barista + ", customer=" + customer + ", recipe=" + recipe + "]";
+        return "CustomerOrder [id=" + id + ", timestamp=" + getTimestamp() + ", enoughIngredients=" + enoughIngredients
+                + ", status=" + status + ", barista=" + barista + ", customer=" + customer + ", recipe="
+                + getRecipeName() + "]";
     }
 
 }
@@ -0,0 +1,112 @@
+package edu.ncsu.csc.CoffeeMaker.models;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps each ingredient name to a small, dense integer id. Recipes and the
+ * Inventory use these ids to index primitive int arrays of amounts, so that
+ * checking and deducting ingredients is a plain array scan instead of a string
+ * comparison per pair of ingredients.
+ *
+ * Ids are handed out in the order names are first seen and are never reused or
+ * removed. They are only stable for the lifetime of the JVM and must not be
+ * persisted.
+ */
+public final class IngredientDictionary {
+
+    /** Returned by lookup for names that have not been assigned an id */
+    public static final int                     UNKNOWN = -1;
+
+    /** Ids for every name seen so far */
+    private static final Map<String, Integer>   IDS     = new ConcurrentHashMap<String, Integer>();
+
+    /** Names indexed by id */
+    private static volatile String[]            names   = new String[16];
+
+    /** Number of ids handed out */
+    private static volatile int                 size    = 0;
+
+    /**
+     * Not instantiable
+     */
+    private IngredientDictionary () {
+    }
+
+    /**
+     * Returns the id for an ingredient name, assigning a new one if the name
+     * has not been seen before
+     *
+     * @param name
+     *            the ingredient name
+     * @return the id of the name
+     * @throws IllegalArgumentException
+     *             if the name is null
+     */
+    public static int idOf ( final String name ) {
+        if ( name == null ) {
+            throw new IllegalArgumentException( "Ingredient name cannot be null" );
+        }
+        final Integer id = IDS.get( name );
+        if ( id != null ) {
+            return id;
+        }
+        synchronized ( IDS ) {
+            final Integer existing = IDS.get( name );
+            if ( existing != null ) {
+                return existing;
+            }
+            final int assigned = size;
+            if ( assigned == names.length ) {
+                names = Arrays.copyOf( names, assigned * 2 );
+            }
+            names[assigned] = name;
+            IDS.put( name, assigned );
+            size = assigned + 1;
+            return assigned;
+        }
+    }
+
+    /**
+     * Returns the id for an ingredient name without assigning one
+     *
+     * @param name
+     *            the ingredient name
+     * @return the id of the name, or UNKNOWN if it has not been seen
+     */
+    public static int lookup ( final String name ) {
+        if ( name == null ) {
+            return UNKNOWN;
+        }
+        final Integer id = IDS.get( name );
+        return id == null ? UNKNOWN : id;
+    }
+
+    /**
+     * Returns the ingredient name for an id
+     *
+     * @param id
+     *            the id
+     * @return the name the id was assigned to
+     * @throws IllegalArgumentException
+     *             if the id has not been assigned
+     */
+    public static String nameOf ( final int id ) {
+        if ( id < 0 || id >= size ) {
+            throw new IllegalArgumentException( "Unknown ingredient id " + id );
+        }
+        return names[id];
+    }
+
+    /**
+     * Returns how many ids have been assigned, which is also the length needed
+     * for an array indexed by every id
+     *
+     * @return number of ids
+     */
+    public static int size () {
+        return size;
+    }
+
+}
@@ -1,8 +1,7 @@
 package edu.ncsu.csc.CoffeeMaker.models;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
@@ -10,6 +9,9 @@ import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.OneToMany;
+import javax.persistence.Transient;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 /**
  * Inventory for the coffee maker. Inventory is tied to the database using
@@ -31,6 +33,21 @@ public class Inventory extends DomainObject {
     @OneToMany ( cascade = CascadeType.ALL, fetch = FetchType.EAGER )
     private List<Ingredient> ingredients;
 
+    /** Marks an IngredientDictionary id that is not in the inventory */
+    public static final int  ABSENT = -1;
+
+    /**
+     * Amount of each ingredient, indexed by IngredientDictionary id, with
+     * ABSENT for ingredients not in the inventory. Built from the ingredients
+     * list on first use and kept in step with it afterwards.
+     */
+    @Transient
+    private transient int[]        stock;
+
+    /** The Ingredient holding each amount in stock, indexed the same way */
+    @Transient
+    private transient Ingredient[] entries;
+
     /**
      * Empty constructor for Hibernate
      */
@@ -86,6 +103,47 @@ public class Inventory extends DomainObject {
      */
     public void setIngredients ( final List<Ingredient> ingredients ) {
         this.ingredients = ingredients;
+        this.stock = null;
+        this.entries = null;
+    }
+
+    /**
+     * Returns the amount of each ingredient as an array indexed by
+     * IngredientDictionary id, with ABSENT for ingredients that are not in the
+     * inventory. The array may be shorter than the dictionary; ids past its end
+     * are absent.
+     *
+     * The array is shared and must not be modified by callers.
+     *
+     * @return the stock vector
+     */
+    @JsonIgnore
+    public int[] getStock () {
+        if ( stock == null ) {
+            compileStock();
+        }
+        return stock;
+    }
+
+    /**
+     * Builds the stock vector and entry index from the ingredients list
+     */
+    private void compileStock () {
+        int length = 0;
+        final int[] ids = new int[ingredients.size()];
+        for ( int i = 0; i < ids.length; i++ ) {
+            ids[i] = IngredientDictionary.idOf( ingredients.get( i ).getName() );
+            length = Math.max( length, ids[i] + 1 );
+        }
+        final int[] amounts = new int[length];
+        final Ingredient[] index = new Ingredient[length];
+        Arrays.fill( amounts, ABSENT );
+        for ( int i = 0; i < ids.length; i++ ) {
+            amounts[ids[i]] = ingredients.get( i ).getAmount();
+            index[ids[i]] = ingredients.get( i );
+        }
+        stock = amounts;
+        entries = index;
     }
 
     /**
@@ -110,6 +168,8 @@ public class Inventory extends DomainObject {
         final Ingredient ing = findIngredient( name );
         if ( ing == null ) {
             ingredients.add( new Ingredient( name, amt ) );
+            stock = null;
+            entries = null;
         }
         else {
             setIngredientByReference( ing, amt );
@@ -127,6 +187,9 @@ public class Inventory extends DomainObject {
      */
     private void setIngredientByReference ( final Ingredient ing, final Integer amt ) {
         ing.setAmount( amt );
+        if ( stock != null ) {
+            stock[IngredientDictionary.lookup( ing.getName() )] = amt;
+        }
     }
 
     /**
@@ -180,52 +243,41 @@ public class Inventory extends DomainObject {
      * @return true if enough ingredients to make the beverage
      */
     public boolean enoughIngredients ( final Recipe r ) {
-        for ( final Ingredient i : ingredients ) {
-            for ( final Ingredient current : r.getIngredients() ) {
-                if ( i.getName().equals( current.getName() ) ) {
-                    if ( i.getAmount() < current.getAmount() ) {
-                        return false;
-                    }
-                }
+        final int[] demand = r.getDemand();
+        final int[] amounts = getStock();
+        final int n = Math.min( demand.length, amounts.length );
+        for ( int id = 0; id < n; id++ ) {
+            // ingredients missing from the inventory are not checked
+            if ( demand[id] != 0 && amounts[id] != ABSENT && amounts[id] < demand[id] ) {
+                return false;
             }
         }
         return true;
     }
 
     /**
-     * Removes the ingredients used to make the specified recipe. Assumes that
-     * the user has checked that there are enough ingredients to make
+     * Removes the ingredients used to make the specified recipe, if there are
+     * enough of them.
      *
      * @param r
      *            recipe to make
      * @return true if recipe is made.
      */
     public boolean useIngredients ( final Recipe r ) {
-        // Store the ingredients in a HashMap, getting O(n) for
-        // useIngredients
-        final Map<String, Integer> recipeMap = new HashMap<>();
-        final List<Ingredient> recipeIngredients = r.getIngredients();
-        for ( final Ingredient ing : recipeIngredients ) {
-            recipeMap.put( ing.getName(), ing.getAmount() );
+        if ( !enoughIngredients( r ) ) {
+            return false;
         }
 
-        if ( enoughIngredients( r ) ) {
-            for ( final Ingredient ing : this.getIngredients() ) {
-                final Integer amt = recipeMap.get( ing.getName() );
-
-                // Skip irrelevant ingredients
-                if ( amt == null ) {
-                    continue;
-                }
-
-                setIngredientByReference( ing, ing.getAmount() - amt );
+        final int[] demand = r.getDemand();
+        final int[] amounts = stock;
+        final int n = Math.min( demand.length, amounts.length );
+        for ( int id = 0; id < n; id++ ) {
+            if ( demand[id] != 0 && amounts[id] != ABSENT ) {
+                amounts[id] -= demand[id];
+                entries[id].setAmount( amounts[id] );
             }
-
-            return true;
-        }
-        else {
-            return false;
         }
+        return true;
     }
 
     /**
@@ -297,13 +349,9 @@ public class Inventory extends DomainObject {
      * @return the Ingredient, or null if not found
      */
     private Ingredient findIngredient ( final String name ) {
-        for ( final Ingredient ing : this.getIngredients() ) {
-            if ( ing.getName().equals( name ) ) {
-                return ing;
-            }
-        }
-
-        return null;
+        final int id = IngredientDictionary.lookup( name );
+        getStock();
+        return id == IngredientDictionary.UNKNOWN || id >= entries.length ? null : entries[id];
     }
 
     /**
@@ -0,0 +1,205 @@
+package edu.ncsu.csc.CoffeeMaker.models;
+
+import java.time.Instant;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+
+/**
+ * A single change of state of a CustomerOrder. Recorded by the order as it
+ * moves through its state machine, then stored in its own table by
+ * OrderService when the order is saved and handed to the
+ * OrderTransitionListeners.
+ *
+ * Each row is a few numbers: the order id, the states as ordinals, the time in
+ * epoch milliseconds and the id of the user who caused it. Orders do not load
+ * their transitions; they are only read for an order's history.
+ */
+@Entity
+@Table ( name = "order_transition", indexes = @Index ( columnList = "order_id, id" ) )
+public class OrderTransition extends DomainObject {
+
+    /** The unique ID for the transition */
+    @Id
+    @GeneratedValue
+    private Long    id;
+
+    /** id of the order that changed state */
+    @Column ( name = "order_id" )
+    private Long    orderId;
+
+    /** Ordinal of the state the order left, or null when it was just created */
+    @Column ( name = "from_state" )
+    private Byte    fromState;
+
+    /** Ordinal of the state the order entered */
+    @Column ( name = "to_state", nullable = false )
+    private byte    toState;
+
+    /** When the transition happened, in epoch milliseconds */
+    @Column ( name = "occurred_at", nullable = false )
+    private long    timestamp;
+
+    /** id of the user who caused the transition, if known */
+    @Column ( name = "actor_id" )
+    private Long    actorId;
+
+    /**
+     * Username of the user who caused the transition, kept until OrderService
+     * resolves it to actorId
+     */
+    @Transient
+    private transient String actorName;
+
+    /** Hibernate constructor */
+    public OrderTransition () {
+    }
+
+    /**
+     * Creates a transition that happened now
+     *
+     * @param from
+     *            the previous state, or null for a new order
+     * @param to
+     *            the new state
+     */
+    public OrderTransition ( final OrderEnum from, final OrderEnum to ) {
+        this( from, to, System.currentTimeMillis() );
+    }
+
+    /**
+     * Creates a transition that happened at a given time
+     *
+     * @param from
+     *            the previous state, or null for a new order
+     * @param to
+     *            the new state
+     * @param timestamp
+     *            when it happened, in epoch milliseconds
+     */
+    public OrderTransition ( final OrderEnum from, final OrderEnum to, final long timestamp ) {
+        this.fromState = from == null ? null : (byte) from.ordinal();
+        this.toState = (byte) to.ordinal();
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Sets the username of the user who caused the transition
+     *
+     * @param actorName
+     *            the username, or null if not known
+     */
+    public void setActorName ( final String actorName ) {
+        this.actorName = actorName;
+    }
+
+    /**
+     * Gets the username of the user who caused the transition, if it has not
+     * been stored yet
+     *
+     * @return the username, or null if not known
+     */
+    @JsonIgnore
+    public String getActorName () {
+        return actorName;
+    }
+
+    /**
+     * Ties the transition to the order it belongs to and the user who caused
+     * it, before it is stored
+     *
+     * @param order
+     *            id of the order
+     * @param actor
+     *            id of the user, or null if not known
+     */
+    public void attach ( final Long order, final Long actor ) {
+        this.orderId = order;
+        this.actorId = actor;
+    }
+
+    /**
+     * Gets the ID
+     *
+     * @return the ID
+     */
+    @Override
+    public Long getId () {
+        return id;
+    }
+
+    /**
+     * Gets the id of the order that changed state
+     *
+     * @return the order id
+     */
+    public Long getOrderId () {
+        return orderId;
+    }
+
+    /**
+     * Gets the state the order left
+     *
+     * @return the previous state, or null for a new order
+     */
+    public OrderEnum getFrom () {
+        return fromState == null ? null : OrderEnum.values()[fromState];
+    }
+
+    /**
+     * Gets the state the order entered
+     *
+     * @return the new state
+     */
+    public OrderEnum getTo () {
+        return OrderEnum.values()[toState];
+    }
+
+    /**
+     * Gets when the transition happened
+     *
+     * @return epoch milliseconds
+     */
+    public long getTimestamp () {
+        return timestamp;
+    }
+
+    /**
+     * Gets the id of the user who caused the transition
+     *
+     * @return the user id, or null if not known
+     */
+    public Long getActorId () {
+        return actorId;
+    }
+
+    /**
+     * Describes the transition the way the order log used to
+     *
+     * @param customer
+     *            name of the customer who placed the order
+     * @return a line such as "IN_QUEUE => IN_PROGRESS at 2024-01-01T12:00:00Z"
+     */
+    public String describe ( final String customer ) {
+        final Instant at = Instant.ofEpochMilli( timestamp );
+        if ( fromState == null ) {
+            return "Order Created in state " + getTo().name() + " by " + customer + " at " + at;
+        }
+        return getFrom().name() + " => " + getTo().name() + " at " + at;
+    }
+
+    @Override
+    public String toString () {
+        return ( fromState == null ? "NEW" : getFrom().name() ) + " => " + getTo().name();
+    }
+
+}
@@ -8,8 +8,11 @@ import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.OneToMany;
+import javax.persistence.Transient;
 import javax.validation.constraints.Min;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Recipe for the coffee maker. Recipe is tied to the database using Hibernate
  * libraries. See RecipeRepository and RecipeService for the other two pieces
@@ -37,6 +40,14 @@ public class Recipe extends DomainObject {
     @OneToMany ( cascade = CascadeType.ALL, fetch = FetchType.EAGER )
     private List<Ingredient> ingredients;
 
+    /**
+     * Amount of each ingredient needed, indexed by IngredientDictionary id.
+     * Compiled from the ingredients list on first use and discarded whenever
+     * the recipe's ingredients change.
+     */
+    @Transient
+    private transient int[]  demand;
+
     /**
      * Creates a default recipe for the coffee maker.
      */
@@ -185,6 +196,7 @@ public class Recipe extends DomainObject {
         for ( final Ingredient i : ingredients ) {
             if ( i.getName().equals( name ) ) {
                 i.setAmount( amount );
+                demand = null;
                 return;
             }
         }
@@ -212,6 +224,7 @@ public class Recipe extends DomainObject {
             }
         }
 
+        demand = null;
         return ingredients.add( ing );
     }
 
@@ -232,6 +245,7 @@ public class Recipe extends DomainObject {
 
         for ( final Ingredient i : ingredients ) {
             if ( i.getName().equals( ing.getName() ) ) {
+                demand = null;
                 return ingredients.remove( i );
             }
         }
@@ -255,6 +269,51 @@ public class Recipe extends DomainObject {
         this.name = r2.getName();
         this.ingredients = r2.getIngredients();
         this.price = r2.getPrice();
+        this.demand = null;
+    }
+
+    /**
+     * Returns the amount of each ingredient this recipe needs as an array
+     * indexed by IngredientDictionary id. Ingredients the recipe does not use
+     * are 0, and the array may be shorter than the dictionary if ingredients
+     * were added to it after the recipe was compiled.
+     *
+     * The array is shared and must not be modified by callers. Changes made to
+     * the list returned by getIngredients() are not picked up; use the
+     * add/remove/set methods on the recipe instead.
+     *
+     * @return the compiled demand vector
+     */
+    @JsonIgnore
+    public int[] getDemand () {
+        int[] compiled = demand;
+        if ( compiled == null ) {
+            compiled = compileDemand();
+            demand = compiled;
+        }
+        return compiled;
+    }
+
+    /**
+     * Builds the demand vector from the ingredients list
+     *
+     * @return a new demand vector
+     */
+    private int[] compileDemand () {
+        if ( ingredients == null || ingredients.isEmpty() ) {
+            return new int[0];
+        }
+        int length = 0;
+        final int[] ids = new int[ingredients.size()];
+        for ( int i = 0; i < ids.length; i++ ) {
+            ids[i] = IngredientDictionary.idOf( ingredients.get( i ).getName() );
+            length = Math.max( length, ids[i] + 1 );
+        }
+        final int[] compiled = new int[length];
+        for ( int i = 0; i < ids.length; i++ ) {
+            compiled[ids[i]] += ingredients.get( i ).getAmount();
+        }
+        return compiled;
     }
 
     /**
@@ -0,0 +1,109 @@
+package edu.ncsu.csc.CoffeeMaker.models;
+
+import java.util.Objects;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+
+/**
+ * The recipe an order was placed for, as it was when the order was placed.
+ * Stored in the order's own row, so reading an order never joins the recipe or
+ * its ingredients, and editing the recipe later does not change what the order
+ * cost.
+ */
+@Embeddable
+public class RecipeSnapshot {
+
+    /** Id of the recipe */
+    @Column ( name = "ordered_recipe_id" )
+    private Long    id;
+
+    /** Name of the recipe */
+    @Column ( name = "recipe_name" )
+    private String  name;
+
+    /** Price of the recipe */
+    @Column ( name = "recipe_price" )
+    private Integer price;
+
+    /** Hibernate constructor */
+    public RecipeSnapshot () {
+    }
+
+    /**
+     * Takes a snapshot of a recipe
+     *
+     * @param recipe
+     *            the recipe
+     */
+    public RecipeSnapshot ( final Recipe recipe ) {
+        this( recipe.getId(), recipe.getName(), recipe.getPrice() );
+    }
+
+    /**
+     * Creates a snapshot from its parts
+     *
+     * @param id
+     *            id of the recipe
+     * @param name
+     *            name of the recipe
+     * @param price
+     *            price of the recipe
+     */
+    public RecipeSnapshot ( final Long id, final String name, final Integer price ) {
+        this.id = id;
+        this.name = name;
+        this.price = price;
+    }
+
+    /**
+     * Gets the id of the recipe
+     *
+     * @return the id
+     */
+    public Long getId () {
+        return id;
+    }
+
+    /**
+     * Gets the name of the recipe
+     *
+     * @return the name
+     */
+    public String getName () {
+        return name;
+    }
+
+    /**
+     * Gets the price of the recipe when the order was placed
+     *
+     * @return the price
+     */
+    public Integer getPrice () {
+        return price;
+    }
+
+    @Override
+    public boolean equals ( final Object obj ) {
+        if ( this == obj ) {
+            return true;
+        }
+        if ( obj == null || getClass() != obj.getClass() ) {
+            return false;
+        }
+        final RecipeSnapshot other = (RecipeSnapshot) obj;
+        return Objects.equals( id, other.id ) && Objects.equals( name, other.name )
+                && Objects.equals( price, other.price );
+    }
+
+    @Override
+    public int hashCode () {
+        return Objects.hash( id, name, price );
+    }
+
+    @Override
+    public String toString () {
+        return "RecipeSnapshot [id=" + id + ", name=" + name + ", price=" + price + "]";
+    }
+
+}
@@ -0,0 +1,150 @@
+package edu.ncsu.csc.CoffeeMaker.models;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+import edu.ncsu.csc.CoffeeMaker.models.enums.SalesGranularity;
+
+/**
+ * One cell of the sales rollup: how many orders of a recipe entered a state
+ * during a time bucket, and the revenue they earned. Maintained by SalesRollup.
+ */
+@Entity
+@Table ( name = "sales_bucket", indexes = {
+        @Index ( columnList = "granularity, bucket_start, recipe, status", unique = true ),
+        @Index ( columnList = "bucket_start" ) } )
+public class SalesBucket extends DomainObject {
+
+    /** The unique ID for the bucket */
+    @Id
+    @GeneratedValue
+    private Long             id;
+
+    /** Size of the bucket */
+    @Enumerated ( EnumType.STRING )
+    @Column ( nullable = false )
+    private SalesGranularity granularity;
+
+    /** Start of the bucket, in epoch milliseconds */
+    @Column ( name = "bucket_start", nullable = false )
+    private long             bucketStart;
+
+    /** Name of the recipe ordered */
+    @Column ( nullable = false )
+    private String           recipe;
+
+    /** State the orders entered */
+    @Enumerated ( EnumType.STRING )
+    @Column ( nullable = false )
+    private OrderEnum        status;
+
+    /** Number of orders */
+    @Column ( nullable = false )
+    private long             orders;
+
+    /** Revenue earned by the orders */
+    @Column ( nullable = false )
+    private long             revenue;
+
+    /** Hibernate constructor */
+    public SalesBucket () {
+    }
+
+    /**
+     * Creates a bucket
+     *
+     * @param granularity
+     *            size of the bucket
+     * @param bucketStart
+     *            start of the bucket, in epoch milliseconds
+     * @param recipe
+     *            name of the recipe
+     * @param status
+     *            state the orders entered
+     * @param orders
+     *            number of orders
+     * @param revenue
+     *            revenue earned
+     */
+    public SalesBucket ( final SalesGranularity granularity, final long bucketStart, final String recipe,
+            final OrderEnum status, final long orders, final long revenue ) {
+        this.granularity = granularity;
+        this.bucketStart = bucketStart;
+        this.recipe = recipe;
+        this.status = status;
+        this.orders = orders;
+        this.revenue = revenue;
+    }
+
+    /**
+     * Gets the ID
+     *
+     * @return the ID
+     */
+    @Override
+    public Long getId () {
+        return id;
+    }
+
+    /**
+     * Gets the size of the bucket
+     *
+     * @return the granularity
+     */
+    public SalesGranularity getGranularity () {
+        return granularity;
+    }
+
+    /**
+     * Gets the start of the bucket
+     *
+     * @return epoch milliseconds
+     */
+    public long getBucketStart () {
+        return bucketStart;
+    }
+
+    /**
+     * Gets the name of the recipe ordered
+     *
+     * @return the recipe name
+     */
+    public String getRecipe () {
+        return recipe;
+    }
+
+    /**
+     * Gets the state the orders entered
+     *
+     * @return the state
+     */
+    public OrderEnum getStatus () {
+        return status;
+    }
+
+    /**
+     * Gets the number of orders
+     *
+     * @return the count
+     */
+    public long getOrders () {
+        return orders;
+    }
+
+    /**
+     * Gets the revenue earned by the orders
+     *
+     * @return the revenue
+     */
+    public long getRevenue () {
+        return revenue;
+    }
+
+}
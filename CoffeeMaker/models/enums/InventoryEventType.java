@@ -0,0 +1,52 @@
+package edu.ncsu.csc.CoffeeMaker.models.enums;
+
+/**
+ * The kinds of change recorded in the InventoryJournal
+ */
+public enum InventoryEventType {
+    /**
+     * RESTOCK: An amount was added to an ingredient
+     */
+    RESTOCK,
+
+    /**
+     * DEDUCT: An amount was used up by making coffee
+     */
+    DEDUCT,
+
+    /**
+     * SET: An ingredient was added to the Inventory or its amount was edited
+     * directly
+     */
+    SET,
+
+    /**
+     * ADJUST: An amount was added or removed by hand; the amount may be
+     * negative
+     */
+    ADJUST;
+
+    /**
+     * Applies an event of this type to an ingredient amount
+     *
+     * @param current
+     *            the amount before the event, or null if the ingredient was not
+     *            in the Inventory
+     * @param amount
+     *            the amount recorded in the event
+     * @return the amount after the event
+     */
+    public int apply ( final Integer current, final int amount ) {
+        final int before = current == null ? 0 : current;
+        switch ( this ) {
+            case RESTOCK:
+                return before + amount;
+            case DEDUCT:
+                return before - amount;
+            case ADJUST:
+                return before + amount;
+            default:
+                return amount;
+        }
+    }
+}
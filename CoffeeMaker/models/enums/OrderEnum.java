@@ -1,7 +1,13 @@
 package edu.ncsu.csc.CoffeeMaker.models.enums;
 
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+
 /**
- * The values for the state machine that dictates CustomerOrder state
+ * The values for the state machine that dictates CustomerOrder state. The
+ * legal transitions are kept in a table built once, so checking one is a
+ * lookup.
  *
  * @author Jaden Abrams
  *
@@ -41,4 +47,28 @@ public enum OrderEnum {
      * is to be discarded
      */
     CANCELLED;
+
+    /** The states each state may move to */
+    private static final Map<OrderEnum, EnumSet<OrderEnum>> TRANSITIONS = new EnumMap<OrderEnum, EnumSet<OrderEnum>>(
+            OrderEnum.class );
+
+    static {
+        TRANSITIONS.put( IN_QUEUE, EnumSet.of( IN_PROGRESS, NOT_ENOUGH_INGREDIENTS, CANCELLED ) );
+        TRANSITIONS.put( IN_PROGRESS, EnumSet.of( IN_QUEUE, NOT_ENOUGH_INGREDIENTS, CANCELLED, COMPLETED ) );
+        TRANSITIONS.put( COMPLETED, EnumSet.of( PICKED_UP ) );
+        TRANSITIONS.put( PICKED_UP, EnumSet.noneOf( OrderEnum.class ) );
+        TRANSITIONS.put( NOT_ENOUGH_INGREDIENTS, EnumSet.of( CANCELLED, IN_QUEUE, IN_PROGRESS ) );
+        TRANSITIONS.put( CANCELLED, EnumSet.noneOf( OrderEnum.class ) );
+    }
+
+    /**
+     * Checks whether an order in this state may move to another
+     *
+     * @param next
+     *            the state to move to
+     * @return true if the transition is legal
+     */
+    public boolean canTransitionTo ( final OrderEnum next ) {
+        return next != null && TRANSITIONS.get( this ).contains( next );
+    }
 }
@@ -0,0 +1,55 @@
+package edu.ncsu.csc.CoffeeMaker.models.enums;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * The sizes of time bucket sales are rolled up into. Buckets start on UTC
+ * boundaries; weeks start on Monday.
+ */
+public enum SalesGranularity {
+    /**
+     * MINUTE: Where new sales are recorded
+     */
+    MINUTE,
+
+    /**
+     * HOUR: Minutes are compacted into hours once they are old enough
+     */
+    HOUR,
+
+    /**
+     * DAY: Hours are compacted into days once they are old enough
+     */
+    DAY,
+
+    /**
+     * WEEK: Only used for reports; built from the finer buckets
+     */
+    WEEK;
+
+    /**
+     * Finds the start of the bucket a time falls in
+     *
+     * @param millis
+     *            the time, in epoch milliseconds
+     * @return the start of its bucket, in epoch milliseconds
+     */
+    public long floor ( final long millis ) {
+        final Instant at = Instant.ofEpochMilli( millis );
+        switch ( this ) {
+            case MINUTE:
+                return at.truncatedTo( ChronoUnit.MINUTES ).toEpochMilli();
+            case HOUR:
+                return at.truncatedTo( ChronoUnit.HOURS ).toEpochMilli();
+            case DAY:
+                return at.truncatedTo( ChronoUnit.DAYS ).toEpochMilli();
+            default:
+                return at.atOffset( ZoneOffset.UTC ).truncatedTo( ChronoUnit.DAYS )
+                        .with( TemporalAdjusters.previousOrSame( DayOfWeek.MONDAY ) ).toInstant().toEpochMilli();
+        }
+    }
+}
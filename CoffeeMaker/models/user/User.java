@@ -1,6 +1,7 @@
 package edu.ncsu.csc.CoffeeMaker.models.user;
 
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
@@ -16,6 +17,8 @@ import javax.persistence.OneToMany;
 import javax.persistence.OneToOne;
 import javax.persistence.Table;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
 import edu.ncsu.csc.CoffeeMaker.models.DomainObject;
 import edu.ncsu.csc.CoffeeMaker.models.Ingredient;
@@ -39,14 +42,17 @@ public class User extends DomainObject {
     @GeneratedValue ( strategy = GenerationType.IDENTITY )
     private Long               id;
 
-    /** the Staff's current order */
-    @OneToMany ( cascade = CascadeType.ALL, fetch = FetchType.EAGER )
+    /**
+     * the Staff's current order. Loaded only when used; a customer's orders are
+     * read a page at a time through OrderService instead
+     */
+    @OneToMany ( cascade = CascadeType.ALL, fetch = FetchType.LAZY )
     private Set<CustomerOrder> currentOrders;
 
     @OneToOne
     private CustomerOrder      workingOrder;
-    /** the Customer's order history */
-    @OneToMany ( cascade = CascadeType.ALL, fetch = FetchType.EAGER )
+    /** the Customer's order history. Loaded only when used */
+    @OneToMany ( cascade = CascadeType.ALL, fetch = FetchType.LAZY )
     private Set<CustomerOrder> orderHistory;
 
     private String             username;
@@ -103,7 +109,7 @@ public class User extends DomainObject {
         if ( orders.getStaff() != null ) {
             return false;
         }
-        final boolean status = orders.setStaffMember( this.getUsername() );
+        final boolean status = orders.setStaffMember( this.getUsername(), this.getUsername() );
         if ( status ) {
             workingOrder = orders;
         }
@@ -120,7 +126,7 @@ public class User extends DomainObject {
         if ( workingOrder == null ) {
             return false;
         }
-        workingOrder.setStaffMember( null );
+        workingOrder.setStaffMember( null, getUsername() );
         workingOrder = null;
         return true;
     }
@@ -133,7 +139,7 @@ public class User extends DomainObject {
      */
     public boolean fulfillCurrentOrder () {
         if ( workingOrder != null ) {
-            final boolean status = workingOrder.updateOrder( OrderEnum.COMPLETED );
+            final boolean status = workingOrder.updateOrder( OrderEnum.COMPLETED, getUsername() );
             if ( status ) {
                 workingOrder = null;
             }
@@ -149,7 +155,7 @@ public class User extends DomainObject {
      */
     public boolean cancelOrder () {
         if ( workingOrder != null ) {
-            workingOrder.updateOrder( OrderEnum.CANCELLED );
+            workingOrder.updateOrder( OrderEnum.CANCELLED, getUsername() );
             workingOrder = null;
         }
         return true;
@@ -161,13 +167,12 @@ public class User extends DomainObject {
      *
      * @param order
      *            the order to remove
-     * @return true if the customer has the order and it is removed, false if it
-     *         doesn't have it
+     * @return true if the order is the customer's and it is cancelled, false if
+     *         it isn't theirs
      */
     public boolean cancelOrder ( CustomerOrder order ) {
-        if ( currentOrders.contains( order ) ) {
-            order.updateOrder( OrderEnum.CANCELLED );
-            currentOrders.remove( order );
+        if ( getUsername().equals( order.getCustomer() ) ) {
+            order.updateOrder( OrderEnum.CANCELLED, getUsername() );
             return true;
         }
         return false;
@@ -216,9 +221,9 @@ public class User extends DomainObject {
      * @return the placed CustomerOrder
      */
     public CustomerOrder placeOrder ( Recipe recipe ) {
-        final CustomerOrder ret = new CustomerOrder( getUsername(), recipe );
-        currentOrders.add( ret );
-        return ret;
+        // the order records its customer, so it is not added to currentOrders;
+        // doing so would load every order the customer has placed
+        return new CustomerOrder( getUsername(), recipe );
     }
 
     /**
@@ -230,6 +235,7 @@ public class User extends DomainObject {
         return workingOrder;
     }
 
+    @JsonIgnore
     public Set<CustomerOrder> getPlacedOrders () {
         return currentOrders;
     }
@@ -239,6 +245,7 @@ public class User extends DomainObject {
      *
      * @return the order history
      */
+    @JsonIgnore
     public Set<CustomerOrder> getOrderHistory () {
         return orderHistory;
     }
@@ -249,22 +256,32 @@ public class User extends DomainObject {
      * @return if the order was successfully picked up
      */
     public boolean pickupOrder ( CustomerOrder order ) {
-        if ( currentOrders.contains( order ) ) {
-            final boolean status = order.updateOrder( OrderEnum.PICKED_UP );
-            if ( status ) {
-                currentOrders.remove( order );
-            }
-            return status;
+        if ( getUsername().equals( order.getCustomer() ) ) {
+            return order.updateOrder( OrderEnum.PICKED_UP, getUsername() );
         }
         return false;
     }
 
+    /**
+     * Forgets the given orders, so they can be removed from the database
+     *
+     * @param ids
+     *            ids of the orders
+     */
+    public void releaseOrders ( final Collection<Long> ids ) {
+        currentOrders.removeIf( order -> ids.contains( order.getId() ) );
+        orderHistory.removeIf( order -> ids.contains( order.getId() ) );
+        if ( workingOrder != null && ids.contains( workingOrder.getId() ) ) {
+            workingOrder = null;
+        }
+    }
+
     @Override
     public String toString () {
         if ( workingOrder == null ) {
             return "User [currentOrder=N/A" + ", id=" + getId() + ", name=" + getUsername() + "]";
         }
-        return "User [currentOrder=" + workingOrder.getRecipe().getName() + ", id=" + getId() + ", name()="
+        return "User [currentOrder=" + workingOrder.getRecipeName() + ", id=" + getId() + ", name()="
                 + getUsername() + "]";
     }
 
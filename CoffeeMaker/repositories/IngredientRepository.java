@@ -1,6 +1,15 @@
 package edu.ncsu.csc.CoffeeMaker.repositories;
 
+import java.util.Collection;
+import java.util.List;
+
+import javax.persistence.LockModeType;
+
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import edu.ncsu.csc.CoffeeMaker.models.Ingredient;
 
@@ -23,4 +32,85 @@ public interface IngredientRepository extends JpaRepository<Ingredient, Long> {
      */
 
     Ingredient findByName ( String name );
+
+    /**
+     * Subtracts the given amount from an Ingredient row in place, without
+     * loading it. The update is relative so that concurrent deductions do not
+     * overwrite each other.
+     *
+     * @param id
+     *            id of the Ingredient to update
+     * @param amount
+     *            amount to subtract
+     * @return number of rows updated
+     */
+    @Modifying
+    @Query ( "UPDATE Ingredient i SET i.amount = i.amount - :amount WHERE i.id = :id" )
+    int decrementAmount ( @Param ( "id" ) Long id, @Param ( "amount" ) Integer amount );
+
+    /**
+     * Subtracts the given amount from an Ingredient row in place, but only if
+     * the row has at least that much. The check and the update are one
+     * statement, so they are atomic in the database no matter how many
+     * CoffeeMaker instances share it.
+     *
+     * @param id
+     *            id of the Ingredient to update
+     * @param amount
+     *            amount to subtract
+     * @return 1 if the amount was subtracted, 0 if the row does not have
+     *         enough or does not exist
+     */
+    @Modifying
+    @Query ( "UPDATE Ingredient i SET i.amount = i.amount - :amount WHERE i.id = :id AND i.amount >= :amount" )
+    int decrementIfAvailable ( @Param ( "id" ) Long id, @Param ( "amount" ) Integer amount );
+
+    /**
+     * Finds the id of the Inventory's Ingredient row with the provided name
+     *
+     * @param name
+     *            Name of the Ingredient
+     * @return id of the row, null if the Inventory has no such ingredient
+     */
+    @Query ( "SELECT ing.id FROM Inventory inv JOIN inv.ingredients ing WHERE ing.name = :name" )
+    Long findInventoryIngredientId ( @Param ( "name" ) String name );
+
+    /**
+     * Adds a signed amount to an Ingredient row in place, but only if the
+     * result is not negative
+     *
+     * @param id
+     *            id of the Ingredient to update
+     * @param delta
+     *            amount to add; may be negative
+     * @return 1 if the amount was changed, 0 if it would have gone negative or
+     *         the row does not exist
+     */
+    @Modifying
+    @Query ( "UPDATE Ingredient i SET i.amount = i.amount + :delta WHERE i.id = :id AND i.amount + :delta >= 0" )
+    int adjustAmount ( @Param ( "id" ) Long id, @Param ( "delta" ) Integer delta );
+
+    /**
+     * Reads the current name and amount of some Ingredient rows straight from
+     * the database, bypassing any Ingredient objects already loaded
+     *
+     * @param ids
+     *            ids of the rows
+     * @return a [name, amount] pair per row
+     */
+    @Query ( "SELECT i.name, i.amount FROM Ingredient i WHERE i.id IN :ids" )
+    List<Object[]> findAmounts ( @Param ( "ids" ) Collection<Long> ids );
+
+    /**
+     * Loads some Ingredient rows and locks them against other writers until
+     * the transaction ends. Rows are locked in id order, so two transactions
+     * locking overlapping rows cannot deadlock.
+     *
+     * @param ids
+     *            ids of the rows
+     * @return the rows found, in id order
+     */
+    @Lock ( LockModeType.PESSIMISTIC_WRITE )
+    @Query ( "SELECT i FROM Ingredient i WHERE i.id IN :ids ORDER BY i.id" )
+    List<Ingredient> lockByIdIn ( @Param ( "ids" ) Collection<Long> ids );
 }
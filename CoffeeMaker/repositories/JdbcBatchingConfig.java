@@ -0,0 +1,36 @@
+package edu.ncsu.csc.CoffeeMaker.repositories;
+
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Turns on JDBC batching in Hibernate, so saving many rows in one flush, as
+ * OrderIngestion and OrderService.saveAll do, sends them in a few batched
+ * statements instead of one round trip each. Inserts and updates are ordered
+ * by table so that rows of different entities do not break up the batches.
+ * Settings made under spring.jpa.properties take precedence.
+ */
+@Configuration
+public class JdbcBatchingConfig implements HibernatePropertiesCustomizer {
+
+    /** Most statements sent in one batch */
+    @Value ( "${coffeemaker.jdbc.batch-size:50}" )
+    private int batchSize;
+
+    /**
+     * Adds the batching settings that have not been set already
+     *
+     * @param hibernateProperties
+     *            the properties Hibernate is started with
+     */
+    @Override
+    public void customize ( final Map<String, Object> hibernateProperties ) {
+        hibernateProperties.putIfAbsent( "hibernate.jdbc.batch_size", Integer.toString( batchSize ) );
+        hibernateProperties.putIfAbsent( "hibernate.order_inserts", "true" );
+        hibernateProperties.putIfAbsent( "hibernate.order_updates", "true" );
+    }
+
+}
@@ -1,8 +1,13 @@
 package edu.ncsu.csc.CoffeeMaker.repositories;
 
+import java.util.Collection;
 import java.util.List;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
 import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
@@ -35,9 +40,137 @@ public interface OrderRepository extends JpaRepository<CustomerOrder, Long> {
     List<CustomerOrder> findByStatus ( OrderEnum status );
 
     /**
-     * Returns all orders sorted by date ordered ascending
+     * Finds all orders that are of a certain status, oldest first
      *
-     * @return List of orders if found, null if none
+     * @param status
+     *            to search for
+     * @return List of orders, in the order they were placed
+     */
+    List<CustomerOrder> findByStatusOrderByIdAsc ( OrderEnum status );
+
+    /**
+     * Finds one page of orders after a cursor, oldest first, with optional
+     * filters. Paging is by keyset on (placedAt, id), which is also how the
+     * indexes are ordered, so every page costs the same however far into the
+     * history it is.
+     *
+     * @param afterTime
+     *            placedAt of the last order on the previous page; -1 for the
+     *            first page
+     * @param afterId
+     *            id of the last order on the previous page; 0 for the first
+     *            page
+     * @param status
+     *            only orders in this state, or null for any
+     * @param customer
+     *            only orders by this customer, or null for any
+     * @param from
+     *            only orders placed at or after this epoch millisecond
+     * @param to
+     *            only orders placed before this epoch millisecond
+     * @param page
+     *            limits how many orders are returned
+     * @return the page of orders, ordered by placedAt then id
+     */
+    @Query ( "SELECT o FROM CustomerOrder o WHERE ( o.placedAt > :afterTime "
+            + "OR ( o.placedAt = :afterTime AND o.id > :afterId ) ) "
+            + "AND ( :status IS NULL OR o.status = :status ) AND ( :customer IS NULL OR o.customer = :customer ) "
+            + "AND o.placedAt >= :from AND o.placedAt < :to ORDER BY o.placedAt ASC, o.id ASC" )
+    List<CustomerOrder> findPage ( @Param ( "afterTime" ) long afterTime, @Param ( "afterId" ) long afterId,
+            @Param ( "status" ) OrderEnum status, @Param ( "customer" ) String customer, @Param ( "from" ) long from,
+            @Param ( "to" ) long to, Pageable page );
+
+    /**
+     * Counts the orders placed in a time range, using the placedAt index
+     *
+     * @param from
+     *            only orders placed at or after this epoch millisecond
+     * @param to
+     *            only orders placed before this epoch millisecond
+     * @return the number of orders
+     */
+    @Query ( "SELECT COUNT(o) FROM CustomerOrder o WHERE o.placedAt >= :from AND o.placedAt < :to" )
+    long countPlacedBetween ( @Param ( "from" ) long from, @Param ( "to" ) long to );
+
+    /**
+     * Finds orders placed before placedAt existed, which still need their
+     * timestamp migrated
+     *
+     * @param page
+     *            limits how many orders are returned
+     * @return [id, ISO-8601 timestamp] pairs
+     */
+    @Query ( "SELECT o.id, o.legacyTimestamp FROM CustomerOrder o WHERE o.placedAt IS NULL" )
+    List<Object[]> findUnmigratedTimestamps ( Pageable page );
+
+    /**
+     * Sets when an order was placed, without loading it
+     *
+     * @param id
+     *            id of the order
+     * @param placedAt
+     *            epoch milliseconds
+     * @return number of rows updated
+     */
+    @Modifying
+    @Query ( "UPDATE CustomerOrder o SET o.placedAt = :placedAt WHERE o.id = :id" )
+    int setPlacedAt ( @Param ( "id" ) Long id, @Param ( "placedAt" ) Long placedAt );
+
+    /**
+     * Finds orders placed before they stored a snapshot of their recipe, which
+     * still need one
+     *
+     * @param page
+     *            limits how many orders are returned
+     * @return [order id, recipe id, recipe name, recipe price, order status]
+     *         arrays
+     */
+    @Query ( "SELECT o.id, r.id, r.name, r.price, o.status FROM CustomerOrder o JOIN o.recipe r "
+            + "WHERE o.snapshot.name IS NULL" )
+    List<Object[]> findMissingRecipeSnapshots ( Pageable page );
+
+    /**
+     * Stores the snapshot of an order's recipe, without loading it
+     *
+     * @param id
+     *            id of the order
+     * @param recipeId
+     *            id of the recipe
+     * @param name
+     *            name of the recipe
+     * @param price
+     *            price of the recipe
+     * @return number of rows updated
+     */
+    @Modifying
+    @Query ( "UPDATE CustomerOrder o SET o.snapshot.id = :recipeId, o.snapshot.name = :name, "
+            + "o.snapshot.price = :price WHERE o.id = :id" )
+    int setRecipeSnapshot ( @Param ( "id" ) Long id, @Param ( "recipeId" ) Long recipeId,
+            @Param ( "name" ) String name, @Param ( "price" ) Integer price );
+
+    /**
+     * Adds up the price of every order in the given states
+     *
+     * @param states
+     *            the states to count
+     * @return the total price
+     */
+    @Query ( "SELECT COALESCE(SUM(o.snapshot.price), 0) FROM CustomerOrder o WHERE o.status IN :states" )
+    long sumPriceByStatusIn ( @Param ( "states" ) Collection<OrderEnum> states );
+
+    /**
+     * Finds orders in the given states that were placed before a time, oldest
+     * id first
+     *
+     * @param states
+     *            the states to look for
+     * @param before
+     *            latest placement time, exclusive, in epoch milliseconds
+     * @param page
+     *            how many orders to return
+     * @return the orders
      */
-    List<CustomerOrder> findAllByOrderByTimestamp ();
+    @Query ( "SELECT o FROM CustomerOrder o WHERE o.status IN :states AND o.placedAt < :before ORDER BY o.id" )
+    List<CustomerOrder> findPlacedBefore ( @Param ( "states" ) Collection<OrderEnum> states,
+            @Param ( "before" ) long before, Pageable page );
 }
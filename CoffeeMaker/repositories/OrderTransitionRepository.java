@@ -0,0 +1,93 @@
+package edu.ncsu.csc.CoffeeMaker.repositories;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
+
+/**
+ * Interface for the database, used by the Spring Boot framework. Allows saving
+ * and retrieving the transitions of Orders.
+ */
+public interface OrderTransitionRepository extends JpaRepository<OrderTransition, Long> {
+
+    /**
+     * Finds the transitions of an order, oldest first
+     *
+     * @param orderId
+     *            id of the order
+     * @return the transitions
+     */
+    List<OrderTransition> findByOrderIdOrderByIdAsc ( Long orderId );
+
+    /**
+     * Finds the transitions of several orders, oldest first
+     *
+     * @param orderIds
+     *            ids of the orders
+     * @return the transitions
+     */
+    List<OrderTransition> findByOrderIdInOrderByIdAsc ( Collection<Long> orderIds );
+
+    /**
+     * Deletes the transitions of several orders
+     *
+     * @param orderIds
+     *            ids of the orders
+     * @return number of transitions deleted
+     */
+    @Modifying
+    @Query ( "DELETE FROM OrderTransition t WHERE t.orderId IN :orderIds" )
+    int deleteByOrderIdIn ( @Param ( "orderIds" ) Collection<Long> orderIds );
+
+    /**
+     * Deletes the transitions of an order
+     *
+     * @param orderId
+     *            id of the order
+     * @return number of transitions deleted
+     */
+    @Modifying
+    @Query ( "DELETE FROM OrderTransition t WHERE t.orderId = :orderId" )
+    int deleteByOrderId ( @Param ( "orderId" ) Long orderId );
+
+    /**
+     * Finds orders that still have lines in the free-text log orders kept
+     * before transitions had their own table
+     *
+     * @param page
+     *            how many orders to return
+     * @return the order ids
+     */
+    @Query ( value = "SELECT DISTINCT customer_order_id FROM customer_order_log ORDER BY customer_order_id",
+            nativeQuery = true )
+    List<Number> findLegacyLogOrders ( Pageable page );
+
+    /**
+     * Reads the free-text log lines of some orders
+     *
+     * @param orderIds
+     *            ids of the orders
+     * @return each line as its order id and text
+     */
+    @Query ( value = "SELECT customer_order_id, log FROM customer_order_log WHERE customer_order_id IN :orderIds",
+            nativeQuery = true )
+    List<Object[]> findLegacyLog ( @Param ( "orderIds" ) Collection<Long> orderIds );
+
+    /**
+     * Deletes the free-text log lines of some orders, once they are migrated
+     *
+     * @param orderIds
+     *            ids of the orders
+     * @return number of lines deleted
+     */
+    @Modifying
+    @Query ( value = "DELETE FROM customer_order_log WHERE customer_order_id IN :orderIds", nativeQuery = true )
+    int deleteLegacyLog ( @Param ( "orderIds" ) Collection<Long> orderIds );
+}
@@ -1,5 +1,8 @@
 package edu.ncsu.csc.CoffeeMaker.repositories;
 
+import java.util.Collection;
+import java.util.List;
+
 import org.springframework.data.jpa.repository.JpaRepository;
 
 import edu.ncsu.csc.CoffeeMaker.models.Recipe;
@@ -23,4 +26,14 @@ public interface RecipeRepository extends JpaRepository<Recipe, Long> {
      */
     Recipe findByName ( String name );
 
+    /**
+     * Finds all Recipes whose name is in the provided collection, in a single
+     * query.
+     *
+     * @param names
+     *            Names of the recipes
+     * @return Found recipes, empty if none.
+     */
+    List<Recipe> findByNameIn ( Collection<String> names );
+
 }
@@ -0,0 +1,86 @@
+package edu.ncsu.csc.CoffeeMaker.repositories;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import edu.ncsu.csc.CoffeeMaker.models.SalesBucket;
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+import edu.ncsu.csc.CoffeeMaker.models.enums.SalesGranularity;
+
+/**
+ * Interface for the database, used by the Spring Boot framework. Allows saving
+ * and retrieving the buckets of the sales rollup.
+ */
+public interface SalesBucketRepository extends JpaRepository<SalesBucket, Long> {
+
+    /**
+     * Adds to an existing bucket
+     *
+     * @param granularity
+     *            size of the bucket
+     * @param bucketStart
+     *            start of the bucket
+     * @param recipe
+     *            name of the recipe
+     * @param status
+     *            state the orders entered
+     * @param orders
+     *            number of orders to add
+     * @param revenue
+     *            revenue to add
+     * @return 1 if the bucket exists, 0 if it does not
+     */
+    @Modifying
+    @Query ( "UPDATE SalesBucket b SET b.orders = b.orders + :orders, b.revenue = b.revenue + :revenue "
+            + "WHERE b.granularity = :granularity AND b.bucketStart = :bucketStart AND b.recipe = :recipe "
+            + "AND b.status = :status" )
+    int increment ( @Param ( "granularity" ) SalesGranularity granularity,
+            @Param ( "bucketStart" ) long bucketStart, @Param ( "recipe" ) String recipe,
+            @Param ( "status" ) OrderEnum status, @Param ( "orders" ) long orders,
+            @Param ( "revenue" ) long revenue );
+
+    /**
+     * Finds the buckets of every size that start in a time range
+     *
+     * @param from
+     *            earliest start, inclusive
+     * @param to
+     *            latest start, exclusive
+     * @param recipe
+     *            only buckets for this recipe, or null for all
+     * @return the buckets
+     */
+    @Query ( "SELECT b FROM SalesBucket b WHERE b.bucketStart >= :from AND b.bucketStart < :to "
+            + "AND ( :recipe IS NULL OR b.recipe = :recipe )" )
+    List<SalesBucket> findStartingBetween ( @Param ( "from" ) long from, @Param ( "to" ) long to,
+            @Param ( "recipe" ) String recipe );
+
+    /**
+     * Finds the buckets of one size that start before a time
+     *
+     * @param granularity
+     *            size of the buckets
+     * @param before
+     *            latest start, exclusive
+     * @return the buckets
+     */
+    List<SalesBucket> findByGranularityAndBucketStartLessThan ( SalesGranularity granularity, long before );
+
+    /**
+     * Deletes the buckets of one size that start before a time
+     *
+     * @param granularity
+     *            size of the buckets
+     * @param before
+     *            latest start, exclusive
+     * @return the number of buckets deleted
+     */
+    @Modifying
+    @Query ( "DELETE FROM SalesBucket b WHERE b.granularity = :granularity AND b.bucketStart < :before" )
+    int deleteOlderThan ( @Param ( "granularity" ) SalesGranularity granularity,
+            @Param ( "before" ) long before );
+}
@@ -6,6 +6,7 @@ import org.springframework.data.repository.query.Param;
 
 import edu.ncsu.csc.CoffeeMaker.models.user.User;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -36,4 +37,16 @@ public interface UserRepository extends JpaRepository<User, Long> {
      * @return found users with role
      */
     public List<User> findByRoleContainingIgnoreCase(String role);
+
+    /**
+     * Finds the users that refer to any of the given orders, as a current
+     * order, in their history or as the order they are working on
+     *
+     * @param ids
+     *            ids of the orders
+     * @return the users
+     */
+    @Query ( "SELECT DISTINCT u FROM User u LEFT JOIN u.currentOrders c LEFT JOIN u.orderHistory h "
+            + "LEFT JOIN u.workingOrder w WHERE c.id IN :ids OR h.id IN :ids OR w.id IN :ids" )
+    public List<User> findReferencingOrders ( @Param ( "ids" ) Collection<Long> ids );
 }
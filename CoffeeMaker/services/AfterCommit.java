@@ -0,0 +1,81 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Defers work until the current transaction commits, for in-memory state that
+ * must not get ahead of the database, or undoes it if the transaction rolls
+ * back
+ */
+final class AfterCommit {
+
+    /**
+     * Not instantiable
+     */
+    private AfterCommit () {
+    }
+
+    /**
+     * Runs the task once the current transaction commits, or immediately if
+     * there is no transaction. The task is dropped if the transaction rolls
+     * back. Exceptions from a deferred task are printed, since the transaction
+     * can no longer be affected by them.
+     *
+     * @param description
+     *            what the task does, for error messages
+     * @param task
+     *            the work to run
+     */
+    static void run ( final String description, final Runnable task ) {
+        if ( !TransactionSynchronizationManager.isSynchronizationActive() ) {
+            task.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronization() {
+            @Override
+            public void afterCommit () {
+                try {
+                    task.run();
+                }
+                catch ( final RuntimeException e ) {
+                    System.out.println( "Could not " + description + ": " + e );
+                }
+            }
+        } );
+    }
+
+    /**
+     * Runs the task if the current transaction rolls back, to undo in-memory
+     * changes that had to be made before it committed. Does nothing if there
+     * is no transaction. Exceptions from the task are printed.
+     *
+     * @param description
+     *            what the task does, for error messages
+     * @param task
+     *            the work to run
+     * @return true if the task was registered, false if there is no
+     *         transaction
+     */
+    static boolean onRollback ( final String description, final Runnable task ) {
+        if ( !TransactionSynchronizationManager.isSynchronizationActive() ) {
+            return false;
+        }
+        TransactionSynchronizationManager.registerSynchronization( new TransactionSynchronization() {
+            @Override
+            public void afterCompletion ( final int status ) {
+                if ( status != STATUS_ROLLED_BACK ) {
+                    return;
+                }
+                try {
+                    task.run();
+                }
+                catch ( final RuntimeException e ) {
+                    System.out.println( "Could not " + description + ": " + e );
+                }
+            }
+        } );
+        return true;
+    }
+
+}
@@ -0,0 +1,579 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.google.gson.Gson;
+
+import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+import edu.ncsu.csc.CoffeeMaker.models.user.User;
+
+/**
+ * Hands waiting orders to baristas instead of waiting for them to claim one.
+ * Only does so when coffeemaker.dispatch.mode is push; in the default pull
+ * mode baristas claim orders themselves and this only keeps the statistics, so
+ * the two modes can be compared.
+ *
+ * A barista is on shift while they have the assignment stream open. Each
+ * barista works on one order at a time, so the least loaded barista is an idle
+ * one, and of those the one who has been idle longest is given the order that
+ * has been waiting longest, through OrderService.claimNext. The assignment is
+ * then sent down the barista's stream as an assigned event. Dispatching runs
+ * whenever an order enters the queue or a barista finishes one, and on a
+ * timer in case anything was missed.
+ *
+ * Everything except the statistics is only used by the dispatcher thread.
+ */
+@Component
+public class BaristaDispatcher implements OrderTransitionListener {
+
+    /** Event sent when a barista is given an order */
+    public static final String       ASSIGNED    = "assigned";
+
+    /** Serializes event payloads */
+    private static final Gson        GSON        = new Gson();
+
+    /** pull or push */
+    @Value ( "${coffeemaker.dispatch.mode:pull}" )
+    private String                   mode;
+
+    /** How long an assignment stream stays open before it has to reconnect */
+    @Value ( "${coffeemaker.dispatch.timeout-ms:1800000}" )
+    private long                     timeout;
+
+    /** Claims orders for baristas; lazy since it notifies this listener */
+    @Lazy
+    @Autowired
+    private OrderService             orderService;
+
+    /** Looks up baristas */
+    @Autowired
+    private UserService              userService;
+
+    /** Tells whether any orders are waiting */
+    @Autowired
+    private OrderDispatchQueue       dispatchQueue;
+
+    /** Baristas on shift, by username */
+    private final Map<String, Shift> shifts      = new ConcurrentHashMap<String, Shift>();
+
+    /** When each waiting order entered the queue, in epoch milliseconds */
+    private final Map<Long, Long>    enqueuedAt  = new HashMap<Long, Long>();
+
+    /** Orders given out by the dispatcher whose claim has not been seen yet */
+    private final Set<Long>          pushed      = new HashSet<Long>();
+
+    /** Claims made by the dispatcher */
+    private final Tally              pushClaims  = new Tally();
+
+    /** Claims made by baristas themselves */
+    private final Tally              pullClaims  = new Tally();
+
+    /** Orders completed since startup */
+    private final AtomicLong         completed   = new AtomicLong();
+
+    /** When the statistics started, in epoch milliseconds */
+    private final long               startedAt   = System.currentTimeMillis();
+
+    /** The one thread that dispatches */
+    private ExecutorService          dispatcher;
+
+    /**
+     * Starts the dispatcher thread
+     */
+    @PostConstruct
+    public void start () {
+        dispatcher = Executors.newSingleThreadExecutor( task -> {
+            final Thread thread = new Thread( task, "barista-dispatch" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * Ends every shift and stops the dispatcher thread
+     */
+    @PreDestroy
+    public void stop () {
+        dispatcher.shutdown();
+        for ( final Shift shift : shifts.values() ) {
+            shift.emitter.complete();
+        }
+        shifts.clear();
+    }
+
+    /**
+     * Whether orders are pushed to baristas
+     *
+     * @return true in push mode
+     */
+    public boolean isPushMode () {
+        return "push".equalsIgnoreCase( mode );
+    }
+
+    /**
+     * Puts a barista on shift and opens the stream their assignments are sent
+     * on. The shift ends when the stream closes. Opening a second stream ends
+     * the first.
+     *
+     * @param username
+     *            the barista
+     * @return the assignment stream
+     */
+    public SseEmitter startShift ( final String username ) {
+        final SseEmitter emitter = new SseEmitter( timeout );
+        emitter.onCompletion( () -> submit( () -> endShift( username, emitter ) ) );
+        emitter.onTimeout( emitter::complete );
+        emitter.onError( e -> submit( () -> endShift( username, emitter ) ) );
+        submit( () -> {
+            final Shift shift = new Shift( username, emitter );
+            final User staff = userService.findByName( username );
+            if ( staff != null && isWorkingOn( staff, staff.getCurrentOrder() ) ) {
+                shift.orderId = staff.getCurrentOrder().getId();
+            }
+            final Shift previous = shifts.put( username, shift );
+            if ( previous != null ) {
+                previous.emitter.complete();
+            }
+            dispatch();
+        } );
+        return emitter;
+    }
+
+    /**
+     * Gets how dispatching is doing
+     *
+     * @return the statistics
+     */
+    public Stats getStats () {
+        int idle = 0;
+        for ( final Shift shift : shifts.values() ) {
+            if ( shift.orderId == null ) {
+                idle++;
+            }
+        }
+        return new Stats( this, idle );
+    }
+
+    /**
+     * Follows orders entering and leaving the queue and baristas starting and
+     * finishing them, once the change commits
+     *
+     * @param order
+     *            the order
+     * @param transition
+     *            what happened to it
+     */
+    @Override
+    public void orderTransitioned ( final CustomerOrder order, final OrderTransition transition ) {
+        final Long id = order.getId();
+        final String staff = order.getStaff();
+        final Long placedAt = order.getPlacedAt();
+        final OrderEnum from = transition.getFrom();
+        final OrderEnum to = transition.getTo();
+        final long at = transition.getTimestamp();
+        AfterCommit.run( "dispatch after order " + id, () -> submit( () -> {
+            if ( to == OrderEnum.IN_QUEUE ) {
+                enqueuedAt.put( id, at );
+            }
+            else if ( from == OrderEnum.IN_QUEUE ) {
+                claimed( id, to == OrderEnum.IN_PROGRESS, at, placedAt );
+            }
+            if ( to == OrderEnum.IN_PROGRESS && staff != null && shifts.containsKey( staff ) ) {
+                shifts.get( staff ).orderId = id;
+            }
+            else if ( from == OrderEnum.IN_PROGRESS ) {
+                released( id );
+            }
+            if ( to == OrderEnum.COMPLETED ) {
+                completed.incrementAndGet();
+            }
+            dispatch();
+        } ) );
+    }
+
+    /**
+     * Frees the barista of a deleted order
+     *
+     * @param order
+     *            the deleted order
+     */
+    @Override
+    public void orderDeleted ( final CustomerOrder order ) {
+        final Long id = order.getId();
+        AfterCommit.run( "dispatch after deleting order " + id, () -> submit( () -> {
+            enqueuedAt.remove( id );
+            pushed.remove( id );
+            released( id );
+            dispatch();
+        } ) );
+    }
+
+    /**
+     * Checks every stream is still open, so baristas who have gone away are
+     * taken off shift, and dispatches anything that was missed
+     */
+    @Scheduled ( fixedDelayString = "${coffeemaker.dispatch.sweep-ms:15000}" )
+    public void sweep () {
+        submit( () -> {
+            for ( final Shift shift : shifts.values() ) {
+                send( shift, SseEmitter.event().comment( "keep-alive" ) );
+            }
+            dispatch();
+        } );
+    }
+
+    /**
+     * Gives waiting orders to idle baristas until one or the other runs out.
+     * Runs on the dispatcher thread.
+     */
+    private void dispatch () {
+        if ( !isPushMode() ) {
+            return;
+        }
+        Shift next;
+        while ( dispatchQueue.size() > 0 && ( next = longestIdle() ) != null ) {
+            final User staff = userService.findByName( next.username );
+            if ( staff == null ) {
+                endShift( next.username, next.emitter );
+                next.emitter.complete();
+                continue;
+            }
+            if ( isWorkingOn( staff, staff.getCurrentOrder() ) ) {
+                // claimed an order without it being seen here yet
+                next.orderId = staff.getCurrentOrder().getId();
+                continue;
+            }
+            final CustomerOrder order;
+            try {
+                order = orderService.claimNext( staff );
+            }
+            catch ( final RuntimeException e ) {
+                System.out.println( "Could not dispatch an order to " + next.username + ": " + e.getMessage() );
+                return;
+            }
+            if ( order == null ) {
+                return;
+            }
+            pushed.add( order.getId() );
+            next.orderId = order.getId();
+            if ( !send( next, SseEmitter.event().name( ASSIGNED ).data( GSON.toJson( new Assignment( order ) ) ) ) ) {
+                handBack( staff );
+            }
+        }
+    }
+
+    /**
+     * Finds the idle barista who has been idle longest
+     *
+     * @return the barista's shift, or null if nobody is idle
+     */
+    private Shift longestIdle () {
+        Shift best = null;
+        for ( final Shift shift : shifts.values() ) {
+            if ( shift.orderId == null && ( best == null || shift.idleSince < best.idleSince ) ) {
+                best = shift;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Puts an order given to a barista who has gone away back on the queue
+     *
+     * @param staff
+     *            the barista, holding the order
+     */
+    private void handBack ( final User staff ) {
+        final CustomerOrder order = staff.getCurrentOrder();
+        try {
+            if ( staff.returnCurrentOrderToQueue() ) {
+                userService.save( staff );
+                orderService.save( order );
+            }
+        }
+        catch ( final RuntimeException e ) {
+            System.out.println( "Could not return order " + order.getId() + " to the queue: " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Records how long an order waited before it left the queue
+     *
+     * @param id
+     *            the order
+     * @param claim
+     *            whether a barista took it, rather than it being cancelled
+     * @param at
+     *            when it left the queue
+     * @param placedAt
+     *            when it was placed, in case it entered the queue before
+     *            startup
+     */
+    private void claimed ( final Long id, final boolean claim, final long at, final Long placedAt ) {
+        final Long since = enqueuedAt.remove( id );
+        final boolean byDispatcher = pushed.remove( id );
+        if ( !claim ) {
+            return;
+        }
+        final long wait = since != null ? at - since : placedAt != null ? at - placedAt : 0;
+        ( byDispatcher ? pushClaims : pullClaims ).record( wait );
+    }
+
+    /**
+     * Frees whichever barista was working on an order
+     *
+     * @param id
+     *            the order
+     */
+    private void released ( final Long id ) {
+        for ( final Shift shift : shifts.values() ) {
+            if ( id.equals( shift.orderId ) ) {
+                shift.orderId = null;
+                shift.idleSince = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Takes a barista off shift, unless they have already opened a new stream
+     *
+     * @param username
+     *            the barista
+     * @param emitter
+     *            the stream that closed
+     */
+    private void endShift ( final String username, final SseEmitter emitter ) {
+        final Shift shift = shifts.get( username );
+        if ( shift != null && shift.emitter == emitter ) {
+            shifts.remove( username );
+        }
+    }
+
+    /**
+     * Checks whether a barista is in the middle of an order
+     *
+     * @param staff
+     *            the barista
+     * @param order
+     *            their current order, or null
+     * @return true if they are working on it
+     */
+    private static boolean isWorkingOn ( final User staff, final CustomerOrder order ) {
+        // the current order is not cleared when its state is changed directly
+        return order != null && order.getCurrentState() == OrderEnum.IN_PROGRESS
+                && staff.getUsername().equals( order.getStaff() );
+    }
+
+    /**
+     * Writes to a barista's stream, ending the shift if they have gone away
+     *
+     * @param shift
+     *            the shift
+     * @param event
+     *            what to write
+     * @return false if the write failed
+     */
+    private boolean send ( final Shift shift, final SseEmitter.SseEventBuilder event ) {
+        try {
+            shift.emitter.send( event );
+            return true;
+        }
+        catch ( final IOException | IllegalStateException e ) {
+            endShift( shift.username, shift.emitter );
+            return false;
+        }
+    }
+
+    /**
+     * Runs a task on the dispatcher thread, unless it has been stopped
+     *
+     * @param task
+     *            the task
+     */
+    private void submit ( final Runnable task ) {
+        try {
+            dispatcher.execute( task );
+        }
+        catch ( final RejectedExecutionException e ) {
+            // shutting down
+        }
+    }
+
+    /**
+     * A barista on shift
+     */
+    private static final class Shift {
+
+        /** The barista */
+        private final String        username;
+
+        /** Where their assignments are sent */
+        private final SseEmitter    emitter;
+
+        /** The order they are working on, or null if they are idle */
+        private volatile Long       orderId;
+
+        /** When they last became idle, in epoch milliseconds */
+        private long                idleSince = System.currentTimeMillis();
+
+        /**
+         * Starts a shift
+         *
+         * @param username
+         *            the barista
+         * @param emitter
+         *            their assignment stream
+         */
+        private Shift ( final String username, final SseEmitter emitter ) {
+            this.username = username;
+            this.emitter = emitter;
+        }
+    }
+
+    /**
+     * Running count of claims and how long the orders waited for them
+     */
+    private static final class Tally {
+
+        /** Number of claims */
+        private final AtomicLong claims    = new AtomicLong();
+
+        /** Total time the claimed orders waited, in milliseconds */
+        private final AtomicLong totalWait = new AtomicLong();
+
+        /** Longest time a claimed order waited, in milliseconds */
+        private final AtomicLong maxWait   = new AtomicLong();
+
+        /**
+         * Counts a claim
+         *
+         * @param wait
+         *            how long the order waited, in milliseconds
+         */
+        private void record ( final long wait ) {
+            claims.incrementAndGet();
+            totalWait.addAndGet( wait );
+            maxWait.accumulateAndGet( wait, Math::max );
+        }
+    }
+
+    /**
+     * What a barista is sent when they are given an order
+     */
+    private static final class Assignment {
+
+        /** Order id */
+        private final Long   id;
+
+        /** Name of the ordered recipe */
+        private final String recipe;
+
+        /** Customer who placed the order */
+        private final String customer;
+
+        /** When the order was placed, in epoch milliseconds */
+        private final Long   placedAt;
+
+        /**
+         * Describes an order
+         *
+         * @param order
+         *            the order
+         */
+        private Assignment ( final CustomerOrder order ) {
+            this.id = order.getId();
+            this.recipe = order.getRecipeName();
+            this.customer = order.getCustomer();
+            this.placedAt = order.getPlacedAt();
+        }
+    }
+
+    /**
+     * How dispatching is doing: who is on shift, how long orders waited to be
+     * claimed in each mode, and how many orders are being completed
+     */
+    public static final class Stats {
+
+        /** pull or push */
+        private final String mode;
+
+        /** Baristas on shift */
+        private final int    onShift;
+
+        /** Baristas on shift with no order */
+        private final int    idle;
+
+        /** Orders waiting for a barista */
+        private final int    waiting;
+
+        /** Orders completed since startup */
+        private final long   completed;
+
+        /** Orders completed per hour since startup */
+        private final double completedPerHour;
+
+        /** Orders given out by the dispatcher */
+        private final long   pushedClaims;
+
+        /** Average wait of orders given out by the dispatcher, in ms */
+        private final long   pushedAverageWaitMs;
+
+        /** Longest wait of an order given out by the dispatcher, in ms */
+        private final long   pushedMaxWaitMs;
+
+        /** Orders claimed by baristas themselves */
+        private final long   pulledClaims;
+
+        /** Average wait of orders claimed by baristas, in ms */
+        private final long   pulledAverageWaitMs;
+
+        /** Longest wait of an order claimed by a barista, in ms */
+        private final long   pulledMaxWaitMs;
+
+        /**
+         * Reads the statistics
+         *
+         * @param dispatcher
+         *            the dispatcher
+         * @param idle
+         *            baristas on shift with no order
+         */
+        private Stats ( final BaristaDispatcher dispatcher, final int idle ) {
+            this.mode = dispatcher.isPushMode() ? "push" : "pull";
+            this.onShift = dispatcher.shifts.size();
+            this.idle = idle;
+            this.waiting = dispatcher.dispatchQueue.size();
+            this.completed = dispatcher.completed.get();
+            final long elapsed = Math.max( 1, System.currentTimeMillis() - dispatcher.startedAt );
+            this.completedPerHour = completed * 3600000.0 / elapsed;
+            this.pushedClaims = dispatcher.pushClaims.claims.get();
+            this.pushedAverageWaitMs = pushedClaims == 0 ? 0 : dispatcher.pushClaims.totalWait.get() / pushedClaims;
+            this.pushedMaxWaitMs = dispatcher.pushClaims.maxWait.get();
+            this.pulledClaims = dispatcher.pullClaims.claims.get();
+            this.pulledAverageWaitMs = pulledClaims == 0 ? 0 : dispatcher.pullClaims.totalWait.get() / pulledClaims;
+            this.pulledMaxWaitMs = dispatcher.pullClaims.maxWait.get();
+        }
+    }
+
+}
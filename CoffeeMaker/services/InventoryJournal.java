@@ -0,0 +1,599 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import edu.ncsu.csc.CoffeeMaker.models.enums.InventoryEventType;
+
+/**
+ * Append-only record of every change made to the Inventory. Events are written
+ * to fixed-size, memory-mapped segment files in coffeemaker.inventory.journal.dir,
+ * so an append is a copy into mapped memory rather than a database round trip.
+ * Every coffeemaker.inventory.journal.snapshot-every events the current amount
+ * of every ingredient is written to a small snapshot file.
+ *
+ * On startup the latest snapshot is loaded and only the events after it are
+ * replayed. The amounts at any earlier time are rebuilt the same way, starting
+ * from the latest snapshot taken before that time.
+ *
+ * Each record is laid out as: length (int), CRC32 of the body (int), then the
+ * body: sequence (long), timestamp (long), type (byte), name length (short),
+ * name (UTF-8), amount (int). The length is written last, so a record cut short
+ * by a crash reads as the end of the journal.
+ *
+ * Mapped pages are forced to disk when a segment fills up and on shutdown. A
+ * process crash loses nothing; an operating system crash can lose the events
+ * since the last force.
+ */
+@Component
+public class InventoryJournal {
+
+    /** Bytes taken by the length and checksum in front of each record */
+    private static final int                  HEADER           = 8;
+
+    /** Bytes taken by a record body, not counting the ingredient name */
+    private static final int                  BODY             = 8 + 8 + 1 + 2 + 4;
+
+    /** Marks the start of a snapshot file */
+    private static final int                  SNAPSHOT_MAGIC   = 0x494e5653;
+
+    /** File name prefix for segments */
+    private static final String               SEGMENT_PREFIX   = "segment-";
+
+    /** File name suffix for segments */
+    private static final String               SEGMENT_SUFFIX   = ".log";
+
+    /** File name prefix for snapshots */
+    private static final String               SNAPSHOT_PREFIX  = "snapshot-";
+
+    /** File name suffix for snapshots */
+    private static final String               SNAPSHOT_SUFFIX  = ".snap";
+
+    /** Directory the journal is kept in */
+    @Value ( "${coffeemaker.inventory.journal.dir:journal}" )
+    private String                            directory;
+
+    /** Size of each segment file */
+    @Value ( "${coffeemaker.inventory.journal.segment-bytes:8388608}" )
+    private int                               segmentBytes;
+
+    /** Number of events between snapshots */
+    @Value ( "${coffeemaker.inventory.journal.snapshot-every:1000}" )
+    private int                               snapshotEvery;
+
+    /** Directory the journal is kept in, resolved */
+    private Path                              root;
+
+    /** Segment files, keyed by the sequence number of their first event */
+    private final TreeMap<Long, Path>         segments         = new TreeMap<Long, Path>();
+
+    /** Timestamp of each snapshot, keyed by the sequence number it covers */
+    private final TreeMap<Long, Long>         snapshots        = new TreeMap<Long, Long>();
+
+    /** The segment currently being appended to */
+    private MappedByteBuffer                  segment;
+
+    /** Path of the segment currently being appended to */
+    private Path                              segmentPath;
+
+    /** Sequence number of the last event appended */
+    private long                              sequence;
+
+    /** Timestamp of the last event appended */
+    private long                              lastTimestamp;
+
+    /** Events appended since the last snapshot */
+    private int                               sinceSnapshot;
+
+    /** Current amount of every ingredient, as rebuilt from the journal */
+    private final Map<String, Integer>        state            = new HashMap<String, Integer>();
+
+    /**
+     * Opens the journal, loading the latest snapshot and replaying the events
+     * after it
+     */
+    @PostConstruct
+    public synchronized void open () {
+        try {
+            root = Paths.get( directory );
+            Files.createDirectories( root );
+            try ( DirectoryStream<Path> files = Files.newDirectoryStream( root ) ) {
+                for ( final Path file : files ) {
+                    final String name = file.getFileName().toString();
+                    if ( name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX ) ) {
+                        segments.put( parseSequence( name, SEGMENT_PREFIX, SEGMENT_SUFFIX ), file );
+                    }
+                    else if ( name.startsWith( SNAPSHOT_PREFIX ) && name.endsWith( SNAPSHOT_SUFFIX ) ) {
+                        final long seq = parseSequence( name, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX );
+                        final Long timestamp = readSnapshot( file, null );
+                        if ( timestamp != null ) {
+                            snapshots.put( seq, timestamp );
+                        }
+                    }
+                }
+            }
+
+            sequence = 0;
+            lastTimestamp = 0;
+            if ( !snapshots.isEmpty() ) {
+                sequence = snapshots.lastKey();
+                lastTimestamp = readSnapshot( snapshotPath( sequence ), state );
+            }
+
+            final Replay replay = new Replay( sequence, Long.MAX_VALUE, state );
+            for ( final Path file : segmentsFrom( sequence ) ) {
+                final MappedByteBuffer buffer = map( file );
+                replay.run( buffer );
+                segment = buffer;
+                segmentPath = file;
+            }
+            sequence = replay.sequence;
+            lastTimestamp = Math.max( lastTimestamp, replay.timestamp );
+            sinceSnapshot = (int) Math.min( sequence - ( snapshots.isEmpty() ? 0 : snapshots.lastKey() ),
+                    Integer.MAX_VALUE );
+
+            if ( segment == null ) {
+                roll();
+            }
+            terminate();
+            System.out.println( "Inventory journal opened at event " + sequence );
+        }
+        catch ( final IOException e ) {
+            throw new UncheckedIOException( "Could not open the inventory journal in " + directory, e );
+        }
+    }
+
+    /**
+     * Forces the current segment to disk
+     */
+    @PreDestroy
+    public synchronized void close () {
+        if ( segment != null ) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Records a change to one ingredient. See record(InventoryEventType, Map).
+     *
+     * @param type
+     *            what kind of change it was
+     * @param ingredient
+     *            name of the ingredient
+     * @param amount
+     *            amount added, deducted or set
+     */
+    public void record ( final InventoryEventType type, final String ingredient, final int amount ) {
+        record( type, Collections.singletonMap( ingredient, amount ) );
+    }
+
+    /**
+     * Records a change to several ingredients. If a transaction is active the
+     * events are appended once it commits, so a rolled back change never
+     * reaches the journal; otherwise they are appended immediately.
+     *
+     * @param type
+     *            what kind of change it was
+     * @param amounts
+     *            amount added, deducted or set for each ingredient, by name
+     */
+    public void record ( final InventoryEventType type, final Map<String, Integer> amounts ) {
+        if ( amounts.isEmpty() ) {
+            return;
+        }
+        AfterCommit.run( "journal inventory " + type, () -> append( type, amounts ) );
+    }
+
+    /**
+     * Appends events for several ingredients to the journal
+     *
+     * @param type
+     *            what kind of change it was
+     * @param amounts
+     *            amount for each ingredient, by name
+     * @return sequence number of the last event appended
+     */
+    public synchronized long append ( final InventoryEventType type, final Map<String, Integer> amounts ) {
+        for ( final Map.Entry<String, Integer> entry : amounts.entrySet() ) {
+            append( type, entry.getKey(), entry.getValue() );
+        }
+        return sequence;
+    }
+
+    /**
+     * Gets the sequence number of the last event in the journal, which serves
+     * as a version number for the Inventory
+     *
+     * @return the sequence number, or 0 if the journal is empty
+     */
+    public synchronized long getSequence () {
+        return sequence;
+    }
+
+    /**
+     * Gets the current amount of every ingredient, as rebuilt from the journal
+     *
+     * @return amounts by ingredient name
+     */
+    public synchronized Map<String, Integer> current () {
+        return new TreeMap<String, Integer>( state );
+    }
+
+    /**
+     * Checks whether the journal has seen an ingredient
+     *
+     * @param ingredient
+     *            the ingredient name
+     * @return true if an event has been recorded for it
+     */
+    public synchronized boolean contains ( final String ingredient ) {
+        return state.containsKey( ingredient );
+    }
+
+    /**
+     * Rebuilds the amount of every ingredient as it was at a point in time,
+     * starting from the latest snapshot taken at or before that time
+     *
+     * @param epochMillis
+     *            the point in time, in epoch milliseconds
+     * @return amounts by ingredient name; empty if the time is before the
+     *         first event
+     */
+    public synchronized Map<String, Integer> stateAsOf ( final long epochMillis ) {
+        final Map<String, Integer> amounts = new TreeMap<String, Integer>();
+        long start = 0;
+        for ( final Map.Entry<Long, Long> snapshot : snapshots.descendingMap().entrySet() ) {
+            if ( snapshot.getValue() <= epochMillis ) {
+                start = snapshot.getKey();
+                break;
+            }
+        }
+        try {
+            if ( start > 0 ) {
+                readSnapshot( snapshotPath( start ), amounts );
+            }
+            final Replay replay = new Replay( start, epochMillis, amounts );
+            for ( final Path file : segmentsFrom( start ) ) {
+                final ByteBuffer buffer;
+                if ( file.equals( segmentPath ) ) {
+                    // a copy of the segment being written is positioned where
+                    // the next event goes, so it is read from the start up to
+                    // there
+                    buffer = segment.duplicate();
+                    buffer.limit( segment.position() );
+                    buffer.position( 0 );
+                }
+                else {
+                    buffer = map( file );
+                }
+                if ( !replay.run( buffer ) ) {
+                    break;
+                }
+            }
+        }
+        catch ( final IOException e ) {
+            throw new UncheckedIOException( "Could not read the inventory journal", e );
+        }
+        return amounts;
+    }
+
+    /**
+     * Appends one event, rolling to a new segment and taking a snapshot when
+     * needed. The caller must hold the journal's lock.
+     *
+     * @param type
+     *            what kind of change it was
+     * @param ingredient
+     *            name of the ingredient
+     * @param amount
+     *            amount added, deducted or set
+     */
+    private void append ( final InventoryEventType type, final String ingredient, final int amount ) {
+        final byte[] name = ingredient.getBytes( StandardCharsets.UTF_8 );
+        if ( name.length > Short.MAX_VALUE ) {
+            throw new IllegalArgumentException( "Ingredient name is too long to journal" );
+        }
+        final int length = BODY + name.length;
+        try {
+            if ( segment.remaining() < HEADER + length + 4 ) {
+                roll();
+            }
+        }
+        catch ( final IOException e ) {
+            throw new UncheckedIOException( "Could not start a new inventory journal segment", e );
+        }
+
+        final long seq = sequence + 1;
+        final long timestamp = Math.max( System.currentTimeMillis(), lastTimestamp );
+        final int start = segment.position();
+        segment.position( start + HEADER );
+        segment.putLong( seq );
+        segment.putLong( timestamp );
+        segment.put( (byte) type.ordinal() );
+        segment.putShort( (short) name.length );
+        segment.put( name );
+        segment.putInt( amount );
+        final int end = segment.position();
+
+        final CRC32 crc = new CRC32();
+        final ByteBuffer body = segment.duplicate();
+        body.position( start + HEADER );
+        body.limit( end );
+        crc.update( body );
+        segment.putInt( start + 4, (int) crc.getValue() );
+        segment.putInt( start, length );
+        terminate();
+
+        sequence = seq;
+        lastTimestamp = timestamp;
+        state.put( ingredient, type.apply( state.get( ingredient ), amount ) );
+        if ( ++sinceSnapshot >= snapshotEvery ) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Writes a zero length after the last record so that stale bytes left by
+     * a torn write are never read as a record
+     */
+    private void terminate () {
+        if ( segment.remaining() >= 4 ) {
+            segment.putInt( segment.position(), 0 );
+        }
+    }
+
+    /**
+     * Closes off the current segment and starts a new one for the next event
+     *
+     * @throws IOException
+     *             if the new segment cannot be created
+     */
+    private void roll () throws IOException {
+        if ( segment != null ) {
+            segment.force();
+        }
+        final long first = sequence + 1;
+        final Path file = root.resolve( String.format( "%s%020d%s", SEGMENT_PREFIX, first, SEGMENT_SUFFIX ) );
+        segment = map( file );
+        segmentPath = file;
+        segments.put( first, file );
+    }
+
+    /**
+     * Writes the current state to a snapshot file. The file is written under a
+     * temporary name and moved into place so a crash never leaves a partial
+     * snapshot behind.
+     */
+    private void snapshot () {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream( bytes );
+            out.writeInt( SNAPSHOT_MAGIC );
+            out.writeLong( sequence );
+            out.writeLong( lastTimestamp );
+            out.writeInt( state.size() );
+            for ( final Map.Entry<String, Integer> entry : state.entrySet() ) {
+                out.writeUTF( entry.getKey() );
+                out.writeInt( entry.getValue() );
+            }
+            final CRC32 crc = new CRC32();
+            crc.update( bytes.toByteArray() );
+            out.writeInt( (int) crc.getValue() );
+            out.flush();
+
+            final Path file = snapshotPath( sequence );
+            final Path temp = root.resolve( file.getFileName() + ".tmp" );
+            Files.write( temp, bytes.toByteArray() );
+            try ( FileChannel channel = FileChannel.open( temp, StandardOpenOption.WRITE ) ) {
+                channel.force( true );
+            }
+            Files.move( temp, file, StandardCopyOption.ATOMIC_MOVE );
+            snapshots.put( sequence, lastTimestamp );
+            sinceSnapshot = 0;
+        }
+        catch ( final IOException e ) {
+            // the events are still in the segments, so this only costs replay
+            // time
+            System.out.println( "Could not write inventory snapshot at event " + sequence + ": " + e );
+        }
+    }
+
+    /**
+     * Reads a snapshot file
+     *
+     * @param file
+     *            the snapshot
+     * @param into
+     *            map to put the amounts in, or null to only validate the file
+     * @return the timestamp of the snapshot, or null if the file is corrupt
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    private Long readSnapshot ( final Path file, final Map<String, Integer> into ) throws IOException {
+        final byte[] bytes = Files.readAllBytes( file );
+        if ( bytes.length < 4 ) {
+            return null;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update( bytes, 0, bytes.length - 4 );
+        if ( ByteBuffer.wrap( bytes, bytes.length - 4, 4 ).getInt() != (int) crc.getValue() ) {
+            return null;
+        }
+        final DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes ) );
+        if ( in.readInt() != SNAPSHOT_MAGIC ) {
+            return null;
+        }
+        in.readLong();
+        final long timestamp = in.readLong();
+        final int count = in.readInt();
+        for ( int i = 0; i < count; i++ ) {
+            final String name = in.readUTF();
+            final int amount = in.readInt();
+            if ( into != null ) {
+                into.put( name, amount );
+            }
+        }
+        return timestamp;
+    }
+
+    /**
+     * Gets the segments that may hold events after a sequence number, in order
+     *
+     * @param after
+     *            the sequence number
+     * @return the segment files
+     */
+    private Iterable<Path> segmentsFrom ( final long after ) {
+        final Long first = segments.floorKey( after + 1 );
+        return ( first == null ? segments : segments.tailMap( first, true ) ).values();
+    }
+
+    /**
+     * Gets the path of the snapshot covering a sequence number
+     *
+     * @param seq
+     *            the sequence number
+     * @return the snapshot path
+     */
+    private Path snapshotPath ( final long seq ) {
+        return root.resolve( String.format( "%s%020d%s", SNAPSHOT_PREFIX, seq, SNAPSHOT_SUFFIX ) );
+    }
+
+    /**
+     * Maps a segment file into memory, creating it if needed
+     *
+     * @param file
+     *            the segment
+     * @return the mapped segment, positioned at the start
+     * @throws IOException
+     *             if the file cannot be mapped
+     */
+    private MappedByteBuffer map ( final Path file ) throws IOException {
+        try ( FileChannel channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE ) ) {
+            final long size = Math.max( channel.size(), segmentBytes );
+            return channel.map( FileChannel.MapMode.READ_WRITE, 0, size );
+        }
+    }
+
+    /**
+     * Parses the sequence number out of a segment or snapshot file name
+     *
+     * @param name
+     *            the file name
+     * @param prefix
+     *            the file name prefix
+     * @param suffix
+     *            the file name suffix
+     * @return the sequence number
+     */
+    private static long parseSequence ( final String name, final String prefix, final String suffix ) {
+        return Long.parseLong( name.substring( prefix.length(), name.length() - suffix.length() ) );
+    }
+
+    /**
+     * Applies the events in segments to a map of amounts, one segment at a
+     * time
+     */
+    private static final class Replay {
+
+        /** Events at or before this sequence number are skipped */
+        private long                       sequence;
+
+        /** Events after this time stop the replay */
+        private final long                 until;
+
+        /** Timestamp of the last event applied */
+        private long                       timestamp;
+
+        /** The amounts being rebuilt */
+        private final Map<String, Integer> amounts;
+
+        /**
+         * Creates a replay
+         *
+         * @param after
+         *            sequence number already reflected in the amounts
+         * @param until
+         *            time to stop at, in epoch milliseconds
+         * @param amounts
+         *            the amounts to apply events to
+         */
+        private Replay ( final long after, final long until, final Map<String, Integer> amounts ) {
+            this.sequence = after;
+            this.until = until;
+            this.amounts = amounts;
+        }
+
+        /**
+         * Applies the events in one segment, leaving the buffer positioned
+         * after the last valid record
+         *
+         * @param buffer
+         *            the segment, positioned at the start
+         * @return false if an event after the cutoff time was reached, true if
+         *         the whole segment was read
+         */
+        private boolean run ( final ByteBuffer buffer ) {
+            while ( buffer.remaining() >= HEADER + BODY ) {
+                final int start = buffer.position();
+                final int length = buffer.getInt( start );
+                if ( length < BODY || length > buffer.remaining() - HEADER ) {
+                    break;
+                }
+                final ByteBuffer body = buffer.duplicate();
+                body.position( start + HEADER );
+                body.limit( start + HEADER + length );
+                final CRC32 crc = new CRC32();
+                crc.update( body.duplicate() );
+                if ( buffer.getInt( start + 4 ) != (int) crc.getValue() ) {
+                    break;
+                }
+
+                final long seq = body.getLong();
+                final long time = body.getLong();
+                final InventoryEventType type = InventoryEventType.values()[body.get()];
+                final byte[] name = new byte[body.getShort()];
+                body.get( name );
+                final int amount = body.getInt();
+                if ( time > until ) {
+                    return false;
+                }
+                if ( seq > sequence ) {
+                    final String ingredient = new String( name, StandardCharsets.UTF_8 );
+                    amounts.put( ingredient, type.apply( amounts.get( ingredient ), amount ) );
+                    sequence = seq;
+                    timestamp = time;
+                }
+                buffer.position( start + HEADER + length );
+            }
+            return true;
+        }
+    }
+
+}
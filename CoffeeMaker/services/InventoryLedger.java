@@ -0,0 +1,516 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.stereotype.Component;
+
+import edu.ncsu.csc.CoffeeMaker.models.Ingredient;
+import edu.ncsu.csc.CoffeeMaker.models.IngredientDictionary;
+import edu.ncsu.csc.CoffeeMaker.models.Inventory;
+
+/**
+ * In-memory copy of the Inventory amounts used on the makeCoffee hot path.
+ * Every ingredient has its own counter, indexed by IngredientDictionary id, and
+ * the counters are guarded by a fixed set of lock stripes rather than one global
+ * lock. A recipe's demand vector is checked and deducted while holding only the
+ * stripes its ingredient ids fall in, taken in ascending order so that two
+ * brews can never deadlock on each other.
+ *
+ * The ledger also tracks how much of each ingredient is reserved for orders
+ * that have been placed but not yet made. Reserved amounts are still part of
+ * the stock, but are not available to brews or to other reservations.
+ *
+ * The ledger does not talk to the database. InventoryService loads it from the
+ * persisted Inventory and writes the deltas it hands out back to the
+ * Ingredient rows.
+ *
+ * Listeners registered with addListener are told which ingredients changed
+ * after every successful change, once the stripes have been released.
+ */
+@Component
+public class InventoryLedger {
+
+    /**
+     * Notified when available amounts in the ledger change
+     */
+    public interface ChangeListener {
+
+        /**
+         * Called after the available amount of some ingredients changed
+         *
+         * @param changed
+         *            vector indexed by IngredientDictionary id, non-zero for
+         *            every ingredient that changed; null if the whole ledger
+         *            was reloaded
+         */
+        void amountsChanged ( int[] changed );
+    }
+
+    /** Number of lock stripes; must stay at or below 32 to fit in a mask */
+    private static final int           STRIPES = 16;
+
+    /** The lock stripes guarding the ingredient counters */
+    private final ReentrantLock[]      locks;
+
+    /**
+     * Amount of each ingredient, indexed by IngredientDictionary id, with
+     * Inventory.ABSENT for ingredients not in the Inventory
+     */
+    private volatile AtomicIntegerArray amounts;
+
+    /** Amount of each ingredient held by reservations, indexed the same way */
+    private volatile AtomicIntegerArray reserved;
+
+    /** id of the Ingredient row backing each counter, indexed the same way */
+    private volatile long[]            rowIds;
+
+    /** Whether the ledger has been loaded from the Inventory yet */
+    private volatile boolean           loaded;
+
+    /** Told about every change */
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+
+    /**
+     * Creates an empty, unloaded ledger
+     */
+    public InventoryLedger () {
+        locks = new ReentrantLock[STRIPES];
+        for ( int i = 0; i < STRIPES; i++ ) {
+            locks[i] = new ReentrantLock();
+        }
+        amounts = new AtomicIntegerArray( 0 );
+        reserved = new AtomicIntegerArray( 0 );
+        rowIds = new long[0];
+        loaded = false;
+    }
+
+    /**
+     * Checks whether the ledger currently reflects the persisted Inventory
+     *
+     * @return true if the ledger has been loaded and not invalidated since
+     */
+    public boolean isLoaded () {
+        return loaded;
+    }
+
+    /**
+     * Replaces the contents of the ledger with the amounts in the provided
+     * Inventory. All stripes are held while the counters are swapped so no
+     * brew can observe a half-loaded ledger. Reservations are kept.
+     *
+     * @param inventory
+     *            the Inventory to copy amounts from
+     */
+    public void load ( final Inventory inventory ) {
+        final int[] stock = inventory.getStock();
+        final AtomicIntegerArray fresh = new AtomicIntegerArray( stock );
+        final long[] ids = new long[stock.length];
+        for ( final Ingredient ing : inventory.getIngredients() ) {
+            final Long id = ing.getId();
+            ids[IngredientDictionary.lookup( ing.getName() )] = id == null ? 0 : id;
+        }
+
+        lockAll();
+        try {
+            final AtomicIntegerArray held = reserved;
+            final AtomicIntegerArray carried = new AtomicIntegerArray( Math.max( stock.length, held.length() ) );
+            for ( int id = 0; id < held.length(); id++ ) {
+                carried.set( id, held.get( id ) );
+            }
+            reserved = carried;
+            amounts = fresh;
+            rowIds = ids;
+            loaded = true;
+        }
+        finally {
+            unlockAll();
+        }
+        fireChanged( null );
+    }
+
+    /**
+     * Registers a listener to be told about changes to available amounts
+     *
+     * @param listener
+     *            the listener
+     */
+    public void addListener ( final ChangeListener listener ) {
+        listeners.add( listener );
+    }
+
+    /**
+     * Marks the ledger as stale so that it is reloaded from the database before
+     * the next brew. Used when an ingredient is edited outside of the
+     * InventoryService.
+     */
+    public void invalidate () {
+        loaded = false;
+    }
+
+    /**
+     * Atomically checks that there is enough unreserved stock of every
+     * ingredient in a demand vector and, if so, deducts them. Ingredients that
+     * are not in the Inventory at all are ignored, matching
+     * Inventory.enoughIngredients.
+     *
+     * @param demand
+     *            amount of each ingredient needed, indexed by
+     *            IngredientDictionary id (see Recipe.getDemand())
+     * @return true if the ingredients were deducted, false if there was not
+     *         enough of at least one of them (nothing is deducted in that case)
+     */
+    public boolean tryDeduct ( final int[] demand ) {
+        final int mask = stripeMask( demand );
+        lock( mask );
+        try {
+            final AtomicIntegerArray current = amounts;
+            final int n = Math.min( demand.length, current.length() );
+            if ( !available( demand, n ) ) {
+                return false;
+            }
+            for ( int id = 0; id < n; id++ ) {
+                if ( demand[id] != 0 && current.get( id ) != Inventory.ABSENT ) {
+                    current.addAndGet( id, -demand[id] );
+                }
+            }
+        }
+        finally {
+            unlock( mask );
+        }
+        fireChanged( demand );
+        return true;
+    }
+
+    /**
+     * Gives back ingredients that were previously deducted with tryDeduct, for
+     * instance because persisting the deduction failed.
+     *
+     * @param demand
+     *            the demand vector that was deducted
+     */
+    public void credit ( final int[] demand ) {
+        adjust( demand );
+    }
+
+    /**
+     * Adds signed amounts to the stock of each ingredient in a vector, without
+     * any checks. Used to mirror changes that have already been checked and
+     * made in the database.
+     *
+     * @param demand
+     *            amount to add to each ingredient, indexed by
+     *            IngredientDictionary id; may be negative
+     */
+    public void adjust ( final int[] demand ) {
+        final int mask = stripeMask( demand );
+        lock( mask );
+        try {
+            final AtomicIntegerArray current = amounts;
+            final int n = Math.min( demand.length, current.length() );
+            for ( int id = 0; id < n; id++ ) {
+                if ( demand[id] != 0 && current.get( id ) != Inventory.ABSENT ) {
+                    current.addAndGet( id, demand[id] );
+                }
+            }
+        }
+        finally {
+            unlock( mask );
+        }
+        fireChanged( demand );
+    }
+
+    /**
+     * Sets the stock of some ingredients to amounts read from the database,
+     * without any checks. Used where the database rather than the ledger
+     * decides whether there is enough, so the ledger follows it instead of
+     * drifting. Ingredients not in the ledger are skipped.
+     *
+     * @param current
+     *            the amount of each ingredient, by name
+     */
+    public void refresh ( final Map<String, Integer> current ) {
+        int[] changed = new int[0];
+        for ( final String name : current.keySet() ) {
+            final int id = IngredientDictionary.lookup( name );
+            if ( id != IngredientDictionary.UNKNOWN ) {
+                if ( changed.length <= id ) {
+                    changed = Arrays.copyOf( changed, id + 1 );
+                }
+                changed[id] = 1;
+            }
+        }
+        final int mask = stripeMask( changed );
+        lock( mask );
+        try {
+            final AtomicIntegerArray counters = amounts;
+            final int n = Math.min( changed.length, counters.length() );
+            for ( int id = 0; id < n; id++ ) {
+                if ( changed[id] != 0 && counters.get( id ) != Inventory.ABSENT ) {
+                    counters.set( id, current.get( IngredientDictionary.nameOf( id ) ) );
+                }
+            }
+        }
+        finally {
+            unlock( mask );
+        }
+        fireChanged( changed );
+    }
+
+    /**
+     * Atomically checks that there is enough unreserved stock of every
+     * ingredient in a demand vector and, if so, reserves it. The stock itself
+     * is not reduced until the reservation is committed.
+     *
+     * @param demand
+     *            amount of each ingredient to reserve, indexed by
+     *            IngredientDictionary id
+     * @return true if the ingredients were reserved, false if there was not
+     *         enough of at least one of them (nothing is reserved in that case)
+     */
+    public boolean tryReserve ( final int[] demand ) {
+        final int mask = stripeMask( demand );
+        lock( mask );
+        try {
+            final AtomicIntegerArray current = amounts;
+            final AtomicIntegerArray held = reserved;
+            final int n = Math.min( demand.length, current.length() );
+            if ( !available( demand, n ) ) {
+                return false;
+            }
+            for ( int id = 0; id < n; id++ ) {
+                if ( demand[id] != 0 && current.get( id ) != Inventory.ABSENT ) {
+                    held.addAndGet( id, demand[id] );
+                }
+            }
+        }
+        finally {
+            unlock( mask );
+        }
+        fireChanged( demand );
+        return true;
+    }
+
+    /**
+     * Gives up a reservation made with tryReserve without using it
+     *
+     * @param demand
+     *            the demand vector that was reserved
+     */
+    public void release ( final int[] demand ) {
+        final int mask = stripeMask( demand );
+        lock( mask );
+        try {
+            final AtomicIntegerArray current = amounts;
+            final AtomicIntegerArray held = reserved;
+            final int n = Math.min( demand.length, current.length() );
+            for ( int id = 0; id < n; id++ ) {
+                if ( demand[id] != 0 && current.get( id ) != Inventory.ABSENT ) {
+                    held.addAndGet( id, -Math.min( demand[id], held.get( id ) ) );
+                }
+            }
+        }
+        finally {
+            unlock( mask );
+        }
+        fireChanged( demand );
+    }
+
+    /**
+     * Uses a reservation made with tryReserve, deducting the reserved amounts
+     * from the stock. If the stock was edited down below what was reserved in
+     * the meantime, only what is left is deducted.
+     *
+     * @param demand
+     *            the demand vector that was reserved
+     * @return the amount actually deducted from each ingredient, to be
+     *         persisted
+     */
+    public int[] commit ( final int[] demand ) {
+        final int[] deducted = new int[demand.length];
+        final int mask = stripeMask( demand );
+        lock( mask );
+        try {
+            final AtomicIntegerArray current = amounts;
+            final AtomicIntegerArray held = reserved;
+            final int n = Math.min( demand.length, current.length() );
+            for ( int id = 0; id < n; id++ ) {
+                final int have = current.get( id );
+                if ( demand[id] != 0 && have != Inventory.ABSENT ) {
+                    deducted[id] = Math.min( demand[id], have );
+                    current.addAndGet( id, -deducted[id] );
+                    held.addAndGet( id, -Math.min( demand[id], held.get( id ) ) );
+                }
+            }
+        }
+        finally {
+            unlock( mask );
+        }
+        fireChanged( demand );
+        return deducted;
+    }
+
+    /**
+     * Returns how much of an ingredient is in stock and not reserved
+     *
+     * @param name
+     *            the ingredient name
+     * @return the available amount, or null if the ingredient is not in the
+     *         Inventory
+     */
+    public Integer getAvailable ( final String name ) {
+        final int id = IngredientDictionary.lookup( name );
+        return id == IngredientDictionary.UNKNOWN ? null : getAvailable( id );
+    }
+
+    /**
+     * Returns how much of an ingredient is in stock and not reserved
+     *
+     * @param id
+     *            the IngredientDictionary id
+     * @return the available amount, or null if the ingredient is not in the
+     *         Inventory
+     */
+    public Integer getAvailable ( final int id ) {
+        final AtomicIntegerArray current = amounts;
+        if ( id >= current.length() || current.get( id ) == Inventory.ABSENT ) {
+            return null;
+        }
+        final AtomicIntegerArray held = reserved;
+        return id < held.length() ? current.get( id ) - held.get( id ) : current.get( id );
+    }
+
+    /**
+     * Returns the amount of an ingredient currently in the ledger
+     *
+     * @param name
+     *            the ingredient name
+     * @return the amount, or null if the ingredient is not in the Inventory
+     */
+    public Integer getAmount ( final String name ) {
+        final int id = IngredientDictionary.lookup( name );
+        final AtomicIntegerArray current = amounts;
+        if ( id == IngredientDictionary.UNKNOWN || id >= current.length() ) {
+            return null;
+        }
+        final int amount = current.get( id );
+        return amount == Inventory.ABSENT ? null : amount;
+    }
+
+    /**
+     * Returns the database id of the Inventory's Ingredient row for an
+     * IngredientDictionary id, used to persist deltas without loading the
+     * Inventory
+     *
+     * @param id
+     *            the IngredientDictionary id
+     * @return the Ingredient row id, or null if the ingredient is not in the
+     *         Inventory
+     */
+    public Long getRowId ( final int id ) {
+        final long[] current = rowIds;
+        return id >= current.length || current[id] == 0 ? null : current[id];
+    }
+
+    /**
+     * Checks that every ingredient in the demand vector has enough unreserved
+     * stock. The caller must hold the stripes for the demand vector.
+     *
+     * @param demand
+     *            the demand vector
+     * @param n
+     *            how many entries of the vector to check
+     * @return true if all of them are available
+     */
+    private boolean available ( final int[] demand, final int n ) {
+        final AtomicIntegerArray current = amounts;
+        final AtomicIntegerArray held = reserved;
+        for ( int id = 0; id < n; id++ ) {
+            final int have = current.get( id );
+            if ( demand[id] != 0 && have != Inventory.ABSENT ) {
+                final int free = id < held.length() ? have - held.get( id ) : have;
+                if ( free < demand[id] ) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells the listeners about a change
+     *
+     * @param changed
+     *            the ingredients that changed, or null for all of them
+     */
+    private void fireChanged ( final int[] changed ) {
+        for ( final ChangeListener listener : listeners ) {
+            listener.amountsChanged( changed );
+        }
+    }
+
+    /**
+     * Computes the bitmask of stripes covering the ingredients in a demand
+     * vector
+     *
+     * @param demand
+     *            the demand vector
+     * @return a mask with one bit set per stripe needed
+     */
+    private int stripeMask ( final int[] demand ) {
+        int mask = 0;
+        for ( int id = 0; id < demand.length; id++ ) {
+            if ( demand[id] != 0 ) {
+                mask |= 1 << ( id % STRIPES );
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Acquires the stripes in the mask, lowest first
+     *
+     * @param mask
+     *            the stripes to acquire
+     */
+    private void lock ( final int mask ) {
+        for ( int i = 0; i < STRIPES; i++ ) {
+            if ( ( mask & ( 1 << i ) ) != 0 ) {
+                locks[i].lock();
+            }
+        }
+    }
+
+    /**
+     * Releases the stripes in the mask
+     *
+     * @param mask
+     *            the stripes to release
+     */
+    private void unlock ( final int mask ) {
+        for ( int i = STRIPES - 1; i >= 0; i-- ) {
+            if ( ( mask & ( 1 << i ) ) != 0 ) {
+                locks[i].unlock();
+            }
+        }
+    }
+
+    /**
+     * Acquires every stripe
+     */
+    private void lockAll () {
+        lock( ( 1 << STRIPES ) - 1 );
+    }
+
+    /**
+     * Releases every stripe
+     */
+    private void unlockAll () {
+        unlock( ( 1 << STRIPES ) - 1 );
+    }
+
+}
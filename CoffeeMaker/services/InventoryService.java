@@ -1,22 +1,58 @@
 package edu.ncsu.csc.CoffeeMaker.services;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.transaction.Transactional;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import edu.ncsu.csc.CoffeeMaker.models.Ingredient;
+import edu.ncsu.csc.CoffeeMaker.models.IngredientDictionary;
 import edu.ncsu.csc.CoffeeMaker.models.Inventory;
+import edu.ncsu.csc.CoffeeMaker.models.Recipe;
+import edu.ncsu.csc.CoffeeMaker.models.enums.InventoryEventType;
+import edu.ncsu.csc.CoffeeMaker.repositories.IngredientRepository;
 import edu.ncsu.csc.CoffeeMaker.repositories.InventoryRepository;
 
 /**
  * The InventoryService is used to handle CRUD operations on the Inventory
  * model. In addition to all functionality in `Service`, we also manage the
- * Inventory singleton.
+ * Inventory singleton, and keep the in-memory InventoryLedger used for making
+ * coffee in sync with it.
+ *
+ * Deductions are written to the database as soon as they are made, unless
+ * coffeemaker.inventory.write-behind is set. In that mode they are buffered and
+ * written in groups every coffeemaker.inventory.write-behind.interval-ms, or
+ * sooner once coffeemaker.inventory.write-behind.max-pending of them are
+ * waiting. Flushes run in their own transaction, so a caller that rolls back
+ * cannot take buffered deductions with it, and the ledger is only reloaded
+ * while no brew is between deducting from it and buffering the deduction.
+ *
+ * With coffeemaker.inventory.deduction=database, brews are instead deducted
+ * straight from the Ingredient rows with conditional updates, so several
+ * CoffeeMaker instances can share one database without overselling. The
+ * ledger is then only used to find rows and to hold reservations, which
+ * stay local to each instance, and its amounts are set from the database
+ * after each deduction. Write-behind is not available in this mode, and
+ * enabling both stops the application from starting.
+ *
+ * Every change made through this service is also recorded in the
+ * InventoryJournal once its transaction commits.
  *
  * @author Kai Presler-Marshall
  *
@@ -30,30 +66,815 @@ public class InventoryService extends Service<Inventory, Long> {
      * operations on Inventory model.
      */
     @Autowired
-    private InventoryRepository inventoryRepository;
+    private InventoryRepository  inventoryRepository;
+
+    /**
+     * IngredientRepository, used to persist deductions directly against the
+     * Inventory's Ingredient rows.
+     */
+    @Autowired
+    private IngredientRepository ingredientRepository;
+
+    /**
+     * In-memory ledger that brews are checked and deducted against
+     */
+    @Autowired
+    private InventoryLedger            ledger;
+
+    /** How many of each recipe can be made, kept current from the ledger */
+    @Autowired
+    private RecipeAvailabilityIndex    availabilityIndex;
+
+    /** Append-only history of every change to the Inventory */
+    @Autowired
+    private InventoryJournal           journal;
+
+    /** Used to run write-behind flushes in their own transaction */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /** Where brews are checked and deducted: "ledger" or "database" */
+    @Value ( "${coffeemaker.inventory.deduction:ledger}" )
+    private String                     deduction;
+
+    /** Whether brews are deducted with conditional updates in the database */
+    private boolean                    databaseMode;
+
+    /** Whether deductions are buffered instead of written immediately */
+    @Value ( "${coffeemaker.inventory.write-behind:false}" )
+    private boolean                    writeBehindEnabled;
+
+    /** Most deductions buffered before a brew has to flush synchronously */
+    @Value ( "${coffeemaker.inventory.write-behind.max-pending:500}" )
+    private int                        maxPending;
+
+    /** Buffer for deductions in write-behind mode, null otherwise */
+    private InventoryWriteBehind       writeBehind;
+
+    /** Runs each deduction in its own transaction in database mode */
+    private TransactionTemplate        deductions;
+
+    /**
+     * Held for reading by brews in write-behind mode and for writing while the
+     * ledger is reloaded
+     */
+    private final ReentrantReadWriteLock reloading = new ReentrantReadWriteLock();
 
     @Override
     protected JpaRepository<Inventory, Long> getRepository () {
         return inventoryRepository;
     }
 
+    /**
+     * Picks the deduction mode and sets up the write-behind buffer, if it is
+     * enabled
+     *
+     * @throws IllegalStateException
+     *             if write-behind is enabled along with database deduction
+     */
+    @PostConstruct
+    public void startWriteBehind () {
+        databaseMode = "database".equalsIgnoreCase( deduction );
+        if ( writeBehindEnabled && databaseMode ) {
+            throw new IllegalStateException( "coffeemaker.inventory.write-behind cannot be enabled with "
+                    + "coffeemaker.inventory.deduction=database" );
+        }
+        if ( databaseMode ) {
+            deductions = new TransactionTemplate( transactionManager );
+            deductions.setPropagationBehavior( TransactionDefinition.PROPAGATION_REQUIRES_NEW );
+        }
+        else if ( writeBehindEnabled ) {
+            // a new transaction, so a flush made on behalf of a caller is not
+            // rolled back with it after leaving the buffer
+            final TransactionTemplate template = new TransactionTemplate( transactionManager );
+            template.setPropagationBehavior( TransactionDefinition.PROPAGATION_REQUIRES_NEW );
+            writeBehind = new InventoryWriteBehind( deltas -> template.execute( status -> {
+                writeDeltas( deltas );
+                return null;
+            } ), maxPending );
+        }
+    }
+
+    /**
+     * Writes any buffered deductions to the database. Runs periodically in
+     * write-behind mode; does nothing otherwise.
+     */
+    @Scheduled ( fixedDelayString = "${coffeemaker.inventory.write-behind.interval-ms:200}" )
+    public void flushDeductions () {
+        if ( writeBehind == null ) {
+            return;
+        }
+        try {
+            writeBehind.flush();
+        }
+        catch ( final RuntimeException e ) {
+            System.out.println( "Inventory flush failed, " + writeBehind.getPending() + " deductions pending: " + e );
+        }
+    }
+
+    /**
+     * Writes any buffered deductions before the application stops
+     */
+    @PreDestroy
+    public void stopWriteBehind () {
+        if ( writeBehind != null ) {
+            writeBehind.flush();
+        }
+    }
+
     /**
      * Retrieves the singleton Inventory instance from the database, creating it
-     * if it does not exist.
+     * if it does not exist. Buffered deductions are written first so that the
+     * Inventory returned is up to date.
+     *
+     * A new Inventory is rebuilt from the InventoryJournal if the journal has
+     * any history. An existing Inventory is recorded in an empty journal as
+     * its starting point.
      *
      * @return the Inventory, either new or fetched
      */
     public synchronized Inventory getInventory () {
+        if ( writeBehind != null ) {
+            writeBehind.flush();
+        }
         final List<Inventory> inventoryList = findAll();
         if ( inventoryList != null && inventoryList.size() == 1 ) {
-            return inventoryList.get( 0 );
+            final Inventory inventory = inventoryList.get( 0 );
+            if ( journal.getSequence() == 0 && !inventory.getIngredients().isEmpty() ) {
+                // a repeat of this starting point before it commits is
+                // harmless, since SET events replace the amounts
+                journal.record( InventoryEventType.SET, amountsOf( inventory.getIngredients() ) );
+            }
+            return inventory;
         }
         else {
-            // initialize the inventory with 0 of everything
-            final Inventory i = new Inventory( new ArrayList<Ingredient>() );
+            // initialize the inventory from the journal, or with 0 of
+            // everything
+            final List<Ingredient> ingredients = new ArrayList<Ingredient>();
+            for ( final Map.Entry<String, Integer> entry : journal.current().entrySet() ) {
+                ingredients.add( new Ingredient( entry.getKey(), Math.max( 0, entry.getValue() ) ) );
+            }
+            final Inventory i = new Inventory( ingredients );
             save( i );
             return i;
         }
     }
 
+    /**
+     * Adds amounts to the ingredients in the Inventory, creating any that are
+     * not there yet, and records the restock in the journal
+     *
+     * @param ingredients
+     *            amounts to add
+     * @return the updated Inventory
+     */
+    public Inventory restock ( final List<Ingredient> ingredients ) {
+        reloading.writeLock().lock();
+        try {
+            final Inventory inventory = getInventory();
+            final boolean valid = inventory.addIngredients( ingredients );
+            save( inventory );
+            if ( valid ) {
+                journal.record( InventoryEventType.RESTOCK, amountsOf( ingredients ) );
+            }
+            return inventory;
+        }
+        finally {
+            reloading.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a new ingredient to the Inventory and records it in the journal.
+     * The name and amount are assumed to be valid.
+     *
+     * @param name
+     *            name of the ingredient
+     * @param amount
+     *            starting amount of the ingredient
+     * @return the updated Inventory
+     */
+    public Inventory addIngredient ( final String name, final Integer amount ) {
+        reloading.writeLock().lock();
+        try {
+            final Inventory inventory = getInventory();
+            inventory.addIngredient( name, amount );
+            save( inventory );
+            journal.record( InventoryEventType.SET, name, inventory.getIngredient( name ) );
+            return inventory;
+        }
+        finally {
+            reloading.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Applies signed changes to several ingredients in one transaction. Rows
+     * already in the Inventory are found by name through the ledger and
+     * changed with relative updates, without loading the Inventory; only
+     * ingredients that are new to the Inventory cause it to be loaded, so
+     * they can be added to it. If any amount would go negative the whole
+     * change is rolled back.
+     *
+     * @param deltas
+     *            amount to add to each ingredient, by name; may be negative.
+     *            Zero entries are ignored.
+     * @return the new amount of every ingredient that changed, by name
+     * @throws IllegalArgumentException
+     *             if an ingredient would end up with a negative amount
+     */
+    public Map<String, Integer> applyDeltas ( final Map<String, Integer> deltas ) {
+        if ( writeBehind != null ) {
+            writeBehind.flush();
+        }
+        if ( !ledger.isLoaded() ) {
+            loadLedger();
+        }
+
+        final Map<String, Integer> added = new LinkedHashMap<String, Integer>();
+        final Map<Long, String> rows = new TreeMap<Long, String>();
+        for ( final Map.Entry<String, Integer> entry : deltas.entrySet() ) {
+            final String name = entry.getKey();
+            final int delta = entry.getValue();
+            if ( delta == 0 ) {
+                continue;
+            }
+            final int id = IngredientDictionary.lookup( name );
+            Long row = id == IngredientDictionary.UNKNOWN ? null : ledger.getRowId( id );
+            if ( row == null ) {
+                row = ingredientRepository.findInventoryIngredientId( name );
+            }
+            if ( row != null ) {
+                rows.put( row, name );
+            }
+            else if ( delta < 0 ) {
+                throw new IllegalArgumentException( "Not enough " + name + " in inventory" );
+            }
+            else {
+                added.put( name, delta );
+            }
+        }
+
+        // add new ingredients first, since saving the Inventory writes every
+        // amount it loaded
+        if ( !added.isEmpty() ) {
+            reloading.writeLock().lock();
+            try {
+                final Inventory inventory = getInventory();
+                for ( final Map.Entry<String, Integer> entry : added.entrySet() ) {
+                    inventory.addIngredient( entry.getKey(), entry.getValue() );
+                }
+                save( inventory );
+            }
+            finally {
+                reloading.writeLock().unlock();
+            }
+        }
+
+        int[] vector = new int[0];
+        for ( final Map.Entry<Long, String> row : rows.entrySet() ) {
+            final int delta = deltas.get( row.getValue() );
+            if ( ingredientRepository.adjustAmount( row.getKey(), delta ) == 0 ) {
+                if ( !added.isEmpty() ) {
+                    // the ledger was reloaded with ingredients being rolled
+                    // back
+                    ledger.invalidate();
+                }
+                throw new IllegalArgumentException( "Not enough " + row.getValue() + " in inventory" );
+            }
+            final int id = IngredientDictionary.idOf( row.getValue() );
+            if ( vector.length <= id ) {
+                vector = Arrays.copyOf( vector, id + 1 );
+            }
+            vector[id] = delta;
+        }
+        ledger.adjust( vector );
+
+        final Map<String, Integer> changed = new TreeMap<String, Integer>( added );
+        if ( !rows.isEmpty() ) {
+            for ( final Object[] amount : ingredientRepository.findAmounts( rows.keySet() ) ) {
+                changed.put( (String) amount[0], (Integer) amount[1] );
+            }
+        }
+        final Map<String, Integer> journaled = new LinkedHashMap<String, Integer>( added );
+        for ( final String name : rows.values() ) {
+            journaled.put( name, deltas.get( name ) );
+        }
+        journal.record( InventoryEventType.ADJUST, journaled );
+        return changed;
+    }
+
+    /**
+     * Gets the version of the Inventory, which is the sequence number of the
+     * last change recorded in the journal. Every committed change through this
+     * service increases it.
+     *
+     * @return the version
+     */
+    public long getVersion () {
+        return journal.getSequence();
+    }
+
+    /**
+     * Records that an ingredient's amount was edited directly, without going
+     * through this service, and reloads the ledger before the next brew
+     *
+     * @param name
+     *            name of the ingredient
+     * @param amount
+     *            the new amount
+     */
+    public void ingredientEdited ( final String name, final int amount ) {
+        if ( journal.contains( name ) ) {
+            journal.record( InventoryEventType.SET, name, amount );
+        }
+        ledger.invalidate();
+    }
+
+    /**
+     * Gets how many drinks of each recipe can still be made with the
+     * unreserved inventory, from the RecipeAvailabilityIndex
+     *
+     * @return count by recipe name; null for recipes that no ingredient in the
+     *         Inventory limits
+     */
+    public Map<String, Integer> getAvailability () {
+        if ( !ledger.isLoaded() ) {
+            loadLedger();
+        }
+        return availabilityIndex.getAvailability();
+    }
+
+    /**
+     * Gets the amount of every ingredient in the Inventory at a point in time,
+     * rebuilt from the journal
+     *
+     * @param epochMillis
+     *            the point in time, in epoch milliseconds
+     * @return amounts by ingredient name
+     */
+    public Map<String, Integer> getInventoryAsOf ( final long epochMillis ) {
+        return journal.stateAsOf( epochMillis );
+    }
+
+    /**
+     * Saves the Inventory and reloads the ledger from it, so that restocks and
+     * other whole-Inventory edits are seen by subsequent brews. Callers that
+     * read the Inventory to change it hold the reload lock from the read to
+     * the save, so no brew buffered in between is lost.
+     *
+     * @param inventory
+     *            the Inventory to save
+     */
+    @Override
+    public void save ( final Inventory inventory ) {
+        super.save( inventory );
+        ledger.load( inventory );
+    }
+
+    /**
+     * Deducts the ingredients for a recipe from the Inventory if there are
+     * enough of them. The check and deduction happen against the in-memory
+     * ledger, so concurrent brews only contend on the ingredients they share;
+     * the deltas are then written to the Ingredient rows without loading the
+     * Inventory. If the transaction they are written in rolls back, the ledger
+     * is given them back.
+     *
+     * In database mode the deduction is made with deductFromDatabase instead.
+     *
+     * @param recipe
+     *            the recipe being made
+     * @return true if the ingredients were deducted, false if there was not
+     *         enough inventory
+     */
+    public boolean useIngredients ( final Recipe recipe ) {
+        return useIngredients( recipe.getDemand() );
+    }
+
+    /**
+     * Deducts a demand vector from the Inventory if there is enough of every
+     * ingredient in it, as useIngredients(Recipe) does
+     *
+     * @param demand
+     *            amount of each ingredient needed, indexed by
+     *            IngredientDictionary id
+     * @return true if the ingredients were deducted, false if there was not
+     *         enough inventory
+     */
+    public boolean useIngredients ( final int[] demand ) {
+        if ( !ledger.isLoaded() ) {
+            loadLedger();
+        }
+        if ( databaseMode ) {
+            return deductFromDatabase( demand );
+        }
+        startDeduction();
+        try {
+            if ( !ledger.tryDeduct( demand ) ) {
+                return false;
+            }
+            final boolean undone = creditOnRollback( demand );
+            try {
+                persistDeduction( demand );
+            }
+            catch ( final RuntimeException e ) {
+                if ( !undone ) {
+                    ledger.credit( demand );
+                }
+                throw e;
+            }
+            return true;
+        }
+        finally {
+            endDeduction();
+        }
+    }
+
+    /**
+     * Deducts the ingredients for several recipes at once. Each recipe is
+     * checked and deducted on its own, in list order, so one drink running out
+     * does not fail the others; the deductions that succeed are then summed and
+     * written with one update per ingredient instead of one per drink. In
+     * database mode the whole batch is checked and deducted in one
+     * transaction as well, against rows locked for it.
+     *
+     * @param recipes
+     *            the recipes being made; null entries are skipped
+     * @return for each recipe, whether its ingredients were deducted
+     */
+    public boolean[] useIngredients ( final List<Recipe> recipes ) {
+        if ( !ledger.isLoaded() ) {
+            loadLedger();
+        }
+        if ( databaseMode ) {
+            return deductFromDatabase( recipes );
+        }
+        final boolean[] made = new boolean[recipes.size()];
+        int[] total = new int[0];
+        startDeduction();
+        try {
+            for ( int i = 0; i < made.length; i++ ) {
+                final Recipe recipe = recipes.get( i );
+                if ( recipe == null ) {
+                    continue;
+                }
+                final int[] demand = recipe.getDemand();
+                made[i] = ledger.tryDeduct( demand );
+                if ( made[i] ) {
+                    if ( total.length < demand.length ) {
+                        total = Arrays.copyOf( total, demand.length );
+                    }
+                    for ( int id = 0; id < demand.length; id++ ) {
+                        total[id] += demand[id];
+                    }
+                }
+            }
+
+            final boolean undone = creditOnRollback( total );
+            try {
+                persistDeduction( total );
+            }
+            catch ( final RuntimeException e ) {
+                if ( !undone ) {
+                    ledger.credit( total );
+                }
+                throw e;
+            }
+        }
+        finally {
+            endDeduction();
+        }
+        return made;
+    }
+
+    /**
+     * Reserves the ingredients for a recipe if there is enough unreserved
+     * stock. Reserved ingredients stay in the Inventory but can no longer be
+     * used by brews or other reservations.
+     *
+     * @param recipe
+     *            the recipe to reserve ingredients for
+     * @return the reserved amounts, indexed by IngredientDictionary id, or null
+     *         if there was not enough inventory
+     */
+    public int[] reserveIngredients ( final Recipe recipe ) {
+        if ( !ledger.isLoaded() ) {
+            loadLedger();
+        }
+        // copy, since the recipe recompiles its vector if it is edited
+        final int[] demand = recipe.getDemand().clone();
+        return ledger.tryReserve( demand ) ? demand : null;
+    }
+
+    /**
+     * Uses reserved ingredients, deducting them from the Inventory. In database
+     * mode the reservation is released and the amounts are deducted with
+     * deductFromDatabase, which fails if another instance used them first.
+     *
+     * @param reserved
+     *            amounts returned by reserveIngredients
+     * @return true if the ingredients were deducted
+     */
+    public boolean commitReservation ( final int[] reserved ) {
+        if ( databaseMode ) {
+            ledger.release( reserved );
+            return deductFromDatabase( reserved );
+        }
+        startDeduction();
+        try {
+            persistDeduction( ledger.commit( reserved ) );
+        }
+        finally {
+            endDeduction();
+        }
+        return true;
+    }
+
+    /**
+     * Gives reserved ingredients back without using them
+     *
+     * @param reserved
+     *            amounts returned by reserveIngredients
+     */
+    public void releaseReservation ( final int[] reserved ) {
+        ledger.release( reserved );
+    }
+
+    /**
+     * Loads the ledger from the database, unless another thread just did. In
+     * write-behind mode brews are held off from the flush until the ledger has
+     * been replaced, so none can deduct from the old ledger after the
+     * Inventory is read and be lost with it.
+     */
+    private void loadLedger () {
+        reloading.writeLock().lock();
+        try {
+            if ( !ledger.isLoaded() ) {
+                ledger.load( getInventory() );
+            }
+        }
+        finally {
+            reloading.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Keeps the ledger from being reloaded until endDeduction, in write-behind
+     * mode, while a brew deducts from the ledger and buffers the deduction
+     */
+    private void startDeduction () {
+        if ( writeBehind != null ) {
+            reloading.readLock().lock();
+        }
+    }
+
+    /**
+     * Lets the ledger be reloaded again after startDeduction
+     */
+    private void endDeduction () {
+        if ( writeBehind != null ) {
+            reloading.readLock().unlock();
+        }
+    }
+
+    /**
+     * Arranges for a deduction just taken from the ledger to be given back if
+     * the transaction writing it to the database rolls back, including when
+     * it only fails to commit. Buffered deductions are written in their own
+     * transaction, so in write-behind mode nothing is registered.
+     *
+     * @param demand
+     *            amount deducted from each ingredient, indexed by
+     *            IngredientDictionary id
+     * @return true if the deduction will be given back on rollback, false if
+     *         the caller has to give it back itself when writing it fails
+     */
+    private boolean creditOnRollback ( final int[] demand ) {
+        if ( writeBehind != null ) {
+            return false;
+        }
+        return AfterCommit.onRollback( "give back a deduction", () -> ledger.credit( demand ) );
+    }
+
+    /**
+     * Writes a deduction that has already been applied to the ledger to the
+     * Inventory's Ingredient rows. The journal entry is made once the
+     * deduction commits.
+     *
+     * @param demand
+     *            amount deducted from each ingredient, indexed by
+     *            IngredientDictionary id
+     */
+    private void persistDeduction ( final int[] demand ) {
+        final Map<String, Integer> deducted = new LinkedHashMap<String, Integer>();
+        for ( int id = 0; id < demand.length; id++ ) {
+            final Long row = ledger.getRowId( id );
+            if ( row != null && demand[id] > 0 ) {
+                deducted.put( IngredientDictionary.nameOf( id ), demand[id] );
+                if ( writeBehind != null ) {
+                    writeBehind.record( row, demand[id] );
+                }
+                else {
+                    ingredientRepository.decrementAmount( row, demand[id] );
+                }
+            }
+        }
+        journal.record( InventoryEventType.DEDUCT, deducted );
+    }
+
+    /**
+     * Deducts a demand vector straight from the Inventory's Ingredient rows,
+     * one conditional update per ingredient, without loading the Inventory.
+     * The updates run in a transaction of their own, which is rolled back if
+     * any row does not have enough or has been deleted, so either every
+     * ingredient is deducted or none is; the caller's transaction is left
+     * alone either way. Rows are updated in id order so that concurrent brews
+     * on different instances lock them in the same order and cannot deadlock.
+     * Ingredients that are not in the Inventory at all are ignored, as they
+     * are by the ledger.
+     *
+     * Once the deduction commits, the ledger's amounts for the rows it touched
+     * are set to what the database holds, which also takes in brews made by
+     * other instances.
+     *
+     * @param demand
+     *            amount of each ingredient needed, indexed by
+     *            IngredientDictionary id
+     * @return true if the ingredients were deducted, false if there was not
+     *         enough inventory
+     */
+    private boolean deductFromDatabase ( final int[] demand ) {
+        final Map<Long, String> names = new TreeMap<Long, String>();
+        final Map<Long, Integer> rows = rowsOf( demand, names );
+        if ( rows.isEmpty() ) {
+            return true;
+        }
+        return deductions.execute( status -> {
+            for ( final Map.Entry<Long, Integer> row : rows.entrySet() ) {
+                // 0 whether the row is short or no longer exists
+                if ( ingredientRepository.decrementIfAvailable( row.getKey(), row.getValue() ) == 0 ) {
+                    status.setRollbackOnly();
+                    return false;
+                }
+            }
+
+            final Map<String, Integer> deducted = new LinkedHashMap<String, Integer>();
+            for ( final Map.Entry<Long, Integer> row : rows.entrySet() ) {
+                deducted.put( names.get( row.getKey() ), row.getValue() );
+            }
+            journal.record( InventoryEventType.DEDUCT, deducted );
+
+            final Map<String, Integer> current = new TreeMap<String, Integer>();
+            for ( final Object[] amount : ingredientRepository.findAmounts( rows.keySet() ) ) {
+                current.put( (String) amount[0], (Integer) amount[1] );
+            }
+            AfterCommit.run( "refresh ledger after deduction", () -> ledger.refresh( current ) );
+            return true;
+        } );
+    }
+
+    /**
+     * Deducts the ingredients for several recipes straight from the
+     * Inventory's Ingredient rows, in one transaction. Every row the batch
+     * needs is locked first, in id order, so no other brew can change them
+     * before the batch commits; each recipe is then checked and deducted on
+     * its own against the locked amounts, in list order, and the rows are
+     * written once at commit. Ingredients that are not in the Inventory at all
+     * are ignored, as they are by the ledger.
+     *
+     * @param recipes
+     *            the recipes being made; null entries are skipped
+     * @return for each recipe, whether its ingredients were deducted
+     */
+    private boolean[] deductFromDatabase ( final List<Recipe> recipes ) {
+        final boolean[] made = new boolean[recipes.size()];
+        final List<Map<Long, Integer>> needs = new ArrayList<Map<Long, Integer>>( recipes.size() );
+        final Map<Long, String> names = new TreeMap<Long, String>();
+        for ( final Recipe recipe : recipes ) {
+            needs.add( recipe == null ? null : rowsOf( recipe.getDemand(), names ) );
+        }
+        if ( names.isEmpty() ) {
+            for ( int i = 0; i < made.length; i++ ) {
+                made[i] = needs.get( i ) != null;
+            }
+            return made;
+        }
+
+        deductions.execute( status -> {
+            final Map<Long, Ingredient> locked = new TreeMap<Long, Ingredient>();
+            for ( final Ingredient ingredient : ingredientRepository.lockByIdIn( names.keySet() ) ) {
+                locked.put( ingredient.getId(), ingredient );
+            }
+            final Map<String, Integer> deducted = new LinkedHashMap<String, Integer>();
+            for ( int i = 0; i < made.length; i++ ) {
+                final Map<Long, Integer> need = needs.get( i );
+                made[i] = need != null && enough( locked, need );
+                if ( made[i] ) {
+                    for ( final Map.Entry<Long, Integer> row : need.entrySet() ) {
+                        final Ingredient ingredient = locked.get( row.getKey() );
+                        ingredient.setAmount( ingredient.getAmount() - row.getValue() );
+                        deducted.merge( names.get( row.getKey() ), row.getValue(), Integer::sum );
+                    }
+                }
+            }
+            if ( deducted.isEmpty() ) {
+                return null;
+            }
+            journal.record( InventoryEventType.DEDUCT, deducted );
+
+            final Map<String, Integer> current = new TreeMap<String, Integer>();
+            for ( final Ingredient ingredient : locked.values() ) {
+                current.put( ingredient.getName(), ingredient.getAmount() );
+            }
+            AfterCommit.run( "refresh ledger after deduction", () -> ledger.refresh( current ) );
+            return null;
+        } );
+        return made;
+    }
+
+    /**
+     * Checks that locked Ingredient rows hold enough for one recipe
+     *
+     * @param locked
+     *            the locked rows, by id
+     * @param need
+     *            amount needed from each row, by id
+     * @return true if every row exists and has enough
+     */
+    private static boolean enough ( final Map<Long, Ingredient> locked, final Map<Long, Integer> need ) {
+        for ( final Map.Entry<Long, Integer> row : need.entrySet() ) {
+            final Ingredient ingredient = locked.get( row.getKey() );
+            if ( ingredient == null || ingredient.getAmount() < row.getValue() ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the Ingredient rows a demand vector is deducted from
+     *
+     * @param demand
+     *            amount of each ingredient needed, indexed by
+     *            IngredientDictionary id
+     * @param names
+     *            filled in with the name of each row found, by row id
+     * @return amount needed from each row, by row id, in id order; ingredients
+     *         not in the Inventory are left out
+     */
+    private Map<Long, Integer> rowsOf ( final int[] demand, final Map<Long, String> names ) {
+        final Map<Long, Integer> rows = new TreeMap<Long, Integer>();
+        for ( int id = 0; id < demand.length; id++ ) {
+            if ( demand[id] > 0 ) {
+                final String name = IngredientDictionary.nameOf( id );
+                Long row = ledger.getRowId( id );
+                if ( row == null ) {
+                    // may have been added by another instance
+                    row = ingredientRepository.findInventoryIngredientId( name );
+                }
+                if ( row != null ) {
+                    rows.put( row, demand[id] );
+                    names.put( row, name );
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Writes a group of coalesced deductions from the write-behind buffer
+     *
+     * @param deltas
+     *            amount to subtract from each Ingredient row, keyed by row id
+     */
+    private void writeDeltas ( final Map<Long, Integer> deltas ) {
+        for ( final Map.Entry<Long, Integer> delta : deltas.entrySet() ) {
+            ingredientRepository.decrementAmount( delta.getKey(), delta.getValue() );
+        }
+    }
+
+    /**
+     * Collects the amounts of a list of ingredients by name
+     *
+     * @param ingredients
+     *            the ingredients
+     * @return amounts by name, in list order
+     */
+    private Map<String, Integer> amountsOf ( final List<Ingredient> ingredients ) {
+        final Map<String, Integer> amounts = new LinkedHashMap<String, Integer>();
+        for ( final Ingredient ing : ingredients ) {
+            amounts.merge( ing.getName(), ing.getAmount(), Integer::sum );
+        }
+        return amounts;
+    }
+
+    /**
+     * Forces the ledger to be reloaded from the database before the next brew.
+     * Call this after editing an Inventory Ingredient without going through
+     * this service.
+     */
+    public void invalidateLedger () {
+        ledger.invalidate();
+    }
+
 }
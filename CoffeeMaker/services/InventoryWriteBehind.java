@@ -0,0 +1,161 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Buffers inventory deductions that have already been applied to the
+ * InventoryLedger and writes them to the database in groups. Deductions to the
+ * same Ingredient row are coalesced, so a flush costs one update per
+ * ingredient touched no matter how many drinks were made since the last one.
+ *
+ * At most maxPending deductions are ever buffered: a caller that would go over
+ * the limit flushes synchronously first. Together with a periodic flush this
+ * bounds how much can be lost if the process dies.
+ */
+public class InventoryWriteBehind {
+
+    /**
+     * Where coalesced deductions are written
+     */
+    public interface DeltaSink {
+
+        /**
+         * Writes a group of deductions. Either all of them are persisted or
+         * an exception is thrown.
+         *
+         * @param deltas
+         *            amount to subtract from each Ingredient row, keyed by
+         *            row id
+         */
+        void write ( Map<Long, Integer> deltas );
+    }
+
+    /** Where flushed deductions go */
+    private final DeltaSink                                   sink;
+
+    /** Most deductions that may be buffered at once */
+    private final int                                         maxPending;
+
+    /** Readers record into the buffer; the writer swaps it out to flush */
+    private final ReentrantReadWriteLock                      swap = new ReentrantReadWriteLock();
+
+    /** Ensures only one flush writes to the sink at a time */
+    private final Object                                      flushing = new Object();
+
+    /** Coalesced deductions waiting to be written, keyed by row id */
+    private volatile ConcurrentHashMap<Long, AtomicInteger>   pending = new ConcurrentHashMap<Long, AtomicInteger>();
+
+    /** Number of deductions in the buffer */
+    private final AtomicInteger                               count = new AtomicInteger();
+
+    /**
+     * Creates a write-behind buffer
+     *
+     * @param sink
+     *            where flushed deductions go
+     * @param maxPending
+     *            most deductions that may be buffered before a caller has to
+     *            flush synchronously
+     */
+    public InventoryWriteBehind ( final DeltaSink sink, final int maxPending ) {
+        this.sink = sink;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Buffers a deduction. If the buffer is full it is flushed first, in the
+     * calling thread; if that flush fails the exception is thrown and the
+     * deduction is not buffered.
+     *
+     * @param rowId
+     *            id of the Ingredient row
+     * @param amount
+     *            amount to subtract
+     */
+    public void record ( final Long rowId, final int amount ) {
+        if ( count.get() >= maxPending ) {
+            flush();
+        }
+        swap.readLock().lock();
+        try {
+            pending.computeIfAbsent( rowId, id -> new AtomicInteger() ).addAndGet( amount );
+            count.incrementAndGet();
+        }
+        finally {
+            swap.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes everything buffered so far to the sink. If the sink fails the
+     * deductions are put back in the buffer and the exception is thrown.
+     *
+     * @return the number of deductions written
+     */
+    public int flush () {
+        synchronized ( flushing ) {
+            final Map<Long, AtomicInteger> batch;
+            final int batched;
+            swap.writeLock().lock();
+            try {
+                batch = pending;
+                batched = count.getAndSet( 0 );
+                pending = new ConcurrentHashMap<Long, AtomicInteger>();
+            }
+            finally {
+                swap.writeLock().unlock();
+            }
+            if ( batch.isEmpty() ) {
+                return 0;
+            }
+
+            final Map<Long, Integer> deltas = new HashMap<Long, Integer>();
+            for ( final Map.Entry<Long, AtomicInteger> entry : batch.entrySet() ) {
+                deltas.put( entry.getKey(), entry.getValue().get() );
+            }
+            try {
+                sink.write( deltas );
+            }
+            catch ( final RuntimeException e ) {
+                requeue( deltas, batched );
+                throw e;
+            }
+            return batched;
+        }
+    }
+
+    /**
+     * Returns how many deductions are waiting to be written
+     *
+     * @return number of buffered deductions
+     */
+    public int getPending () {
+        return count.get();
+    }
+
+    /**
+     * Puts deductions from a failed flush back in the buffer
+     *
+     * @param deltas
+     *            the deductions that were not written
+     * @param batched
+     *            how many deductions they were coalesced from
+     */
+    private void requeue ( final Map<Long, Integer> deltas, final int batched ) {
+        swap.readLock().lock();
+        try {
+            for ( final Map.Entry<Long, Integer> entry : deltas.entrySet() ) {
+                pending.computeIfAbsent( entry.getKey(), id -> new AtomicInteger() ).addAndGet( entry.getValue() );
+            }
+            count.addAndGet( batched );
+        }
+        finally {
+            swap.readLock().unlock();
+        }
+    }
+
+}
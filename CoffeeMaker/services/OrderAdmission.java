@@ -0,0 +1,205 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+import edu.ncsu.csc.CoffeeMaker.repositories.OrderRepository;
+
+/**
+ * Decides whether a new order can be taken, so that orders stop being accepted
+ * once the queue is too long to serve them in reasonable time. An order is
+ * turned away when any of these limits is set and would be crossed:
+ *
+ * coffeemaker.admission.max-depth, the most orders waiting;
+ * coffeemaker.admission.max-per-recipe, the most orders of one recipe waiting;
+ * and coffeemaker.admission.max-wait-ms, the longest a new order would wait,
+ * from the OrderEtaEstimator's drain rate. Each is off when 0, as it is by
+ * default.
+ *
+ * The counts come from the OrderDispatchQueue and from counters per recipe
+ * kept here, so no query is run. The check is not atomic with placing the
+ * order, so a burst can overshoot a limit by the number of orders placed at
+ * the same moment.
+ */
+@Component
+public class OrderAdmission implements OrderTransitionListener {
+
+    /** Most orders waiting, or 0 for no limit */
+    @Value ( "${coffeemaker.admission.max-depth:0}" )
+    private int                               maxDepth;
+
+    /** Most orders of one recipe waiting, or 0 for no limit */
+    @Value ( "${coffeemaker.admission.max-per-recipe:0}" )
+    private int                               maxPerRecipe;
+
+    /** Longest a new order may be expected to wait, or 0 for no limit */
+    @Value ( "${coffeemaker.admission.max-wait-ms:0}" )
+    private long                              maxWait;
+
+    /** Used to count the waiting orders on startup */
+    @Autowired
+    private OrderRepository                   orderRepository;
+
+    /** Holds the waiting orders */
+    @Autowired
+    private OrderDispatchQueue                dispatchQueue;
+
+    /** Gives the rate the queue drains at */
+    @Autowired
+    private OrderEtaEstimator                 etaEstimator;
+
+    /** Waiting orders by recipe name */
+    private final Map<String, AtomicInteger>  waiting = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Counts the orders that are already waiting
+     */
+    @PostConstruct
+    public void seed () {
+        for ( final CustomerOrder order : orderRepository.findByStatusOrderByIdAsc( OrderEnum.IN_QUEUE ) ) {
+            count( order.getRecipeName(), 1 );
+        }
+    }
+
+    /**
+     * Checks whether an order for a recipe can be taken now
+     *
+     * @param recipe
+     *            name of the recipe
+     * @return null if it can, otherwise why not and when to try again
+     */
+    public Rejection check ( final String recipe ) {
+        final int depth = dispatchQueue.size();
+        final double drain = etaEstimator.drainTime();
+        final int same = waiting( recipe );
+        if ( maxDepth > 0 && depth >= maxDepth ) {
+            return new Rejection( "Too many orders are waiting; please try again later",
+                    ( depth - maxDepth + 1 ) * drain );
+        }
+        if ( maxWait > 0 && depth * drain > maxWait ) {
+            return new Rejection( "Orders are taking too long; please try again later", depth * drain - maxWait );
+        }
+        if ( maxPerRecipe > 0 && same >= maxPerRecipe ) {
+            // orders of one recipe are spread through the queue, so the whole
+            // queue drains while they do
+            return new Rejection( "Too many orders for " + recipe + " are waiting; please try again later",
+                    ( same - maxPerRecipe + 1 ) * Math.max( 1.0, (double) depth / same ) * drain );
+        }
+        return null;
+    }
+
+    /**
+     * Gets how many orders of a recipe are waiting
+     *
+     * @param recipe
+     *            name of the recipe
+     * @return the number of orders
+     */
+    public int waiting ( final String recipe ) {
+        final AtomicInteger count = recipe == null ? null : waiting.get( recipe );
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Counts orders entering and leaving the queue, once the change commits
+     *
+     * @param order
+     *            the order
+     * @param transition
+     *            what happened to it
+     */
+    @Override
+    public void orderTransitioned ( final CustomerOrder order, final OrderTransition transition ) {
+        final String recipe = order.getRecipeName();
+        if ( transition.getTo() == OrderEnum.IN_QUEUE ) {
+            AfterCommit.run( "count order " + order.getId(), () -> count( recipe, 1 ) );
+        }
+        else if ( transition.getFrom() == OrderEnum.IN_QUEUE ) {
+            AfterCommit.run( "count order " + order.getId(), () -> count( recipe, -1 ) );
+        }
+    }
+
+    /**
+     * Stops counting a deleted order that was waiting
+     *
+     * @param order
+     *            the deleted order
+     */
+    @Override
+    public void orderDeleted ( final CustomerOrder order ) {
+        if ( order.getCurrentState() == OrderEnum.IN_QUEUE ) {
+            final String recipe = order.getRecipeName();
+            AfterCommit.run( "count order " + order.getId(), () -> count( recipe, -1 ) );
+        }
+    }
+
+    /**
+     * Adds to the waiting count of a recipe
+     *
+     * @param recipe
+     *            name of the recipe, or null
+     * @param delta
+     *            1 for an order entering the queue, -1 for one leaving it
+     */
+    private void count ( final String recipe, final int delta ) {
+        if ( recipe != null ) {
+            // never below 0, in case an order was counted without its recipe
+            waiting.computeIfAbsent( recipe, name -> new AtomicInteger() )
+                    .updateAndGet( count -> Math.max( 0, count + delta ) );
+        }
+    }
+
+    /**
+     * Why an order was turned away
+     */
+    public static final class Rejection {
+
+        /** What to tell the customer */
+        private final String reason;
+
+        /** Seconds to wait before trying again */
+        private final long   retryAfter;
+
+        /**
+         * Creates a rejection
+         *
+         * @param reason
+         *            what to tell the customer
+         * @param retryAfterMs
+         *            how long until the order could be taken, in milliseconds
+         */
+        private Rejection ( final String reason, final double retryAfterMs ) {
+            this.reason = reason;
+            this.retryAfter = Math.max( 1, (long) Math.ceil( retryAfterMs / 1000 ) );
+        }
+
+        /**
+         * Gets what to tell the customer
+         *
+         * @return the reason
+         */
+        public String getReason () {
+            return reason;
+        }
+
+        /**
+         * Gets how long to wait before trying again
+         *
+         * @return the time in seconds, at least 1
+         */
+        public long getRetryAfter () {
+            return retryAfter;
+        }
+    }
+
+}
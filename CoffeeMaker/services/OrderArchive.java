@@ -0,0 +1,615 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.google.gson.Gson;
+
+import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+import edu.ncsu.csc.CoffeeMaker.models.user.User;
+import edu.ncsu.csc.CoffeeMaker.repositories.OrderRepository;
+import edu.ncsu.csc.CoffeeMaker.repositories.OrderTransitionRepository;
+import edu.ncsu.csc.CoffeeMaker.repositories.UserRepository;
+
+/**
+ * Moves orders that can no longer change (PICKED_UP and CANCELLED) out of the
+ * database once they are old enough, so they stop weighing on order queries
+ * and on the order sets loaded with every User. Archived orders are written,
+ * with their transitions, to gzip-compressed files of one JSON object per
+ * line. Files are only ever added, never changed.
+ *
+ * Each run archives orders in batches, one file and one transaction per
+ * batch. The batch is written to a temporary file before the orders are
+ * deleted, and the file only takes its final name, and its revenue is only
+ * counted, once the deletion commits. An order is therefore never in an
+ * archive file and in the database at once. A temporary file left by a crash
+ * is finished when the archive is next opened if its orders are gone from the
+ * database, and deleted if they are not. Revenue is counted once per order
+ * id, whatever happens. Each file name holds the range of placement times in
+ * it, so a read only opens the files that can match.
+ */
+@Component
+public class OrderArchive {
+
+    /** States of orders that can be archived */
+    public static final Set<OrderEnum> TERMINAL   = EnumSet.of( OrderEnum.PICKED_UP, OrderEnum.CANCELLED );
+
+    /** Orders archived per file and transaction */
+    private static final int           BATCH_SIZE = 500;
+
+    /** Archive file name: first and last placement time, then the first order id */
+    private static final Pattern       FILE       = Pattern.compile( "orders-(\\d+)-(\\d+)-(\\d+)\\.jsonl\\.gz" );
+
+    /** Serializes archived orders */
+    private static final Gson          GSON       = new Gson();
+
+    /** Directory the archive files are kept in */
+    @Value ( "${coffeemaker.orders.archive.dir:archive}" )
+    private String                     directory;
+
+    /** How long after being placed a finished order is archived */
+    @Value ( "${coffeemaker.orders.archive.after-days:30}" )
+    private int                        afterDays;
+
+    /** Used to find and delete the orders to archive */
+    @Autowired
+    private OrderRepository            orderRepository;
+
+    /** Used to read and delete the transitions of archived orders */
+    @Autowired
+    private OrderTransitionRepository  transitionRepository;
+
+    /** Used to detach archived orders from the users that refer to them */
+    @Autowired
+    private UserRepository             userRepository;
+
+    /** Used to archive each batch in its own transaction */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /** The archive directory */
+    private Path                       root;
+
+    /** Revenue earned by the archived orders */
+    private final AtomicLong           revenue    = new AtomicLong();
+
+    /** Ids of the orders whose revenue has been counted */
+    private final Set<Long>            counted    = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Opens the archive directory, settles any batch a crash left unfinished,
+     * and adds up the revenue already archived
+     */
+    @PostConstruct
+    public void open () {
+        try {
+            root = Paths.get( directory );
+            Files.createDirectories( root );
+            recover();
+            counted.clear();
+            long total = 0;
+            for ( final Path file : files( Long.MIN_VALUE, Long.MAX_VALUE ) ) {
+                for ( final ArchivedOrder order : read( file ) ) {
+                    if ( counted.add( order.id ) ) {
+                        total += order.revenue();
+                    }
+                }
+            }
+            revenue.set( total );
+        }
+        catch ( final IOException e ) {
+            throw new UncheckedIOException( "Could not open the order archive in " + directory, e );
+        }
+    }
+
+    /**
+     * Gets the revenue earned by every archived order
+     *
+     * @return the revenue
+     */
+    public long getArchivedRevenue () {
+        return revenue.get();
+    }
+
+    /**
+     * Archives every finished order placed longer ago than the configured age
+     *
+     * @return the number of orders archived
+     */
+    @Scheduled ( fixedDelayString = "${coffeemaker.orders.archive.interval-ms:3600000}",
+            initialDelayString = "${coffeemaker.orders.archive.initial-delay-ms:60000}" )
+    public synchronized int archive () {
+        final long cutoff = System.currentTimeMillis() - Duration.ofDays( afterDays ).toMillis();
+        final TransactionTemplate template = new TransactionTemplate( transactionManager );
+        int archived = 0;
+        int batch;
+        do {
+            final Path[] written = new Path[1];
+            try {
+                batch = template.execute( status -> archiveBatch( cutoff, written ) );
+            }
+            catch ( final RuntimeException e ) {
+                System.out.println( "Could not archive orders: " + e.getMessage() );
+                // the commit itself may have failed after all
+                if ( written[0] != null ) {
+                    settle( written[0] );
+                }
+                break;
+            }
+            archived += batch;
+        }
+        while ( batch == BATCH_SIZE );
+        if ( archived > 0 ) {
+            System.out.println( "Archived " + archived + " orders" );
+        }
+        return archived;
+    }
+
+    /**
+     * Reads archived orders placed in a time range, oldest first
+     *
+     * @param from
+     *            earliest placement time, inclusive, in epoch milliseconds
+     * @param to
+     *            latest placement time, exclusive, in epoch milliseconds
+     * @param customer
+     *            only orders by this customer, or null for all
+     * @param status
+     *            only orders in this state, or null for all
+     * @param limit
+     *            most orders to return
+     * @return the orders
+     */
+    public List<ArchivedOrder> find ( final long from, final long to, final String customer,
+            final OrderEnum status, final int limit ) {
+        final Comparator<ArchivedOrder> byPlacement = Comparator.comparingLong( ArchivedOrder::getPlacedAt )
+                .thenComparingLong( ArchivedOrder::getId );
+        final List<ArchivedOrder> found = new ArrayList<ArchivedOrder>();
+        final Set<Long> seen = new HashSet<Long>();
+        try {
+            for ( final Path file : files( from, to ) ) {
+                // files are in order of their earliest order, so once a full
+                // page is older than everything left the rest can be skipped
+                if ( found.size() >= limit && range( file )[0] > found.get( limit - 1 ).placedAt ) {
+                    break;
+                }
+                for ( final ArchivedOrder order : read( file ) ) {
+                    if ( order.placedAt >= from && order.placedAt < to
+                            && ( customer == null || customer.equals( order.customer ) )
+                            && ( status == null || status.name().equals( order.status ) ) && seen.add( order.id ) ) {
+                        found.add( order );
+                    }
+                }
+                found.sort( byPlacement );
+                if ( found.size() > limit ) {
+                    found.subList( limit, found.size() ).clear();
+                }
+            }
+        }
+        catch ( final IOException e ) {
+            throw new UncheckedIOException( "Could not read the order archive", e );
+        }
+        return found;
+    }
+
+    /**
+     * Archives one batch of orders: writes them to a temporary file, then
+     * deletes them from the database. Runs in a transaction; once it commits
+     * the file is moved to its final name and the batch's revenue is counted.
+     *
+     * @param cutoff
+     *            archive orders placed before this time
+     * @param written
+     *            set to the temporary file written, so it can be removed if
+     *            the transaction fails
+     * @return the number of orders archived
+     */
+    private int archiveBatch ( final long cutoff, final Path[] written ) {
+        final List<CustomerOrder> orders = orderRepository.findPlacedBefore( TERMINAL, cutoff,
+                PageRequest.of( 0, BATCH_SIZE ) );
+        if ( orders.isEmpty() ) {
+            return 0;
+        }
+        final List<Long> ids = new ArrayList<Long>( orders.size() );
+        for ( final CustomerOrder order : orders ) {
+            ids.add( order.getId() );
+        }
+        final Map<Long, List<OrderTransition>> transitions = new HashMap<Long, List<OrderTransition>>();
+        for ( final OrderTransition transition : transitionRepository.findByOrderIdInOrderByIdAsc( ids ) ) {
+            transitions.computeIfAbsent( transition.getOrderId(), id -> new ArrayList<OrderTransition>() )
+                    .add( transition );
+        }
+
+        final List<ArchivedOrder> records = new ArrayList<ArchivedOrder>( orders.size() );
+        for ( final CustomerOrder order : orders ) {
+            records.add( new ArchivedOrder( order, transitions.get( order.getId() ) ) );
+        }
+        final Path temp = write( records );
+        written[0] = temp;
+
+        for ( final User user : userRepository.findReferencingOrders( ids ) ) {
+            user.releaseOrders( ids );
+        }
+        transitionRepository.deleteByOrderIdIn( ids );
+        orderRepository.deleteAll( orders );
+
+        AfterCommit.run( "finish archive file " + temp, () -> {
+            // counted first, so a file that cannot be moved now is still
+            // counted; it is moved when the archive is next opened
+            credit( records );
+            finish( temp );
+        } );
+        return orders.size();
+    }
+
+    /**
+     * Counts the revenue of archived orders whose revenue has not been counted
+     * yet
+     *
+     * @param records
+     *            the orders
+     */
+    private void credit ( final List<ArchivedOrder> records ) {
+        long credited = 0;
+        for ( final ArchivedOrder record : records ) {
+            if ( counted.add( record.id ) ) {
+                credited += record.revenue();
+            }
+        }
+        revenue.addAndGet( credited );
+    }
+
+    /**
+     * Settles the temporary files left by batches that were interrupted
+     *
+     * @throws IOException
+     *             if the directory cannot be read
+     */
+    private void recover () throws IOException {
+        final List<Path> temps = new ArrayList<Path>();
+        try ( DirectoryStream<Path> stream = Files.newDirectoryStream( root, "orders-*.jsonl.gz.tmp" ) ) {
+            for ( final Path temp : stream ) {
+                temps.add( temp );
+            }
+        }
+        for ( final Path temp : temps ) {
+            settle( temp );
+        }
+    }
+
+    /**
+     * Settles the temporary file of a batch whose transaction did not finish
+     * normally. If the batch's orders are all gone from the database it
+     * committed, so the file is moved to its final name and its revenue is
+     * counted if it has not been; otherwise it rolled back, and the file is
+     * deleted so the orders are archived again later.
+     *
+     * @param temp
+     *            the temporary file
+     */
+    private void settle ( final Path temp ) {
+        final List<ArchivedOrder> records;
+        try {
+            records = read( temp );
+        }
+        catch ( final IOException e ) {
+            // missing, or cut short, which it can only be before the commit
+            deleteQuietly( temp );
+            return;
+        }
+        final List<Long> ids = new ArrayList<Long>( records.size() );
+        for ( final ArchivedOrder record : records ) {
+            ids.add( record.id );
+        }
+        if ( !ids.isEmpty() && orderRepository.findAllById( ids ).isEmpty() ) {
+            credit( records );
+            finish( temp );
+        }
+        else {
+            deleteQuietly( temp );
+        }
+    }
+
+    /**
+     * Moves a temporary archive file to its final name
+     *
+     * @param temp
+     *            the temporary file
+     * @throws UncheckedIOException
+     *             if the file cannot be moved
+     */
+    private static void finish ( final Path temp ) {
+        final String name = temp.getFileName().toString();
+        final Path file = temp.resolveSibling( name.substring( 0, name.length() - ".tmp".length() ) );
+        try {
+            // the name holds the batch's first order id, and an order is only
+            // archived once, so nothing is replaced
+            Files.move( temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING );
+        }
+        catch ( final IOException e ) {
+            throw new UncheckedIOException( "Could not move archive file " + temp, e );
+        }
+    }
+
+    /**
+     * Writes a new archive file, durably, under a temporary name to be moved
+     * to its final name by finish()
+     *
+     * @param records
+     *            the orders to write
+     * @return the temporary file
+     */
+    private Path write ( final List<ArchivedOrder> records ) {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for ( final ArchivedOrder record : records ) {
+            first = Math.min( first, record.placedAt );
+            last = Math.max( last, record.placedAt );
+        }
+        final Path file = root.resolve( String.format( "orders-%013d-%013d-%d.jsonl.gz", first, last,
+                records.get( 0 ).id ) );
+        final Path temp = root.resolve( file.getFileName() + ".tmp" );
+        try {
+            try ( FileOutputStream out = new FileOutputStream( temp.toFile() ) ) {
+                final BufferedWriter writer = new BufferedWriter(
+                        new OutputStreamWriter( new GZIPOutputStream( out ), StandardCharsets.UTF_8 ) );
+                for ( final ArchivedOrder record : records ) {
+                    writer.write( GSON.toJson( record ) );
+                    writer.newLine();
+                }
+                writer.flush();
+                // on disk before the orders are deleted
+                out.getFD().sync();
+                writer.close();
+            }
+            return temp;
+        }
+        catch ( final IOException e ) {
+            deleteQuietly( temp );
+            throw new UncheckedIOException( "Could not write archive file " + file, e );
+        }
+    }
+
+    /**
+     * Lists the archive files that can hold orders placed in a time range, in
+     * order of their earliest order
+     *
+     * @param from
+     *            earliest placement time, inclusive
+     * @param to
+     *            latest placement time, exclusive
+     * @return the files
+     * @throws IOException
+     *             if the directory cannot be read
+     */
+    private List<Path> files ( final long from, final long to ) throws IOException {
+        final List<Path> files = new ArrayList<Path>();
+        try ( DirectoryStream<Path> stream = Files.newDirectoryStream( root, "orders-*.jsonl.gz" ) ) {
+            for ( final Path file : stream ) {
+                final long[] range = range( file );
+                if ( range != null && range[1] >= from && range[0] < to ) {
+                    files.add( file );
+                }
+            }
+        }
+        files.sort( Comparator.comparingLong( ( final Path file ) -> range( file )[0] )
+                .thenComparing( Path::getFileName ) );
+        return files;
+    }
+
+    /**
+     * Reads the range of placement times from an archive file's name
+     *
+     * @param file
+     *            the file
+     * @return the earliest and latest placement time, or null if the name is
+     *         not an archive file name
+     */
+    private static long[] range ( final Path file ) {
+        final Matcher m = FILE.matcher( file.getFileName().toString() );
+        if ( !m.matches() ) {
+            return null;
+        }
+        return new long[] { Long.parseLong( m.group( 1 ) ), Long.parseLong( m.group( 2 ) ) };
+    }
+
+    /**
+     * Reads every order in an archive file
+     *
+     * @param file
+     *            the file
+     * @return the orders
+     * @throws IOException
+     *             if the file cannot be read
+     */
+    private static List<ArchivedOrder> read ( final Path file ) throws IOException {
+        final List<ArchivedOrder> orders = new ArrayList<ArchivedOrder>();
+        try ( BufferedReader reader = new BufferedReader( new InputStreamReader(
+                new GZIPInputStream( Files.newInputStream( file ) ), StandardCharsets.UTF_8 ) ) ) {
+            String line;
+            while ( ( line = reader.readLine() ) != null ) {
+                if ( !line.isEmpty() ) {
+                    orders.add( GSON.fromJson( line, ArchivedOrder.class ) );
+                }
+            }
+        }
+        return orders;
+    }
+
+    /**
+     * Deletes a file, ignoring errors
+     *
+     * @param file
+     *            the file, or null
+     */
+    private static void deleteQuietly ( final Path file ) {
+        if ( file == null ) {
+            return;
+        }
+        try {
+            Files.deleteIfExists( file );
+        }
+        catch ( final IOException e ) {
+            System.out.println( "Could not delete " + file + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * An order as it is kept in the archive
+     */
+    public static final class ArchivedOrder {
+
+        /** The order's id */
+        private long                             id;
+
+        /** Customer who placed the order */
+        private String                           customer;
+
+        /** Staff member who last worked on it, if any */
+        private String                           barista;
+
+        /** Name of the recipe ordered */
+        private String                           recipe;
+
+        /** Price of the order, fixed when it was placed */
+        private Integer                          price;
+
+        /** State the order finished in */
+        private String                           status;
+
+        /** When the order was placed, in epoch milliseconds */
+        private long                             placedAt;
+
+        /** The order's transitions, oldest first */
+        private List<ArchivedTransition>         transitions;
+
+        /** For Gson */
+        private ArchivedOrder () {
+        }
+
+        /**
+         * Describes an order for the archive
+         *
+         * @param order
+         *            the order
+         * @param transitions
+         *            its transitions, or null if none were stored
+         */
+        private ArchivedOrder ( final CustomerOrder order, final List<OrderTransition> transitions ) {
+            this.id = order.getId();
+            this.customer = order.getCustomer();
+            this.barista = order.getStaff();
+            this.recipe = order.getRecipeName();
+            this.price = order.getPrice();
+            this.status = order.getCurrentState().name();
+            this.placedAt = order.getPlacedAt() == null ? 0 : order.getPlacedAt();
+            this.transitions = new ArrayList<ArchivedTransition>();
+            if ( transitions != null ) {
+                for ( final OrderTransition transition : transitions ) {
+                    this.transitions.add( new ArchivedTransition( transition ) );
+                }
+            }
+        }
+
+        /**
+         * Gets the revenue the order earned
+         *
+         * @return its price if it was picked up, otherwise 0
+         */
+        private long revenue () {
+            return price != null && RevenueLedger.EARNED.contains( OrderEnum.valueOf( status ) ) ? price : 0;
+        }
+
+        /**
+         * Gets the order's id
+         *
+         * @return the id
+         */
+        public long getId () {
+            return id;
+        }
+
+        /**
+         * Gets when the order was placed
+         *
+         * @return epoch milliseconds
+         */
+        public long getPlacedAt () {
+            return placedAt;
+        }
+    }
+
+    /**
+     * A transition as it is kept in the archive
+     */
+    private static final class ArchivedTransition {
+
+        /** State the order left, or null when it was created */
+        private String from;
+
+        /** State the order entered */
+        private String to;
+
+        /** When it happened, in epoch milliseconds */
+        private long   at;
+
+        /** Id of the user who caused it, if known */
+        private Long   actor;
+
+        /** For Gson */
+        private ArchivedTransition () {
+        }
+
+        /**
+         * Describes a transition for the archive
+         *
+         * @param transition
+         *            the transition
+         */
+        private ArchivedTransition ( final OrderTransition transition ) {
+            this.from = transition.getFrom() == null ? null : transition.getFrom().name();
+            this.to = transition.getTo().name();
+            this.at = transition.getTimestamp();
+            this.actor = transition.getActorId();
+        }
+    }
+
+}
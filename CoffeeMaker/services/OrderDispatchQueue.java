@@ -0,0 +1,291 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+import edu.ncsu.csc.CoffeeMaker.repositories.OrderRepository;
+
+/**
+ * In-memory FIFO of the ids of orders waiting for a barista, so that staff can
+ * see and claim orders without querying the database. The queue follows the
+ * orders' transitions: an order is added when it is placed or handed back to
+ * the queue, and dropped when it moves on or is deleted.
+ *
+ * An id is claimable while it is in the claimable set. Taking an id out of
+ * that set is the claim, and since removal from a concurrent set succeeds for
+ * exactly one caller, two baristas can never both claim the same order. The
+ * claim is made before the claiming transaction commits, so OrderService puts
+ * the order back if it rolls back; orders that leave the queue any other way
+ * stop being claimable once their change commits.
+ *
+ * The FIFO itself is cleaned up lazily: ids that are no longer claimable are
+ * skipped and discarded when they reach the head. Ids taken from the middle
+ * of the queue are counted, and once there are more of them than
+ * claimable orders (and at least STALE_SLACK) the FIFO is compacted in one
+ * pass, so it stays within a constant factor of the number of waiting orders.
+ * Neither structure takes a lock.
+ *
+ * A QueuePositionIndex alongside them answers where an order is in the queue.
+ * An id is added to it before it becomes claimable and removed after it stops
+ * being claimable, so it never counts an order that has been claimed.
+ */
+@Component
+public class OrderDispatchQueue implements OrderTransitionListener {
+
+    /** Stale ids tolerated in the FIFO however few orders are waiting */
+    private static final int                  STALE_SLACK = 64;
+
+    /** Used to load the waiting orders on startup */
+    @Autowired
+    private OrderRepository                   orderRepository;
+
+    /** Waiting order ids, oldest first; may contain ids no longer claimable */
+    private final ConcurrentLinkedDeque<Long> queue      = new ConcurrentLinkedDeque<Long>();
+
+    /** Ids that can still be claimed */
+    private final Set<Long>                   claimable  = ConcurrentHashMap.newKeySet();
+
+    /** Position of each claimable id */
+    private final QueuePositionIndex          positions  = new QueuePositionIndex();
+
+    /** Roughly how many ids in the FIFO are no longer claimable */
+    private final AtomicInteger               stale      = new AtomicInteger();
+
+    /** Set while the FIFO is being compacted */
+    private final AtomicBoolean               compacting = new AtomicBoolean();
+
+    /**
+     * Loads the orders that are already waiting
+     */
+    @PostConstruct
+    public void seed () {
+        for ( final CustomerOrder order : orderRepository.findByStatusOrderByIdAsc( OrderEnum.IN_QUEUE ) ) {
+            offer( order.getId(), false );
+        }
+    }
+
+    /**
+     * Takes the oldest claimable order id off the queue
+     *
+     * @return the id, or null if no orders are waiting
+     */
+    public Long pollNext () {
+        Long id;
+        while ( ( id = queue.pollFirst() ) != null ) {
+            if ( unclaimable( id ) ) {
+                return id;
+            }
+            stale.decrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * Takes a specific order off the queue
+     *
+     * @param id
+     *            the order id
+     * @return true if this caller now owns the order, false if it was not
+     *         waiting or someone else took it first
+     */
+    public boolean take ( final Long id ) {
+        return retire( id );
+    }
+
+    /**
+     * Puts an order back at the front of the queue, after a claim that could
+     * not be completed
+     *
+     * @param id
+     *            the order id
+     */
+    public void putBack ( final Long id ) {
+        offer( id, true );
+    }
+
+    /**
+     * Gets the ids of some waiting orders, in the order they will be claimed,
+     * walking the queue only as far as needed. If the order to start after is
+     * still waiting the ids follow it in the queue; otherwise it has been
+     * claimed and there is no position to follow, so the ids are those placed
+     * after it, by id.
+     *
+     * @param after
+     *            id of the last order already seen, or null to start at the
+     *            front of the queue
+     * @param limit
+     *            most ids to return
+     * @return the ids
+     */
+    public List<Long> waiting ( final Long after, final int limit ) {
+        final Set<Long> ids = new LinkedHashSet<Long>();
+        final boolean byPosition = after == null || claimable.contains( after );
+        boolean started = after == null;
+        for ( final Long id : queue ) {
+            if ( ids.size() >= limit ) {
+                break;
+            }
+            if ( !claimable.contains( id ) ) {
+                continue;
+            }
+            if ( !byPosition ) {
+                if ( id > after ) {
+                    ids.add( id );
+                }
+            }
+            else if ( started ) {
+                if ( !id.equals( after ) ) {
+                    ids.add( id );
+                }
+            }
+            else {
+                started = id.equals( after );
+            }
+        }
+        return new ArrayList<Long>( ids );
+    }
+
+    /**
+     * Gets where an order is in the queue, in O(log n)
+     *
+     * @param id
+     *            the order id
+     * @return 1 for the order that will be claimed next, or 0 if the order is
+     *         not waiting
+     */
+    public int position ( final Long id ) {
+        return positions.position( id );
+    }
+
+    /**
+     * Gets how many orders are waiting
+     *
+     * @return the number of claimable orders
+     */
+    public int size () {
+        return claimable.size();
+    }
+
+    /**
+     * Adds orders entering the queue and drops orders leaving it, once their
+     * transaction commits
+     *
+     * @param order
+     *            the order
+     * @param transition
+     *            what happened to it
+     */
+    @Override
+    public void orderTransitioned ( final CustomerOrder order, final OrderTransition transition ) {
+        final Long id = order.getId();
+        if ( transition.getTo() == OrderEnum.IN_QUEUE ) {
+            // an order handed back has waited longest, so it goes to the front
+            final boolean returned = transition.getFrom() != null;
+            AfterCommit.run( "queue order " + id, () -> offer( id, returned ) );
+        }
+        else if ( transition.getFrom() == OrderEnum.IN_QUEUE ) {
+            // already done if the order was claimed through this queue
+            AfterCommit.run( "dequeue order " + id, () -> retire( id ) );
+        }
+    }
+
+    /**
+     * Drops a deleted order, once the deletion commits
+     *
+     * @param order
+     *            the deleted order
+     */
+    @Override
+    public void orderDeleted ( final CustomerOrder order ) {
+        final Long id = order.getId();
+        AfterCommit.run( "dequeue order " + id, () -> retire( id ) );
+    }
+
+    /**
+     * Stops an order being claimable while leaving its id in the FIFO, and
+     * compacts the FIFO if too many such ids have built up
+     *
+     * @param id
+     *            the order id
+     * @return true if it was claimable
+     */
+    private boolean retire ( final Long id ) {
+        if ( !unclaimable( id ) ) {
+            return false;
+        }
+        if ( stale.incrementAndGet() > Math.max( STALE_SLACK, claimable.size() ) ) {
+            compact();
+        }
+        return true;
+    }
+
+    /**
+     * Drops every id that is no longer claimable from the FIFO, unless another
+     * thread is already doing so. Ids retired during the pass may be counted
+     * after it, so the count stays approximate.
+     */
+    private void compact () {
+        if ( !compacting.compareAndSet( false, true ) ) {
+            return;
+        }
+        try {
+            stale.set( 0 );
+            queue.removeIf( id -> !claimable.contains( id ) );
+        }
+        finally {
+            compacting.set( false );
+        }
+    }
+
+    /**
+     * Stops an order being claimable
+     *
+     * @param id
+     *            the order id
+     * @return true if it was claimable
+     */
+    private boolean unclaimable ( final Long id ) {
+        if ( !claimable.remove( id ) ) {
+            return false;
+        }
+        positions.remove( id );
+        return true;
+    }
+
+    /**
+     * Makes an order claimable and adds it to the FIFO, unless it already is
+     *
+     * @param id
+     *            the order id
+     * @param front
+     *            whether to add it at the front instead of the back
+     */
+    private void offer ( final Long id, final boolean front ) {
+        // does nothing if the id is already there
+        positions.add( id, front );
+        if ( !claimable.add( id ) ) {
+            return;
+        }
+        if ( front ) {
+            queue.offerFirst( id );
+        }
+        else {
+            queue.offerLast( id );
+        }
+    }
+
+}
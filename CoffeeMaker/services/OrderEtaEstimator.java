@@ -0,0 +1,209 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+
+/**
+ * Estimates how long an order will take to be ready, without looking at any
+ * other order. A waiting order's position comes from the OrderDispatchQueue,
+ * and how long a drink takes to make is a moving average, per recipe, of the
+ * time orders spent between IN_PROGRESS and COMPLETED. The orders ahead are
+ * assumed to be shared between the baristas working now.
+ *
+ * The averages start from coffeemaker.eta.default-prep-ms on every startup
+ * and weight each new sample by coffeemaker.eta.smoothing.
+ */
+@Component
+public class OrderEtaEstimator implements OrderTransitionListener {
+
+    /** Time to make a drink before any has been timed, in milliseconds */
+    @Value ( "${coffeemaker.eta.default-prep-ms:120000}" )
+    private long                        defaultPrep;
+
+    /** Weight of each new sample in the averages, between 0 and 1 */
+    @Value ( "${coffeemaker.eta.smoothing:0.2}" )
+    private double                      smoothing;
+
+    /** Gives the position of waiting orders */
+    @Autowired
+    private OrderDispatchQueue          dispatchQueue;
+
+    /** Average time to make each recipe, in milliseconds, by name */
+    private final Map<String, Double>   prepTimes = new ConcurrentHashMap<String, Double>();
+
+    /** When each order being made was started, in epoch milliseconds */
+    private final Map<Long, Long>       startedAt = new ConcurrentHashMap<Long, Long>();
+
+    /** Average time to make any drink, in milliseconds */
+    private volatile double             overall   = -1;
+
+    /**
+     * Estimates when an order will be ready
+     *
+     * @param order
+     *            the order
+     * @return the estimate
+     */
+    public Eta estimate ( final CustomerOrder order ) {
+        final long now = System.currentTimeMillis();
+        final long prep = prepTime( order.getRecipeName() );
+        switch ( order.getCurrentState() ) {
+            case IN_QUEUE:
+                int position = dispatchQueue.position( order.getId() );
+                if ( position == 0 ) {
+                    // placed but not in the queue until its transaction commits
+                    position = dispatchQueue.size() + 1;
+                }
+                final long ahead = Math.round( ( position - 1 ) * drainTime() );
+                return new Eta( order, position, now, ahead + prep );
+            case IN_PROGRESS:
+                final Long started = startedAt.get( order.getId() );
+                final long elapsed = started == null ? 0 : now - started;
+                return new Eta( order, 0, now, Math.max( 0, prep - elapsed ) );
+            case COMPLETED:
+            case PICKED_UP:
+                return new Eta( order, 0, now, 0L );
+            default:
+                // waiting for ingredients or cancelled; no way to tell
+                return new Eta( order, 0, now, null );
+        }
+    }
+
+    /**
+     * Times orders from when a barista starts them to when they are completed,
+     * once the change commits
+     *
+     * @param order
+     *            the order
+     * @param transition
+     *            what happened to it
+     */
+    @Override
+    public void orderTransitioned ( final CustomerOrder order, final OrderTransition transition ) {
+        final Long id = order.getId();
+        final String recipe = order.getRecipeName();
+        final long at = transition.getTimestamp();
+        if ( transition.getTo() == OrderEnum.IN_PROGRESS ) {
+            AfterCommit.run( "time order " + id, () -> startedAt.put( id, at ) );
+        }
+        else if ( transition.getFrom() == OrderEnum.IN_PROGRESS ) {
+            final boolean made = transition.getTo() == OrderEnum.COMPLETED;
+            AfterCommit.run( "time order " + id, () -> {
+                final Long started = startedAt.remove( id );
+                if ( made && started != null && recipe != null ) {
+                    record( recipe, at - started );
+                }
+            } );
+        }
+    }
+
+    /**
+     * Stops timing a deleted order
+     *
+     * @param order
+     *            the deleted order
+     */
+    @Override
+    public void orderDeleted ( final CustomerOrder order ) {
+        final Long id = order.getId();
+        AfterCommit.run( "stop timing order " + id, () -> startedAt.remove( id ) );
+    }
+
+    /**
+     * Adds a sample to the averages
+     *
+     * @param recipe
+     *            name of the recipe made
+     * @param prep
+     *            how long it took, in milliseconds
+     */
+    private void record ( final String recipe, final long prep ) {
+        prepTimes.merge( recipe, (double) prep, ( old, sample ) -> old + smoothing * ( sample - old ) );
+        synchronized ( this ) {
+            overall = overall < 0 ? prep : overall + smoothing * ( prep - overall );
+        }
+    }
+
+    /**
+     * Gets how long a recipe takes to make
+     *
+     * @param recipe
+     *            name of the recipe, or null
+     * @return the average time, or the average over all recipes if it has not
+     *         been timed, in milliseconds
+     */
+    private long prepTime ( final String recipe ) {
+        final Double prep = recipe == null ? null : prepTimes.get( recipe );
+        return Math.round( prep != null ? prep : averagePrep() );
+    }
+
+    /**
+     * Gets how often an order leaves the queue: the average time to make a
+     * drink shared between the baristas working now
+     *
+     * @return milliseconds per order
+     */
+    double drainTime () {
+        return averagePrep() / Math.max( 1, startedAt.size() );
+    }
+
+    /**
+     * Gets how long any drink takes to make
+     *
+     * @return the average time in milliseconds
+     */
+    private double averagePrep () {
+        final double average = overall;
+        return average < 0 ? defaultPrep : average;
+    }
+
+    /**
+     * How long an order is expected to take to be ready
+     */
+    public static final class Eta {
+
+        /** Order id */
+        private final Long    id;
+
+        /** State the order is in */
+        private final String  status;
+
+        /** 1 for the next order to be claimed; 0 if the order is not waiting */
+        private final int     position;
+
+        /** Milliseconds until the order is ready, or null if unknown */
+        private final Long    remainingMs;
+
+        /** When the order is expected to be ready, or null if unknown */
+        private final Long    readyAt;
+
+        /**
+         * Creates an estimate
+         *
+         * @param order
+         *            the order
+         * @param position
+         *            its position in the queue, or 0
+         * @param now
+         *            the current time, in epoch milliseconds
+         * @param remainingMs
+         *            milliseconds until it is ready, or null if unknown
+         */
+        private Eta ( final CustomerOrder order, final int position, final long now, final Long remainingMs ) {
+            this.id = order.getId();
+            this.status = order.getCurrentState().name();
+            this.position = position;
+            this.remainingMs = remainingMs;
+            this.readyAt = remainingMs == null ? null : now + remainingMs;
+        }
+    }
+
+}
@@ -0,0 +1,358 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import com.google.gson.Gson;
+
+import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+
+/**
+ * Pushes order events to every open order stream as Server-Sent Events, so the
+ * staff order board does not have to poll. An event is sent when an order is
+ * created, claimed, changes state or is deleted, once the change commits.
+ *
+ * Each event is serialized once and written to every subscriber from a single
+ * thread, which also keeps the events in order. The most recent events are kept
+ * in a ring buffer, so a client that reconnects with a Last-Event-ID is sent
+ * what it missed. If it missed more than the buffer holds, or the server has
+ * restarted since, it is sent a reset event and should reload the board.
+ */
+@Component
+public class OrderEventBroadcaster implements OrderTransitionListener {
+
+    /** Event sent to a client that cannot be caught up */
+    public static final String         RESET      = "reset";
+
+    /** Serializes event payloads */
+    private static final Gson          GSON       = new Gson();
+
+    /** Number of recent events kept for reconnecting clients */
+    @Value ( "${coffeemaker.orders.stream.buffer:1024}" )
+    private int                        capacity;
+
+    /** How long a stream stays open before the client has to reconnect */
+    @Value ( "${coffeemaker.orders.stream.timeout-ms:1800000}" )
+    private long                       timeout;
+
+    /** Prefix of every event id, so ids from before a restart are recognised */
+    private final String               generation  = Long.toString( System.currentTimeMillis(), 36 );
+
+    /** Open streams */
+    private final List<SseEmitter>     subscribers = new CopyOnWriteArrayList<SseEmitter>();
+
+    /** The one thread that writes events; everything below is only used by it */
+    private ExecutorService            fanOut;
+
+    /** The most recent events, indexed by sequence number modulo capacity */
+    private Event[]                    ring;
+
+    /** Sequence number of the last event sent */
+    private long                       last;
+
+    /**
+     * Starts the fan-out thread
+     */
+    @PostConstruct
+    public void start () {
+        ring = new Event[capacity];
+        fanOut = Executors.newSingleThreadExecutor( task -> {
+            final Thread thread = new Thread( task, "order-events" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * Closes every stream and stops the fan-out thread
+     */
+    @PreDestroy
+    public void stop () {
+        fanOut.shutdown();
+        for ( final SseEmitter emitter : subscribers ) {
+            emitter.complete();
+        }
+        subscribers.clear();
+    }
+
+    /**
+     * Opens a stream of order events
+     *
+     * @param lastEventId
+     *            id of the last event the client received before reconnecting,
+     *            or null for a new client
+     * @return the stream
+     */
+    public SseEmitter subscribe ( final String lastEventId ) {
+        final SseEmitter emitter = new SseEmitter( timeout );
+        emitter.onCompletion( () -> subscribers.remove( emitter ) );
+        emitter.onTimeout( emitter::complete );
+        emitter.onError( e -> subscribers.remove( emitter ) );
+        // replaying on the fan-out thread means no event is missed or sent
+        // twice between the replay and the first live event
+        submit( () -> {
+            if ( lastEventId != null && !replay( emitter, lastEventId ) ) {
+                return;
+            }
+            subscribers.add( emitter );
+        } );
+        return emitter;
+    }
+
+    /**
+     * Gets the number of open streams
+     *
+     * @return the number of subscribers
+     */
+    public int getSubscriberCount () {
+        return subscribers.size();
+    }
+
+    /**
+     * Broadcasts a transition once it commits
+     *
+     * @param order
+     *            the order
+     * @param transition
+     *            what happened to it
+     */
+    @Override
+    public void orderTransitioned ( final CustomerOrder order, final OrderTransition transition ) {
+        final String type;
+        if ( transition.getFrom() == null ) {
+            type = "created";
+        }
+        else if ( transition.getFrom() == OrderEnum.IN_QUEUE && transition.getTo() == OrderEnum.IN_PROGRESS ) {
+            type = "claimed";
+        }
+        else {
+            type = "status-changed";
+        }
+        broadcast( type, new Payload( order, transition.getFrom() ) );
+    }
+
+    /**
+     * Broadcasts a deletion once it commits
+     *
+     * @param order
+     *            the deleted order
+     */
+    @Override
+    public void orderDeleted ( final CustomerOrder order ) {
+        broadcast( "deleted", new Payload( order, null ) );
+    }
+
+    /**
+     * Sends a comment to every stream, so idle connections are not closed by
+     * proxies and clients that have gone away are noticed
+     */
+    @Scheduled ( fixedDelayString = "${coffeemaker.orders.stream.heartbeat-ms:15000}" )
+    public void heartbeat () {
+        submit( () -> {
+            for ( final SseEmitter emitter : subscribers ) {
+                send( emitter, SseEmitter.event().comment( "keep-alive" ) );
+            }
+        } );
+    }
+
+    /**
+     * Serializes an event now, while the order is at hand, and sends it after
+     * the transaction commits
+     *
+     * @param type
+     *            the event name
+     * @param payload
+     *            the event data
+     */
+    private void broadcast ( final String type, final Payload payload ) {
+        final String data = GSON.toJson( payload );
+        AfterCommit.run( type + " event for order " + payload.id, () -> submit( () -> publish( type, data ) ) );
+    }
+
+    /**
+     * Numbers an event, remembers it and sends it to every stream. Runs on the
+     * fan-out thread.
+     *
+     * @param type
+     *            the event name
+     * @param data
+     *            the serialized payload
+     */
+    private void publish ( final String type, final String data ) {
+        final Event event = new Event( ++last, type, data );
+        ring[(int) ( event.sequence % ring.length )] = event;
+        for ( final SseEmitter emitter : subscribers ) {
+            send( emitter, event.toSse( generation ) );
+        }
+    }
+
+    /**
+     * Sends a reconnecting client the events it missed. Runs on the fan-out
+     * thread.
+     *
+     * @param emitter
+     *            the client's stream
+     * @param lastEventId
+     *            id of the last event the client received
+     * @return false if the stream failed
+     */
+    private boolean replay ( final SseEmitter emitter, final String lastEventId ) {
+        long after = -1;
+        final int dash = lastEventId.lastIndexOf( '-' );
+        if ( dash > 0 && lastEventId.substring( 0, dash ).equals( generation ) ) {
+            try {
+                after = Long.parseLong( lastEventId.substring( dash + 1 ) );
+            }
+            catch ( final NumberFormatException e ) {
+                after = -1;
+            }
+        }
+        final long oldest = Math.max( 1, last - ring.length + 1 );
+        if ( after < oldest - 1 || after > last ) {
+            return send( emitter, SseEmitter.event().id( generation + "-" + last ).name( RESET ).data( "{}" ) );
+        }
+        for ( long sequence = after + 1; sequence <= last; sequence++ ) {
+            if ( !send( emitter, ring[(int) ( sequence % ring.length )].toSse( generation ) ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes to one stream, dropping it if the client has gone away
+     *
+     * @param emitter
+     *            the stream
+     * @param event
+     *            what to write
+     * @return false if the write failed
+     */
+    private boolean send ( final SseEmitter emitter, final SseEmitter.SseEventBuilder event ) {
+        try {
+            emitter.send( event );
+            return true;
+        }
+        catch ( final IOException | IllegalStateException e ) {
+            subscribers.remove( emitter );
+            return false;
+        }
+    }
+
+    /**
+     * Runs a task on the fan-out thread, unless it has been stopped
+     *
+     * @param task
+     *            the task
+     */
+    private void submit ( final Runnable task ) {
+        try {
+            fanOut.execute( task );
+        }
+        catch ( final RejectedExecutionException e ) {
+            // shutting down
+        }
+    }
+
+    /**
+     * A numbered event in the ring buffer
+     */
+    private static final class Event {
+
+        /** Position in the stream */
+        private final long   sequence;
+
+        /** Event name */
+        private final String type;
+
+        /** Serialized payload */
+        private final String data;
+
+        /**
+         * Creates an event
+         *
+         * @param sequence
+         *            position in the stream
+         * @param type
+         *            event name
+         * @param data
+         *            serialized payload
+         */
+        private Event ( final long sequence, final String type, final String data ) {
+            this.sequence = sequence;
+            this.type = type;
+            this.data = data;
+        }
+
+        /**
+         * Builds the event to write
+         *
+         * @param generation
+         *            prefix of the event id
+         * @return the event
+         */
+        private SseEmitter.SseEventBuilder toSse ( final String generation ) {
+            return SseEmitter.event().id( generation + "-" + sequence ).name( type ).data( data );
+        }
+    }
+
+    /**
+     * What the board needs to know about an order, sent as the event data
+     */
+    private static final class Payload {
+
+        /** Order id */
+        private final Long   id;
+
+        /** State the order is in now */
+        private final String status;
+
+        /** State the order was in before, if it changed state */
+        private final String previous;
+
+        /** Customer who placed the order */
+        private final String customer;
+
+        /** Staff member working on the order, if any */
+        private final String barista;
+
+        /** Name of the ordered recipe */
+        private final String recipe;
+
+        /** When the order was placed, in epoch milliseconds */
+        private final Long   placedAt;
+
+        /**
+         * Describes an order
+         *
+         * @param order
+         *            the order
+         * @param previous
+         *            the state it left, or null
+         */
+        private Payload ( final CustomerOrder order, final OrderEnum previous ) {
+            this.id = order.getId();
+            this.status = order.getCurrentState().name();
+            this.previous = previous == null ? null : previous.name();
+            this.customer = order.getCustomer();
+            this.barista = order.getStaff();
+            this.recipe = order.getRecipeName();
+            this.placedAt = order.getPlacedAt();
+        }
+    }
+
+}
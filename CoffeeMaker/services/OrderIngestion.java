@@ -0,0 +1,353 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.Recipe;
+import edu.ncsu.csc.CoffeeMaker.services.ReservationService.Reservation;
+
+/**
+ * Takes orders without waiting for the database, when coffeemaker.orders.async
+ * is set. An order that has been validated and has its ingredients reserved is
+ * put in a bounded buffer and the customer is given a reference straight away;
+ * a consumer thread drains the buffer and inserts what it finds in batches of
+ * up to coffeemaker.orders.ingest.batch, one transaction and one flush per
+ * batch, so a burst of orders costs a few large inserts instead of many small
+ * ones.
+ *
+ * An order keeps the time it was taken, not the time it was inserted, so its
+ * place in line and its estimated wait are as if it had been inserted
+ * straight away. The customer looks the reference up to find out whether the
+ * order was placed and what its id is. If a batch fails its orders are retried one at a
+ * time, so one bad order does not sink the others; an order that still fails
+ * has its reservation released. Orders still buffered at shutdown are inserted
+ * before the application stops.
+ */
+@Component
+public class OrderIngestion {
+
+    /** Whether orders are taken this way */
+    @Value ( "${coffeemaker.orders.async:false}" )
+    private boolean                     enabled;
+
+    /** Most orders buffered at once */
+    @Value ( "${coffeemaker.orders.ingest.buffer:4096}" )
+    private int                         capacity;
+
+    /** Most orders inserted in one transaction */
+    @Value ( "${coffeemaker.orders.ingest.batch:100}" )
+    private int                         batchSize;
+
+    /** Most receipts kept for customers to look up */
+    @Value ( "${coffeemaker.orders.ingest.receipts:10000}" )
+    private int                         maxReceipts;
+
+    /** Inserts the orders */
+    @Autowired
+    private OrderService                orderService;
+
+    /** Checks customers exist */
+    @Autowired
+    private UserService                 userService;
+
+    /** Holds or releases the orders' ingredients */
+    @Autowired
+    private ReservationService          reservationService;
+
+    /** Receipts by reference, oldest first; guarded by itself */
+    private final Map<String, Receipt>  receipts  = new LinkedHashMap<String, Receipt>();
+
+    /** Orders waiting to be inserted */
+    private BlockingQueue<Pending>      buffer;
+
+    /** Drains the buffer */
+    private Thread                      consumer;
+
+    /** Cleared to stop the consumer */
+    private volatile boolean            running;
+
+    /**
+     * Starts the consumer, if orders are taken this way
+     */
+    @PostConstruct
+    public void start () {
+        buffer = new ArrayBlockingQueue<Pending>( capacity );
+        if ( !enabled ) {
+            return;
+        }
+        running = true;
+        consumer = new Thread( this::consume, "order-ingest" );
+        consumer.start();
+    }
+
+    /**
+     * Stops the consumer and inserts whatever is still buffered
+     */
+    @PreDestroy
+    public void stop () {
+        // not interrupted, so an insert in progress is not cut off
+        running = false;
+        if ( consumer != null ) {
+            try {
+                consumer.join( TimeUnit.SECONDS.toMillis( 10 ) );
+            }
+            catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        final List<Pending> rest = new ArrayList<Pending>();
+        buffer.drainTo( rest );
+        if ( !rest.isEmpty() ) {
+            insert( rest );
+        }
+    }
+
+    /**
+     * Whether orders are taken without waiting for the database
+     *
+     * @return true if coffeemaker.orders.async is set
+     */
+    public boolean isEnabled () {
+        return enabled;
+    }
+
+    /**
+     * Checks a customer exists, only asking the database the first time, or
+     * again after they are deleted
+     *
+     * @param username
+     *            the customer
+     * @return true if they exist
+     */
+    public boolean isCustomer ( final String username ) {
+        return userService.exists( username );
+    }
+
+    /**
+     * Buffers an order to be inserted
+     *
+     * @param customer
+     *            the customer placing it
+     * @param recipe
+     *            the recipe ordered
+     * @param reservation
+     *            the ingredients reserved for it; released if the order
+     *            cannot be placed
+     * @return a pending receipt, or null if the buffer is full, in which case
+     *         the reservation is left to the caller
+     */
+    public Receipt submit ( final String customer, final Recipe recipe, final Reservation reservation ) {
+        final Receipt receipt = new Receipt( UUID.randomUUID().toString(), Receipt.PENDING, null, null );
+        record( receipt );
+        final Pending pending = new Pending( receipt.reference, customer, recipe, reservation,
+                System.currentTimeMillis() );
+        if ( !buffer.offer( pending ) ) {
+            synchronized ( receipts ) {
+                receipts.remove( receipt.reference );
+            }
+            return null;
+        }
+        return receipt;
+    }
+
+    /**
+     * Looks up what happened to a buffered order
+     *
+     * @param reference
+     *            the reference it was given
+     * @return the receipt, or null if the reference is unknown or too old
+     */
+    public Receipt getReceipt ( final String reference ) {
+        synchronized ( receipts ) {
+            return receipts.get( reference );
+        }
+    }
+
+    /**
+     * Inserts buffered orders until stopped. Runs on the consumer thread.
+     */
+    private void consume () {
+        final List<Pending> batch = new ArrayList<Pending>( batchSize );
+        while ( running ) {
+            try {
+                final Pending first = buffer.poll( 1, TimeUnit.SECONDS );
+                if ( first == null ) {
+                    continue;
+                }
+                batch.add( first );
+                buffer.drainTo( batch, batchSize - 1 );
+            }
+            catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            insert( batch );
+            batch.clear();
+        }
+    }
+
+    /**
+     * Inserts a batch of orders in one transaction. If that fails each order
+     * is tried on its own.
+     *
+     * @param batch
+     *            the orders
+     */
+    private void insert ( final List<Pending> batch ) {
+        final List<CustomerOrder> orders = new ArrayList<CustomerOrder>( batch.size() );
+        for ( final Pending pending : batch ) {
+            orders.add( new CustomerOrder( pending.customer, pending.recipe, pending.placedAt ) );
+        }
+        try {
+            orderService.saveAll( orders );
+        }
+        catch ( final RuntimeException e ) {
+            if ( batch.size() > 1 ) {
+                for ( final Pending pending : batch ) {
+                    insert( Collections.singletonList( pending ) );
+                }
+                return;
+            }
+            final Pending pending = batch.get( 0 );
+            System.out.println( "Could not place order " + pending.reference + ": " + e.getMessage() );
+            reservationService.release( pending.reservation );
+            record( new Receipt( pending.reference, Receipt.FAILED, null, "The order could not be placed" ) );
+            return;
+        }
+        for ( int i = 0; i < batch.size(); i++ ) {
+            final Long id = orders.get( i ).getId();
+            reservationService.hold( id, batch.get( i ).reservation );
+            record( new Receipt( batch.get( i ).reference, Receipt.PLACED, id, null ) );
+        }
+    }
+
+    /**
+     * Stores a receipt, forgetting the oldest once there are too many
+     *
+     * @param receipt
+     *            the receipt
+     */
+    private void record ( final Receipt receipt ) {
+        synchronized ( receipts ) {
+            receipts.put( receipt.reference, receipt );
+            if ( receipts.size() > maxReceipts ) {
+                receipts.remove( receipts.keySet().iterator().next() );
+            }
+        }
+    }
+
+    /**
+     * An order waiting in the buffer
+     */
+    private static final class Pending {
+
+        /** Reference given to the customer */
+        private final String      reference;
+
+        /** Customer placing the order */
+        private final String      customer;
+
+        /** Recipe ordered */
+        private final Recipe      recipe;
+
+        /** Ingredients reserved for the order */
+        private final Reservation reservation;
+
+        /** When the customer placed the order, in epoch milliseconds */
+        private final long        placedAt;
+
+        /**
+         * Creates a buffered order
+         *
+         * @param reference
+         *            reference given to the customer
+         * @param customer
+         *            customer placing the order
+         * @param recipe
+         *            recipe ordered
+         * @param reservation
+         *            ingredients reserved for it
+         * @param placedAt
+         *            when the customer placed it, in epoch milliseconds
+         */
+        private Pending ( final String reference, final String customer, final Recipe recipe,
+                final Reservation reservation, final long placedAt ) {
+            this.reference = reference;
+            this.customer = customer;
+            this.recipe = recipe;
+            this.reservation = reservation;
+            this.placedAt = placedAt;
+        }
+    }
+
+    /**
+     * What has happened to a buffered order
+     */
+    public static final class Receipt {
+
+        /** Not inserted yet */
+        public static final String PENDING = "PENDING";
+
+        /** Inserted; orderId is set */
+        public static final String PLACED  = "PLACED";
+
+        /** Could not be inserted; error is set */
+        public static final String FAILED  = "FAILED";
+
+        /** Reference given to the customer */
+        private final String       reference;
+
+        /** PENDING, PLACED or FAILED */
+        private final String       status;
+
+        /** Id of the order once it is placed */
+        private final Long         orderId;
+
+        /** Why the order could not be placed */
+        private final String       error;
+
+        /**
+         * Creates a receipt
+         *
+         * @param reference
+         *            reference given to the customer
+         * @param status
+         *            PENDING, PLACED or FAILED
+         * @param orderId
+         *            id of the placed order, or null
+         * @param error
+         *            why the order could not be placed, or null
+         */
+        private Receipt ( final String reference, final String status, final Long orderId, final String error ) {
+            this.reference = reference;
+            this.status = status;
+            this.orderId = orderId;
+            this.error = error;
+        }
+
+        /**
+         * Gets the reference given to the customer
+         *
+         * @return the reference
+         */
+        public String getReference () {
+            return reference;
+        }
+    }
+
+}
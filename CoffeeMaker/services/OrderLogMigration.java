@@ -0,0 +1,190 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+import edu.ncsu.csc.CoffeeMaker.models.user.User;
+import edu.ncsu.csc.CoffeeMaker.repositories.OrderTransitionRepository;
+
+/**
+ * Converts the free-text log that orders kept before OrderTransition had its
+ * own table into transition rows, on startup. Orders are migrated in batches,
+ * each in its own transaction, and their old lines are deleted once
+ * converted, so this does nothing once every order has been migrated or if
+ * the old table never existed.
+ */
+@Component
+public class OrderLogMigration implements ApplicationRunner {
+
+    /** Orders migrated per transaction */
+    private static final int           BATCH_SIZE = 500;
+
+    /** First line of the old log, e.g. "Order Created in state IN_QUEUE by bob at ..." */
+    private static final Pattern       CREATED    = Pattern
+            .compile( "Order Created in state (\\w+) by (.*) at (\\S+)" );
+
+    /** Every other line of the old log, e.g. "IN_QUEUE => IN_PROGRESS at ..." */
+    private static final Pattern       CHANGED    = Pattern.compile( "(\\w+) => (\\w+) at (\\S+)" );
+
+    /** Reads the old log and stores the transitions */
+    @Autowired
+    private OrderTransitionRepository  transitionRepository;
+
+    /** Used to find the customer who created each order */
+    @Autowired
+    private UserService                userService;
+
+    /** Used to run each batch in its own transaction */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Migrates every order that still has lines in the old log
+     *
+     * @param args
+     *            application arguments, unused
+     */
+    @Override
+    public void run ( final ApplicationArguments args ) {
+        final TransactionTemplate template = new TransactionTemplate( transactionManager );
+        final Map<String, Long> actors = new HashMap<String, Long>();
+        int migrated = 0;
+        int batch;
+        try {
+            do {
+                batch = template.execute( status -> migrateBatch( actors ) );
+                migrated += batch;
+            }
+            while ( batch == BATCH_SIZE );
+        }
+        catch ( final RuntimeException e ) {
+            // databases created after the change have no old log table
+            System.out.println( "Order log not migrated: " + e.getMessage() );
+            return;
+        }
+        if ( migrated > 0 ) {
+            System.out.println( "Migrated the logs of " + migrated + " orders" );
+        }
+    }
+
+    /**
+     * Migrates one batch of orders
+     *
+     * @param actors
+     *            user ids already looked up, by username
+     * @return the number of orders migrated
+     */
+    private int migrateBatch ( final Map<String, Long> actors ) {
+        final List<Long> orders = new ArrayList<Long>();
+        for ( final Number id : transitionRepository.findLegacyLogOrders( PageRequest.of( 0, BATCH_SIZE ) ) ) {
+            orders.add( id.longValue() );
+        }
+        if ( orders.isEmpty() ) {
+            return 0;
+        }
+
+        final Map<Long, List<OrderTransition>> transitions = new LinkedHashMap<Long, List<OrderTransition>>();
+        for ( final Object[] line : transitionRepository.findLegacyLog( orders ) ) {
+            final Long order = ( (Number) line[0] ).longValue();
+            final OrderTransition transition = parse( order, (String) line[1], actors );
+            if ( transition != null ) {
+                transitions.computeIfAbsent( order, id -> new ArrayList<OrderTransition>() ).add( transition );
+            }
+        }
+        for ( final List<OrderTransition> log : transitions.values() ) {
+            // the old log had no order column, so put the lines back in time order
+            log.sort( Comparator.comparingLong( OrderTransition::getTimestamp ) );
+            transitionRepository.saveAll( log );
+        }
+        transitionRepository.deleteLegacyLog( orders );
+        return orders.size();
+    }
+
+    /**
+     * Converts one line of the old log
+     *
+     * @param order
+     *            id of the order the line belongs to
+     * @param line
+     *            the line
+     * @param actors
+     *            user ids already looked up, by username
+     * @return the transition, or null if the line could not be read
+     */
+    private OrderTransition parse ( final Long order, final String line, final Map<String, Long> actors ) {
+        try {
+            Matcher m = CREATED.matcher( line );
+            if ( m.matches() ) {
+                final OrderTransition transition = new OrderTransition( null, OrderEnum.valueOf( m.group( 1 ) ),
+                        epochMillis( m.group( 3 ) ) );
+                transition.attach( order, actorId( m.group( 2 ), actors ) );
+                return transition;
+            }
+            m = CHANGED.matcher( line );
+            if ( m.matches() ) {
+                // the old log did not say who made the change
+                final OrderTransition transition = new OrderTransition( OrderEnum.valueOf( m.group( 1 ) ),
+                        OrderEnum.valueOf( m.group( 2 ) ), epochMillis( m.group( 3 ) ) );
+                transition.attach( order, null );
+                return transition;
+            }
+        }
+        catch ( final IllegalArgumentException e ) {
+            // unknown state name; fall through
+        }
+        System.out.println( "Order " + order + " has an unreadable log line " + line );
+        return null;
+    }
+
+    /**
+     * Reads a timestamp from the old log
+     *
+     * @param timestamp
+     *            an ISO-8601 instant
+     * @return epoch milliseconds, or 0 if it could not be read
+     */
+    private static long epochMillis ( final String timestamp ) {
+        try {
+            return Instant.parse( timestamp ).toEpochMilli();
+        }
+        catch ( final DateTimeParseException e ) {
+            return 0;
+        }
+    }
+
+    /**
+     * Looks up the id of the user with the given name
+     *
+     * @param name
+     *            the username
+     * @param actors
+     *            user ids already looked up, by username
+     * @return the user's id, or null if there is no such user
+     */
+    private Long actorId ( final String name, final Map<String, Long> actors ) {
+        if ( !actors.containsKey( name ) ) {
+            final User user = userService.findByName( name );
+            actors.put( name, user == null ? null : (Long) user.getId() );
+        }
+        return actors.get( name );
+    }
+
+}
@@ -1,19 +1,36 @@
 package edu.ncsu.csc.CoffeeMaker.services;
 
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
 
 import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
 import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+import edu.ncsu.csc.CoffeeMaker.models.user.User;
 import edu.ncsu.csc.CoffeeMaker.repositories.OrderRepository;
+import edu.ncsu.csc.CoffeeMaker.repositories.OrderTransitionRepository;
 
 /**
  *
- * The OrderService is used to handle CRUD operations on the Order model.
+ * The OrderService is used to handle CRUD operations on the Order model. Saving
+ * or deleting an order through this service also notifies every
+ * OrderTransitionListener of what happened to it.
+ *
+ * Orders waiting for a barista are handed out through the
+ * OrderDispatchQueue, which guarantees each one is claimed only once.
+ *
+ * The transitions an order makes are stored in their own table when it is
+ * saved, and are only read back for the order's history.
  *
  * @author Sammy Shea (sgshea)
  */
@@ -21,12 +38,39 @@ import edu.ncsu.csc.CoffeeMaker.repositories.OrderRepository;
 @Transactional
 public class OrderService extends Service<CustomerOrder, Long> {
 
+    /** Most orders returned in one page */
+    public static final int               MAX_PAGE_SIZE = 200;
+
     /**
      * OrderService, to be autowired in by Spring and provide CRUD operations on
      * Order model.
      */
     @Autowired
-    private OrderRepository orderRepository;
+    private OrderRepository               orderRepository;
+
+    /**
+     * Components to notify when orders change state
+     */
+    @Autowired
+    private List<OrderTransitionListener> listeners;
+
+    /**
+     * In-memory queue of the orders waiting for a barista
+     */
+    @Autowired
+    private OrderDispatchQueue            dispatchQueue;
+
+    /**
+     * UserService, used to save the staff member claiming an order
+     */
+    @Autowired
+    private UserService                   userService;
+
+    /**
+     * Stores the transitions of each order
+     */
+    @Autowired
+    private OrderTransitionRepository     transitionRepository;
 
     /**
      * Returns the order repository
@@ -39,31 +83,532 @@ public class OrderService extends Service<CustomerOrder, Long> {
     }
 
     /**
-     * Gets all the orders which are unclaimed
+     * Saves the order and then notifies listeners of each transition it made
+     * since it was last saved
+     *
+     * @param order
+     *            the order to save
+     */
+    @Override
+    public void save ( final CustomerOrder order ) {
+        super.save( order );
+        publishTransitions( order );
+    }
+
+    /**
+     * Saves the orders and then notifies listeners of each transition they
+     * made since they were last saved
+     *
+     * @param orders
+     *            the orders to save
+     */
+    @Override
+    public void saveAll ( final List<CustomerOrder> orders ) {
+        super.saveAll( orders );
+        for ( final CustomerOrder order : orders ) {
+            publishTransitions( order );
+        }
+    }
+
+    /**
+     * Deletes the order and notifies listeners
+     *
+     * @param order
+     *            the order to delete
+     */
+    @Override
+    public void delete ( final CustomerOrder order ) {
+        transitionRepository.deleteByOrderId( order.getId() );
+        super.delete( order );
+        for ( final OrderTransitionListener listener : listeners ) {
+            listener.orderDeleted( order );
+        }
+    }
+
+    /**
+     * Gets the transitions an order has made, oldest first
+     *
+     * @param id
+     *            id of the order
+     * @return the transitions
+     */
+    public List<OrderTransition> history ( final Long id ) {
+        return transitionRepository.findByOrderIdOrderByIdAsc( id );
+    }
+
+    /**
+     * Stores the order's pending transitions and hands them to every listener
+     *
+     * @param order
+     *            a saved order
+     */
+    private void publishTransitions ( final CustomerOrder order ) {
+        final List<OrderTransition> transitions = order.drainTransitions();
+        if ( transitions.isEmpty() ) {
+            return;
+        }
+        for ( final OrderTransition transition : transitions ) {
+            transition.attach( order.getId(), actorId( transition.getActorName() ) );
+        }
+        transitionRepository.saveAll( transitions );
+        for ( final OrderTransition transition : transitions ) {
+            for ( final OrderTransitionListener listener : listeners ) {
+                listener.orderTransitioned( order, transition );
+            }
+        }
+    }
+
+    /**
+     * Looks up the id of the user with the given name, through UserService's
+     * cache, which forgets users once they are deleted
+     *
+     * @param name
+     *            the username, or null
+     * @return the user's id, or null if there is no such user
+     */
+    private Long actorId ( final String name ) {
+        return userService.idOf( name );
+    }
+
+    /**
+     * Claims a specific waiting order for a staff member. The order is taken
+     * off the dispatch queue first, so if two staff members try to claim it at
+     * once only one of them gets it. It is put back if the claim rolls back.
+     *
+     * @param id
+     *            id of the order to claim
+     * @param staff
+     *            the staff member claiming it
+     * @return the claimed order, or null if it was not waiting to be claimed
+     */
+    public CustomerOrder claim ( final Long id, final User staff ) {
+        if ( !dispatchQueue.take( id ) ) {
+            return null;
+        }
+        requeueOnRollback( id );
+        return assign( id, staff ) ? findById( id ) : null;
+    }
+
+    /**
+     * Claims the order that has been waiting longest for a staff member. Every
+     * order taken off the dispatch queue is put back if the claim rolls back.
+     *
+     * @param staff
+     *            the staff member claiming it
+     * @return the claimed order, or null if no orders are waiting
+     */
+    public CustomerOrder claimNext ( final User staff ) {
+        Long id;
+        while ( ( id = dispatchQueue.pollNext() ) != null ) {
+            requeueOnRollback( id );
+            if ( assign( id, staff ) ) {
+                return findById( id );
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves many orders to new states at once. The orders are loaded in one
+     * query, each change is checked against the order state machine, and every
+     * order that changed is saved with a single flush. Orders that do not
+     * exist or cannot make the change are left alone.
      *
-     * @return found Orders as list
+     * @param updates
+     *            the state to move each order to, by order id
+     * @param actor
+     *            username of whoever is making the changes, or null if it is
+     *            not known
+     * @return the outcome for each order id, in the order given
      */
-    public List<CustomerOrder> getUnclaimedOrders () {
-        return orderRepository.findByStatus( OrderEnum.IN_QUEUE );
+    public Map<Long, StatusResult> updateStatuses ( final Map<Long, OrderEnum> updates, final String actor ) {
+        final Map<Long, CustomerOrder> orders = new HashMap<Long, CustomerOrder>();
+        for ( final CustomerOrder order : orderRepository.findAllById( updates.keySet() ) ) {
+            orders.put( order.getId(), order );
+        }
+        final Map<Long, StatusResult> results = new LinkedHashMap<Long, StatusResult>();
+        final List<CustomerOrder> changed = new ArrayList<CustomerOrder>();
+        for ( final Map.Entry<Long, OrderEnum> update : updates.entrySet() ) {
+            final CustomerOrder order = orders.get( update.getKey() );
+            if ( order == null ) {
+                results.put( update.getKey(), StatusResult.failed( null, "No order found" ) );
+                continue;
+            }
+            final OrderEnum from = order.getCurrentState();
+            if ( !order.updateOrder( update.getValue(), actor ) ) {
+                results.put( update.getKey(),
+                        StatusResult.failed( from, from + " => " + update.getValue() + " is not a valid transition" ) );
+                continue;
+            }
+            changed.add( order );
+            results.put( update.getKey(), StatusResult.updated( update.getValue() ) );
+        }
+        if ( !changed.isEmpty() ) {
+            saveAll( changed );
+        }
+        return results;
     }
 
     /**
-     * Gets all the orders under a customer
+     * Puts an order taken off the dispatch queue back at its front if the
+     * current transaction rolls back, since the order is then still waiting
      *
+     * @param id
+     *            id of the order
+     */
+    private void requeueOnRollback ( final Long id ) {
+        AfterCommit.onRollback( "requeue order " + id, () -> dispatchQueue.putBack( id ) );
+    }
+
+    /**
+     * Gives an order that has been taken off the dispatch queue to a staff
+     * member and saves both. If saving fails the transaction rolls back and
+     * the order is put back on the queue.
+     *
+     * @param id
+     *            id of the order
+     * @param staff
+     *            the staff member
+     * @return true if the order was assigned; false if it no longer exists or
+     *         can no longer be claimed, in which case it stays off the queue
+     */
+    private boolean assign ( final Long id, final User staff ) {
+        final CustomerOrder order = findById( id );
+        if ( order == null || !staff.claimOrder( order ) ) {
+            return false;
+        }
+        userService.save( staff );
+        save( order );
+        return true;
+    }
+
+    /**
+     * Gets one page of orders, oldest first, with optional filters
+     *
+     * @param after
+     *            cursor returned with the previous page, or null for the first
+     *            page
+     * @param status
+     *            only orders in this state, or null for any
      * @param customer
-     *            Customer whose orders to get
-     * @return found Orders as list
+     *            only orders by this customer, or null for any
+     * @param from
+     *            only orders placed at or after this time, or null
+     * @param to
+     *            only orders placed before this time, or null
+     * @param limit
+     *            most orders to return; capped at MAX_PAGE_SIZE
+     * @return the page
+     */
+    public Page findPage ( final Cursor after, final OrderEnum status, final String customer, final Instant from,
+            final Instant to, final int limit ) {
+        final int size = pageSize( limit );
+        final Cursor cursor = after == null ? Cursor.START : after;
+        // one extra row tells us whether there is another page
+        final List<CustomerOrder> orders = orderRepository.findPage( cursor.placedAt, cursor.id, status, customer,
+                from == null ? Long.MIN_VALUE : from.toEpochMilli(), to == null ? Long.MAX_VALUE : to.toEpochMilli(),
+                PageRequest.of( 0, size + 1 ) );
+        return Page.of( orders, size );
+    }
+
+    /**
+     * Gets one page of the orders placed in a time range, oldest first
+     *
+     * @param from
+     *            only orders placed at or after this time
+     * @param to
+     *            only orders placed before this time
+     * @param after
+     *            cursor returned with the previous page, or null for the first
+     *            page
+     * @param limit
+     *            most orders to return; capped at MAX_PAGE_SIZE
+     * @return the page
+     */
+    public Page placedBetween ( final Instant from, final Instant to, final Cursor after, final int limit ) {
+        return findPage( after, null, null, from, to, limit );
+    }
+
+    /**
+     * Gets one page of the orders placed after a cursor, oldest first. Passing
+     * each page's cursor back in follows new orders as they arrive.
+     *
+     * @param after
+     *            cursor returned with the previous page, or null to start from
+     *            the first order
+     * @param limit
+     *            most orders to return; capped at MAX_PAGE_SIZE
+     * @return the page
+     */
+    public Page placedSince ( final Cursor after, final int limit ) {
+        return findPage( after, null, null, null, null, limit );
+    }
+
+    /**
+     * Counts the orders placed in a time range
+     *
+     * @param from
+     *            only orders placed at or after this time
+     * @param to
+     *            only orders placed before this time
+     * @return the number of orders
+     */
+    public long countPlacedBetween ( final Instant from, final Instant to ) {
+        return orderRepository.countPlacedBetween( from.toEpochMilli(), to.toEpochMilli() );
+    }
+
+    /**
+     * Gets one page of the orders waiting for a barista, in the order they
+     * will be claimed. The ids come straight off the dispatch queue, which is
+     * only walked as far as the page, so only the orders on the page are
+     * read.
+     *
+     * @param after
+     *            cursor returned with the previous page, or null for the first
+     *            page
+     * @param limit
+     *            most orders to return; capped at MAX_PAGE_SIZE
+     * @return the page
      */
-    public List<CustomerOrder> getOrdersByCustomer ( final String customer ) {
-        return orderRepository.findOrdersByCustomer( customer );
+    public Page unclaimedPage ( final Cursor after, final int limit ) {
+        final int size = pageSize( limit );
+        // the cursor's id is the last order on the previous page, and the
+        // page carries on from it in the queue; its placedAt is not used
+        final List<Long> ids = dispatchQueue.waiting( after == null ? null : after.id, size + 1 );
+        if ( ids.isEmpty() ) {
+            return Page.of( new ArrayList<CustomerOrder>(), size );
+        }
+        final Map<Long, CustomerOrder> found = new HashMap<Long, CustomerOrder>();
+        for ( final CustomerOrder order : orderRepository.findAllById( ids ) ) {
+            found.put( order.getId(), order );
+        }
+        final List<CustomerOrder> orders = new ArrayList<CustomerOrder>( ids.size() );
+        for ( final Long id : ids ) {
+            final CustomerOrder order = found.get( id );
+            if ( order != null ) {
+                orders.add( order );
+            }
+        }
+        return Page.of( orders, size );
     }
 
     /**
-     * Gets all the orders in order of creation date
+     * Clamps a requested page size
      *
-     * @return found Orders as list
+     * @param limit
+     *            the requested size
+     * @return a size between 1 and MAX_PAGE_SIZE
      */
-    public List<CustomerOrder> ordersByTimestamp () {
-        return orderRepository.findAllByOrderByTimestamp();
+    private static int pageSize ( final int limit ) {
+        return Math.max( 1, Math.min( limit, MAX_PAGE_SIZE ) );
     }
+
+    /**
+     * Position in the orders sorted by (placedAt, id), written as
+     * "placedAt:id"
+     */
+    public static final class Cursor {
+
+        /** The position before every order */
+        private static final Cursor START = new Cursor( -1, 0 );
+
+        /** placedAt of the last order seen */
+        private final long          placedAt;
+
+        /** id of the last order seen */
+        private final long          id;
+
+        /**
+         * Creates a cursor
+         *
+         * @param placedAt
+         *            placedAt of the last order seen
+         * @param id
+         *            id of the last order seen
+         */
+        private Cursor ( final long placedAt, final long id ) {
+            this.placedAt = placedAt;
+            this.id = id;
+        }
+
+        /**
+         * Creates the cursor just after an order
+         *
+         * @param order
+         *            the last order seen
+         * @return the cursor
+         */
+        public static Cursor after ( final CustomerOrder order ) {
+            return new Cursor( order.getPlacedAt() == null ? -1 : order.getPlacedAt(), order.getId() );
+        }
+
+        /**
+         * Parses a cursor from its string form
+         *
+         * @param text
+         *            the cursor, as returned by toString
+         * @return the cursor, or null if the text is null or empty
+         * @throws IllegalArgumentException
+         *             if the text is not a cursor
+         */
+        public static Cursor parse ( final String text ) {
+            if ( text == null || text.isEmpty() ) {
+                return null;
+            }
+            final int colon = text.indexOf( ':' );
+            if ( colon < 0 ) {
+                throw new IllegalArgumentException( "Invalid cursor " + text );
+            }
+            return new Cursor( Long.parseLong( text.substring( 0, colon ) ),
+                    Long.parseLong( text.substring( colon + 1 ) ) );
+        }
+
+        @Override
+        public String toString () {
+            return placedAt + ":" + id;
+        }
+    }
+
+    /**
+     * One page of orders, and the cursor to pass to get the next one
+     */
+    public static final class Page {
+
+        /** The orders on this page */
+        private final List<CustomerOrder> orders;
+
+        /** Cursor for the next page, or null if this is the last one */
+        private final Cursor              next;
+
+        /**
+         * Creates a page
+         *
+         * @param orders
+         *            the orders on this page
+         * @param next
+         *            cursor for the next page, or null
+         */
+        private Page ( final List<CustomerOrder> orders, final Cursor next ) {
+            this.orders = orders;
+            this.next = next;
+        }
+
+        /**
+         * Creates a page from a query that asked for one more order than fits
+         *
+         * @param orders
+         *            the orders found, in cursor order
+         * @param size
+         *            how many orders fit on the page
+         * @return the page
+         */
+        private static Page of ( final List<CustomerOrder> orders, final int size ) {
+            if ( orders.size() <= size ) {
+                return new Page( orders, null );
+            }
+            final List<CustomerOrder> page = new ArrayList<CustomerOrder>( orders.subList( 0, size ) );
+            return new Page( page, Cursor.after( page.get( size - 1 ) ) );
+        }
+
+        /**
+         * Gets the orders on this page
+         *
+         * @return the orders
+         */
+        public List<CustomerOrder> getOrders () {
+            return orders;
+        }
+
+        /**
+         * Gets the cursor for the next page
+         *
+         * @return the cursor, or null if this is the last page
+         */
+        public Cursor getNext () {
+            return next;
+        }
+    }
+
+    /**
+     * The outcome of moving one order to a new state
+     */
+    public static final class StatusResult {
+
+        /** Whether the order was moved */
+        private final boolean   success;
+
+        /** The state the order is in now, or null if it does not exist */
+        private final OrderEnum status;
+
+        /** Why the order was not moved, or null if it was */
+        private final String    error;
+
+        /**
+         * Creates an outcome
+         *
+         * @param success
+         *            whether the order was moved
+         * @param status
+         *            the state the order is in now
+         * @param error
+         *            why the order was not moved
+         */
+        private StatusResult ( final boolean success, final OrderEnum status, final String error ) {
+            this.success = success;
+            this.status = status;
+            this.error = error;
+        }
+
+        /**
+         * Creates the outcome for an order that was moved
+         *
+         * @param status
+         *            the state it was moved to
+         * @return the outcome
+         */
+        static StatusResult updated ( final OrderEnum status ) {
+            return new StatusResult( true, status, null );
+        }
+
+        /**
+         * Creates the outcome for an order that was not moved
+         *
+         * @param status
+         *            the state it is still in, or null if it does not exist
+         * @param error
+         *            why it was not moved
+         * @return the outcome
+         */
+        static StatusResult failed ( final OrderEnum status, final String error ) {
+            return new StatusResult( false, status, error );
+        }
+
+        /**
+         * Gets whether the order was moved
+         *
+         * @return true if it was
+         */
+        public boolean isSuccess () {
+            return success;
+        }
+
+        /**
+         * Gets the state the order is in now
+         *
+         * @return the state, or null if the order does not exist
+         */
+        public OrderEnum getStatus () {
+            return status;
+        }
+
+        /**
+         * Gets why the order was not moved
+         *
+         * @return the reason, or null if it was moved
+         */
+        public String getError () {
+            return error;
+        }
+    }
+
 }
@@ -0,0 +1,85 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.ncsu.csc.CoffeeMaker.repositories.OrderRepository;
+
+/**
+ * Copies the ISO-8601 timestamp of orders placed before CustomerOrder.placedAt
+ * existed into placedAt, on startup. Orders are migrated in batches, each in
+ * its own transaction, so a large history does not hold one long
+ * transaction open. Runs every startup but does nothing once every order has
+ * been migrated.
+ */
+@Component
+public class OrderTimestampMigration implements ApplicationRunner {
+
+    /** Orders migrated per transaction */
+    private static final int           BATCH_SIZE = 500;
+
+    /** OrderRepository, used to read and update the timestamps */
+    @Autowired
+    private OrderRepository            orderRepository;
+
+    /** Used to run each batch in its own transaction */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /**
+     * Migrates every order that has no placedAt yet
+     *
+     * @param args
+     *            application arguments, unused
+     */
+    @Override
+    public void run ( final ApplicationArguments args ) {
+        final TransactionTemplate template = new TransactionTemplate( transactionManager );
+        int migrated = 0;
+        int batch;
+        do {
+            batch = template.execute( status -> migrateBatch() );
+            migrated += batch;
+        }
+        while ( batch == BATCH_SIZE );
+        if ( migrated > 0 ) {
+            System.out.println( "Migrated the timestamps of " + migrated + " orders" );
+        }
+    }
+
+    /**
+     * Migrates one batch of orders
+     *
+     * @return the number of orders migrated
+     */
+    private int migrateBatch () {
+        final List<Object[]> orders = orderRepository.findUnmigratedTimestamps( PageRequest.of( 0, BATCH_SIZE ) );
+        for ( final Object[] order : orders ) {
+            final Long id = (Long) order[0];
+            final String timestamp = (String) order[1];
+            long placedAt = 0;
+            try {
+                if ( timestamp != null ) {
+                    placedAt = Instant.parse( timestamp ).toEpochMilli();
+                }
+            }
+            catch ( final DateTimeParseException e ) {
+                System.out.println( "Order " + id + " has an unreadable timestamp " + timestamp );
+            }
+            // orders with no usable timestamp sort first, rather than being
+            // picked up again on every startup
+            orderRepository.setPlacedAt( id, placedAt );
+        }
+        return orders.size();
+    }
+
+}
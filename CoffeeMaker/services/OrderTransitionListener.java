@@ -0,0 +1,35 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
+
+/**
+ * Implemented by components that need to react when a CustomerOrder changes
+ * state. Every Spring bean implementing this interface is notified by
+ * OrderService after an order is saved or deleted. Listeners run inside the
+ * caller's transaction, in the thread that saved the order.
+ */
+public interface OrderTransitionListener {
+
+    /**
+     * Called once for every transition an order made before it was saved,
+     * including its creation (where the transition's from state is null)
+     *
+     * @param order
+     *            the saved order, which already has an id
+     * @param transition
+     *            the transition the order made
+     */
+    void orderTransitioned ( CustomerOrder order, OrderTransition transition );
+
+    /**
+     * Called after an order is deleted
+     *
+     * @param order
+     *            the deleted order
+     */
+    default void orderDeleted ( final CustomerOrder order ) {
+        // most listeners only care about transitions
+    }
+
+}
@@ -0,0 +1,135 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Order-statistic index over the orders waiting in the OrderDispatchQueue, so
+ * the position of any one of them is found in O(log n) rather than by walking
+ * the queue.
+ *
+ * Each waiting order holds a slot, and a Fenwick tree over the slots counts
+ * how many are occupied; an order's position is the count up to its slot. New
+ * orders take the next slot at the back and orders handed back take the next
+ * one at the front, mirroring the queue. When either end runs out of slots the
+ * waiting orders are renumbered into a new tree with room at both ends, which
+ * costs O(n) and happens at most once every n additions.
+ */
+final class QueuePositionIndex {
+
+    /** Fewest slots the tree is built with */
+    private static final int         MIN_CAPACITY = 64;
+
+    /** Slot of each waiting order */
+    private final Map<Long, Integer> slots        = new HashMap<Long, Integer>();
+
+    /** Fenwick tree of occupied slots; index 0 is unused */
+    private int[]                    tree;
+
+    /** Slot the next order handed back takes; 0 if there is no room */
+    private int                      nextFront;
+
+    /** Slot the next new order takes; past the end if there is no room */
+    private int                      nextBack;
+
+    /**
+     * Creates an empty index
+     */
+    QueuePositionIndex () {
+        rebuild();
+    }
+
+    /**
+     * Adds an order, unless it is already in the index
+     *
+     * @param id
+     *            the order
+     * @param front
+     *            whether it goes ahead of every waiting order instead of
+     *            behind them
+     */
+    synchronized void add ( final Long id, final boolean front ) {
+        if ( slots.containsKey( id ) ) {
+            return;
+        }
+        if ( front ? nextFront < 1 : nextBack >= tree.length ) {
+            rebuild();
+        }
+        final int slot = front ? nextFront-- : nextBack++;
+        slots.put( id, slot );
+        update( slot, 1 );
+    }
+
+    /**
+     * Removes an order, if it is in the index
+     *
+     * @param id
+     *            the order
+     */
+    synchronized void remove ( final Long id ) {
+        final Integer slot = slots.remove( id );
+        if ( slot != null ) {
+            update( slot, -1 );
+        }
+    }
+
+    /**
+     * Gets an order's position
+     *
+     * @param id
+     *            the order
+     * @return 1 for the order at the front, or 0 if it is not waiting
+     */
+    synchronized int position ( final Long id ) {
+        final Integer slot = slots.get( id );
+        if ( slot == null ) {
+            return 0;
+        }
+        int count = 0;
+        for ( int i = slot; i > 0; i -= i & -i ) {
+            count += tree[i];
+        }
+        return count;
+    }
+
+    /**
+     * Adds to the count of one slot
+     *
+     * @param slot
+     *            the slot
+     * @param delta
+     *            1 when it is taken, -1 when it is freed
+     */
+    private void update ( final int slot, final int delta ) {
+        for ( int i = slot; i < tree.length; i += i & -i ) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * Renumbers the waiting orders, in order, into the middle of a new tree
+     * with half again as many free slots at each end as there are orders
+     */
+    private void rebuild () {
+        final List<Map.Entry<Long, Integer>> waiting = new ArrayList<Map.Entry<Long, Integer>>( slots.entrySet() );
+        waiting.sort( Map.Entry.comparingByValue() );
+        final int capacity = Math.max( MIN_CAPACITY, 4 * waiting.size() );
+        tree = new int[capacity + 1];
+        nextFront = ( capacity - waiting.size() ) / 2;
+        nextBack = nextFront + 1;
+        for ( final Map.Entry<Long, Integer> order : waiting ) {
+            slots.put( order.getKey(), nextBack );
+            tree[nextBack++] = 1;
+        }
+        // turns the counts into a Fenwick tree in one pass
+        for ( int i = 1; i < tree.length; i++ ) {
+            final int parent = i + ( i & -i );
+            if ( parent < tree.length ) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+}
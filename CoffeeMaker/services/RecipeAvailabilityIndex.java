@@ -0,0 +1,233 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import edu.ncsu.csc.CoffeeMaker.models.Recipe;
+import edu.ncsu.csc.CoffeeMaker.repositories.RecipeRepository;
+
+/**
+ * Keeps the number of drinks of each recipe that can still be made, which is
+ * the smallest available amount / amount needed over the recipe's
+ * ingredients. Ingredients that are not in the Inventory do not limit a recipe,
+ * since makeCoffee ignores them too.
+ *
+ * The counts are kept up to date from InventoryLedger change notifications. An
+ * inverted index from ingredient to the recipes that use it means a brew or
+ * restock only recomputes the recipes sharing an ingredient with it, and
+ * reading the counts never touches the Inventory.
+ */
+@Component
+public class RecipeAvailabilityIndex implements InventoryLedger.ChangeListener {
+
+    /** The ledger the counts are computed from */
+    @Autowired
+    private InventoryLedger                         ledger;
+
+    /** Used to load every recipe the first time the counts are needed */
+    @Autowired
+    private RecipeRepository                        recipeRepository;
+
+    /** Count for each recipe, by recipe name */
+    private final Map<String, Entry>                entries = new ConcurrentHashMap<String, Entry>();
+
+    /** Recipes using each ingredient, by IngredientDictionary id */
+    private final Map<Integer, Set<Entry>>          users   = new ConcurrentHashMap<Integer, Set<Entry>>();
+
+    /** Whether every recipe has been loaded */
+    private volatile boolean                        seeded;
+
+    /**
+     * Registers the index with the ledger
+     */
+    @PostConstruct
+    public void register () {
+        ledger.addListener( this );
+    }
+
+    /**
+     * Gets how many drinks of each recipe can be made with the unreserved
+     * inventory. The caller must make sure the ledger is loaded.
+     *
+     * @return count by recipe name; null for recipes that no ingredient in the
+     *         Inventory limits
+     */
+    public Map<String, Integer> getAvailability () {
+        seed();
+        final Map<String, Integer> counts = new TreeMap<String, Integer>();
+        for ( final Entry entry : entries.values() ) {
+            counts.put( entry.recipe, entry.count );
+        }
+        return counts;
+    }
+
+    /**
+     * Adds a recipe to the index, or re-reads one that was edited
+     *
+     * @param recipe
+     *            the saved recipe
+     */
+    public synchronized void recipeSaved ( final Recipe recipe ) {
+        if ( !seeded ) {
+            return;
+        }
+        unindex( entries.get( recipe.getName() ) );
+        final Entry entry = new Entry( recipe.getName(), recipe.getDemand().clone() );
+        entries.put( entry.recipe, entry );
+        for ( int id = 0; id < entry.demand.length; id++ ) {
+            if ( entry.demand[id] > 0 ) {
+                users.computeIfAbsent( id, i -> ConcurrentHashMap.newKeySet() ).add( entry );
+            }
+        }
+        recompute( entry );
+    }
+
+    /**
+     * Removes a recipe from the index
+     *
+     * @param recipe
+     *            the deleted recipe
+     */
+    public synchronized void recipeDeleted ( final Recipe recipe ) {
+        unindex( entries.remove( recipe.getName() ) );
+    }
+
+    /**
+     * Drops every recipe, for when they are all deleted at once
+     */
+    public synchronized void clear () {
+        entries.clear();
+        users.clear();
+    }
+
+    /**
+     * Recomputes the recipes that use the changed ingredients
+     *
+     * @param changed
+     *            vector indexed by IngredientDictionary id, or null for all
+     */
+    @Override
+    public void amountsChanged ( final int[] changed ) {
+        if ( !seeded ) {
+            return;
+        }
+        if ( changed == null ) {
+            for ( final Entry entry : entries.values() ) {
+                recompute( entry );
+            }
+            return;
+        }
+        Set<Entry> affected = null;
+        for ( int id = 0; id < changed.length; id++ ) {
+            final Set<Entry> using = changed[id] != 0 ? users.get( id ) : null;
+            if ( using != null ) {
+                if ( affected == null ) {
+                    affected = new HashSet<Entry>();
+                }
+                affected.addAll( using );
+            }
+        }
+        if ( affected != null ) {
+            for ( final Entry entry : affected ) {
+                recompute( entry );
+            }
+        }
+    }
+
+    /**
+     * Loads every recipe the first time the counts are needed
+     */
+    private void seed () {
+        if ( seeded ) {
+            return;
+        }
+        synchronized ( this ) {
+            if ( seeded ) {
+                return;
+            }
+            seeded = true;
+            for ( final Recipe recipe : recipeRepository.findAll() ) {
+                recipeSaved( recipe );
+            }
+        }
+    }
+
+    /**
+     * Removes a recipe from the inverted index
+     *
+     * @param entry
+     *            the recipe's entry, or null
+     */
+    private void unindex ( final Entry entry ) {
+        if ( entry == null ) {
+            return;
+        }
+        for ( int id = 0; id < entry.demand.length; id++ ) {
+            final Set<Entry> using = users.get( id );
+            if ( using != null ) {
+                using.remove( entry );
+            }
+        }
+    }
+
+    /**
+     * Recomputes the count for one recipe from the ledger. The entry is locked
+     * while the amounts are read and the count is written, so a recompute that
+     * started before a change can never overwrite one that started after it.
+     *
+     * @param entry
+     *            the recipe's entry
+     */
+    private void recompute ( final Entry entry ) {
+        synchronized ( entry ) {
+            Integer count = null;
+            for ( int id = 0; id < entry.demand.length; id++ ) {
+                if ( entry.demand[id] > 0 ) {
+                    final Integer available = ledger.getAvailable( id );
+                    if ( available != null ) {
+                        final int makeable = Math.max( 0, available ) / entry.demand[id];
+                        count = count == null ? makeable : Math.min( count, makeable );
+                    }
+                }
+            }
+            entry.count = count;
+        }
+    }
+
+    /**
+     * A recipe's demand vector and current count
+     */
+    private static final class Entry {
+
+        /** Name of the recipe */
+        private final String     recipe;
+
+        /** Amount of each ingredient the recipe needs */
+        private final int[]      demand;
+
+        /** Drinks that can be made, or null if nothing limits it */
+        private volatile Integer count;
+
+        /**
+         * Creates an entry
+         *
+         * @param recipe
+         *            name of the recipe
+         * @param demand
+         *            amount of each ingredient the recipe needs
+         */
+        private Entry ( final String recipe, final int[] demand ) {
+            this.recipe = recipe;
+            this.demand = demand;
+        }
+    }
+
+}
@@ -1,5 +1,12 @@
 package edu.ncsu.csc.CoffeeMaker.services;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 import javax.transaction.Transactional;
 
 import org.springframework.beans.factory.annotation.Autowired;
@@ -12,7 +19,11 @@ import edu.ncsu.csc.CoffeeMaker.repositories.RecipeRepository;
 /**
  * The RecipeService is used to handle CRUD operations on the Recipe model. In
  * addition to all functionality from `Service`, we also have functionality for
- * retrieving a single Recipe by name.
+ * retrieving a single Recipe by name, and keep the RecipeAvailabilityIndex in
+ * step with the recipes that exist, once changes to them commit. Recipes can
+ * also be read from a cache, which is cleared of any recipe saved or deleted
+ * through this service once the change commits. A recipe read from the
+ * database while such a change commits is not left in the cache.
  *
  * @author Kai Presler-Marshall
  *
@@ -26,13 +37,62 @@ public class RecipeService extends Service<Recipe, Long> {
      * operations on Recipe model.
      */
     @Autowired
-    private RecipeRepository recipeRepository;
+    private RecipeRepository          recipeRepository;
+
+    /**
+     * Index of how many of each recipe can be made, told about every recipe
+     * that is saved or deleted once the change commits
+     */
+    @Autowired
+    private RecipeAvailabilityIndex   availabilityIndex;
+
+    /** Recipes read through findCachedByName, by name */
+    private final Map<String, Recipe> cache      = new ConcurrentHashMap<String, Recipe>();
+
+    /**
+     * Bumped before recipes are evicted from the cache, so a recipe read
+     * before an eviction is not cached after it
+     */
+    private final AtomicLong          generation = new AtomicLong();
 
     @Override
     protected JpaRepository<Recipe, Long> getRepository () {
         return recipeRepository;
     }
 
+    @Override
+    public void save ( final Recipe recipe ) {
+        super.save( recipe );
+        evict( recipe );
+        AfterCommit.run( "index recipe " + recipe.getName(), () -> availabilityIndex.recipeSaved( recipe ) );
+    }
+
+    @Override
+    public void saveAll ( final List<Recipe> recipes ) {
+        super.saveAll( recipes );
+        for ( final Recipe recipe : recipes ) {
+            evict( recipe );
+            AfterCommit.run( "index recipe " + recipe.getName(), () -> availabilityIndex.recipeSaved( recipe ) );
+        }
+    }
+
+    @Override
+    public void delete ( final Recipe recipe ) {
+        super.delete( recipe );
+        evict( recipe );
+        AfterCommit.run( "unindex recipe " + recipe.getName(), () -> availabilityIndex.recipeDeleted( recipe ) );
+    }
+
+    @Override
+    public void deleteAll () {
+        super.deleteAll();
+        AfterCommit.run( "clear recipe cache", () -> {
+            generation.incrementAndGet();
+            cache.clear();
+        } );
+        AfterCommit.run( "clear recipe index", availabilityIndex::clear );
+    }
+
     /**
      * Find a recipe with the provided name
      *
@@ -44,4 +104,64 @@ public class RecipeService extends Service<Recipe, Long> {
         return recipeRepository.findByName( name );
     }
 
+    /**
+     * Find a recipe with the provided name, from the cache if it has been read
+     * before. The recipe returned is shared, so it must not be changed.
+     *
+     * @param name
+     *            Name of the recipe to find
+     * @return found recipe, null if none
+     */
+    public Recipe findCachedByName ( final String name ) {
+        if ( name == null ) {
+            return null;
+        }
+        final Recipe cached = cache.get( name );
+        if ( cached != null ) {
+            return cached;
+        }
+        final long seen = generation.get();
+        final Recipe recipe = findByName( name );
+        if ( recipe != null ) {
+            cache.put( name, recipe );
+            if ( generation.get() != seen ) {
+                // may have been read before a change that has since committed
+                cache.remove( name, recipe );
+            }
+        }
+        return recipe;
+    }
+
+    /**
+     * Drops a recipe from the cache, under any name it was cached by, once the
+     * change to it commits
+     *
+     * @param recipe
+     *            the recipe saved or deleted
+     */
+    private void evict ( final Recipe recipe ) {
+        final String name = recipe.getName();
+        final Object id = recipe.getId();
+        AfterCommit.run( "evict recipe " + name, () -> {
+            generation.incrementAndGet();
+            cache.remove( name );
+            cache.values().removeIf( cached -> cached.getId().equals( id ) );
+        } );
+    }
+
+    /**
+     * Finds all recipes with the provided names in one query
+     *
+     * @param names
+     *            Names of the recipes to find
+     * @return found recipes keyed by name; names with no recipe are absent
+     */
+    public Map<String, Recipe> findByNames ( final Collection<String> names ) {
+        final Map<String, Recipe> found = new HashMap<String, Recipe>();
+        for ( final Recipe recipe : recipeRepository.findByNameIn( names ) ) {
+            found.put( recipe.getName(), recipe );
+        }
+        return found;
+    }
+
 }
@@ -0,0 +1,91 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+import edu.ncsu.csc.CoffeeMaker.repositories.OrderRepository;
+
+/**
+ * Gives orders placed before CustomerOrder stored a RecipeSnapshot a snapshot
+ * of their recipe as it is now, on startup. Their original price is not known
+ * any more, so this is the best that can be done. Orders are migrated in
+ * batches, each in its own transaction, like OrderTimestampMigration. Runs
+ * every startup but does nothing once every order has a snapshot.
+ *
+ * The RevenueLedger loads its total before this runs, when completed orders
+ * without a snapshot still count as earning nothing, so once each batch
+ * commits the prices its completed orders now carry are credited to it.
+ */
+@Component
+public class RecipeSnapshotMigration implements ApplicationRunner {
+
+    /** Orders migrated per transaction */
+    private static final int           BATCH_SIZE = 500;
+
+    /** OrderRepository, used to find and update the orders */
+    @Autowired
+    private OrderRepository            orderRepository;
+
+    /** Used to run each batch in its own transaction */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /** Credited with the revenue of completed orders given a price */
+    @Autowired
+    private RevenueLedger              revenueLedger;
+
+    /**
+     * Migrates every order that has no snapshot yet
+     *
+     * @param args
+     *            application arguments, unused
+     */
+    @Override
+    public void run ( final ApplicationArguments args ) {
+        final TransactionTemplate template = new TransactionTemplate( transactionManager );
+        int migrated = 0;
+        int batch;
+        do {
+            batch = template.execute( status -> migrateBatch() );
+            migrated += batch;
+        }
+        while ( batch == BATCH_SIZE );
+        if ( migrated > 0 ) {
+            System.out.println( "Stored the recipe snapshots of " + migrated + " orders" );
+        }
+    }
+
+    /**
+     * Migrates one batch of orders, and credits the revenue of the completed
+     * ones once it commits
+     *
+     * @return the number of orders migrated
+     */
+    private int migrateBatch () {
+        final List<Object[]> orders = orderRepository.findMissingRecipeSnapshots( PageRequest.of( 0, BATCH_SIZE ) );
+        long earned = 0;
+        for ( final Object[] order : orders ) {
+            // a recipe with no name would be found again every batch
+            final String name = order[2] == null ? "" : (String) order[2];
+            final Integer price = (Integer) order[3];
+            orderRepository.setRecipeSnapshot( (Long) order[0], (Long) order[1], name, price );
+            if ( price != null && RevenueLedger.EARNED.contains( (OrderEnum) order[4] ) ) {
+                earned += price;
+            }
+        }
+        if ( earned != 0 ) {
+            final long credited = earned;
+            AfterCommit.run( "credit revenue of migrated orders", () -> revenueLedger.credit( credited ) );
+        }
+        return orders.size();
+    }
+
+}
@@ -0,0 +1,236 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
+import edu.ncsu.csc.CoffeeMaker.models.Recipe;
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+
+/**
+ * Holds inventory for orders between the time they are placed and the time
+ * they are made. An order's ingredients are reserved when it is placed, so an
+ * order that can never be made is rejected up front instead of sitting in the
+ * queue. The reservation is committed (deducted from the Inventory) when the
+ * order is COMPLETED, and released when it is CANCELLED, deleted, or has been
+ * waiting in the queue for longer than the configured time-to-live.
+ *
+ * Reservations only live in memory, so they are only committed, released or
+ * paused once the order's transaction commits; a change that rolls back leaves
+ * them as they were. The deduction for a completed order then runs in a
+ * transaction of its own. After a restart, orders placed before it have their
+ * ingredients deducted when they are completed, if there are still enough.
+ */
+@Component
+public class ReservationService implements OrderTransitionListener {
+
+    /** InventoryService, which owns the stock being reserved */
+    @Autowired
+    private InventoryService               inventoryService;
+
+    /** How long an order may wait in the queue before its hold is released */
+    @Value ( "${coffeemaker.reservations.ttl-ms:1800000}" )
+    private long                           ttl;
+
+    /** Used to deduct ingredients after an order's transaction commits */
+    @Autowired
+    private PlatformTransactionManager     transactionManager;
+
+    /** Current reservations, keyed by order id */
+    private final Map<Long, Reservation>   reservations = new ConcurrentHashMap<Long, Reservation>();
+
+    /** Runs each deduction in a new transaction */
+    private TransactionTemplate            deductions;
+
+    /**
+     * Sets up the transaction deductions run in. It has to be a new one, since
+     * the order's own transaction has already committed by then.
+     */
+    @PostConstruct
+    public void start () {
+        deductions = new TransactionTemplate( transactionManager );
+        deductions.setPropagationBehavior( TransactionDefinition.PROPAGATION_REQUIRES_NEW );
+    }
+
+    /**
+     * Reserves the ingredients for a recipe that is about to be ordered. The
+     * reservation must then be handed to hold() once the order has an id, or
+     * to release() if the order is not placed after all.
+     *
+     * @param recipe
+     *            the recipe being ordered
+     * @return the reservation, or null if there is not enough inventory
+     */
+    public Reservation reserve ( final Recipe recipe ) {
+        final int[] reserved = inventoryService.reserveIngredients( recipe );
+        return reserved == null ? null : new Reservation( reserved, System.currentTimeMillis() + ttl );
+    }
+
+    /**
+     * Attaches a reservation to the order it was made for
+     *
+     * @param orderId
+     *            id of the placed order
+     * @param reservation
+     *            the reservation returned by reserve()
+     */
+    public void hold ( final Long orderId, final Reservation reservation ) {
+        reservations.put( orderId, reservation );
+    }
+
+    /**
+     * Releases a reservation that was never attached to an order
+     *
+     * @param reservation
+     *            the reservation returned by reserve()
+     */
+    public void release ( final Reservation reservation ) {
+        inventoryService.releaseReservation( reservation.ingredients );
+    }
+
+    /**
+     * Checks whether an order currently has ingredients held for it
+     *
+     * @param orderId
+     *            id of the order
+     * @return true if the order has a live reservation
+     */
+    public boolean isHeld ( final Long orderId ) {
+        return reservations.containsKey( orderId );
+    }
+
+    /**
+     * Commits, releases or pauses the order's reservation according to the
+     * state it entered, once the change commits
+     *
+     * @param order
+     *            the order
+     * @param transition
+     *            the transition it made
+     */
+    @Override
+    public void orderTransitioned ( final CustomerOrder order, final OrderTransition transition ) {
+        final Long id = order.getId();
+        if ( transition.getTo() == OrderEnum.COMPLETED ) {
+            // read while the order's session is open; only needed if nothing
+            // was reserved
+            final Recipe recipe = reservations.containsKey( id ) ? null : order.getRecipe();
+            final int[] demand = recipe == null ? null : recipe.getDemand().clone();
+            AfterCommit.run( "deduct ingredients for order " + id, () -> deductions.execute( status -> {
+                complete( id, demand );
+                return null;
+            } ) );
+        }
+        else if ( transition.getTo() == OrderEnum.CANCELLED ) {
+            AfterCommit.run( "release ingredients for order " + id, () -> drop( id ) );
+        }
+        else {
+            // the time-to-live only applies while the order is waiting
+            final boolean waiting = transition.getTo() == OrderEnum.IN_QUEUE;
+            AfterCommit.run( "hold ingredients for order " + id, () -> {
+                final Reservation reservation = reservations.get( id );
+                if ( reservation != null ) {
+                    reservation.expiresAt = waiting ? System.currentTimeMillis() + ttl : Long.MAX_VALUE;
+                }
+            } );
+        }
+    }
+
+    /**
+     * Releases the reservation of a deleted order, once the deletion commits
+     *
+     * @param order
+     *            the deleted order
+     */
+    @Override
+    public void orderDeleted ( final CustomerOrder order ) {
+        final Long id = order.getId();
+        AfterCommit.run( "release ingredients for order " + id, () -> drop( id ) );
+    }
+
+    /**
+     * Releases every reservation whose order has been waiting for longer than
+     * the time-to-live
+     */
+    @Scheduled ( fixedDelayString = "${coffeemaker.reservations.sweep-ms:60000}" )
+    public void releaseExpired () {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<Long, Reservation>> it = reservations.entrySet().iterator();
+        while ( it.hasNext() ) {
+            final Map.Entry<Long, Reservation> entry = it.next();
+            if ( entry.getValue().expiresAt <= now && reservations.remove( entry.getKey(), entry.getValue() ) ) {
+                inventoryService.releaseReservation( entry.getValue().ingredients );
+            }
+        }
+    }
+
+    /**
+     * Deducts the ingredients for a completed order: its reservation if it has
+     * one, otherwise what its recipe needs
+     *
+     * @param orderId
+     *            id of the order
+     * @param demand
+     *            what the recipe needs, indexed by IngredientDictionary id, or
+     *            null if it was not read
+     */
+    private void complete ( final Long orderId, final int[] demand ) {
+        final Reservation reservation = reservations.remove( orderId );
+        final boolean deducted = reservation != null ? inventoryService.commitReservation( reservation.ingredients )
+                : demand != null && inventoryService.useIngredients( demand );
+        if ( !deducted ) {
+            System.out.println( "Order " + orderId + " completed without enough inventory to deduct" );
+        }
+    }
+
+    /**
+     * Releases the reservation for an order, if it has one
+     *
+     * @param orderId
+     *            id of the order
+     */
+    private void drop ( final Long orderId ) {
+        final Reservation reservation = reservations.remove( orderId );
+        if ( reservation != null ) {
+            inventoryService.releaseReservation( reservation.ingredients );
+        }
+    }
+
+    /**
+     * Ingredients held for a single order
+     */
+    public static final class Reservation {
+
+        /** Amount of each ingredient held, indexed by IngredientDictionary id */
+        private final int[]   ingredients;
+
+        /** When the hold lapses, in epoch milliseconds */
+        private volatile long expiresAt;
+
+        /**
+         * Creates a reservation
+         *
+         * @param ingredients
+         *            the amounts held
+         * @param expiresAt
+         *            when the hold lapses
+         */
+        private Reservation ( final int[] ingredients, final long expiresAt ) {
+            this.ingredients = ingredients;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
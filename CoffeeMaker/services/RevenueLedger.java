@@ -0,0 +1,162 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+import edu.ncsu.csc.CoffeeMaker.repositories.OrderRepository;
+
+/**
+ * Keeps a running total of revenue, so reading it does not load any orders. An
+ * order earns the price it was placed at when it moves into COMPLETED; picking
+ * it up afterwards earns nothing more. Deleting an order that had earned
+ * revenue takes its price back off. Changes are applied once the transaction
+ * that made them commits.
+ *
+ * The total is loaded from the orders table and the OrderArchive on startup,
+ * and reconcile() periodically recomputes it from there to report any drift.
+ * RecipeSnapshotMigration credits the revenue of old orders it gives a price
+ * after the total is loaded.
+ * Orders keep the price they were placed at, so editing a recipe does not
+ * change the revenue of orders already placed. Archiving an order moves its
+ * revenue from one to the other, so it does not change the total.
+ */
+@Component
+public class RevenueLedger implements OrderTransitionListener {
+
+    /** States of orders that have earned revenue */
+    public static final Set<OrderEnum> EARNED    = EnumSet.of( OrderEnum.COMPLETED, OrderEnum.PICKED_UP );
+
+    /** Used to load and reconcile the total */
+    @Autowired
+    private OrderRepository            orderRepository;
+
+    /** Holds the revenue of orders no longer in the orders table */
+    @Autowired
+    private OrderArchive               archive;
+
+    /** The running total */
+    private final AtomicLong           revenue   = new AtomicLong();
+
+    /** Drift found by the previous reconciliation, not yet corrected */
+    private long                       lastDrift;
+
+    /**
+     * Loads the total from the orders table and the archive
+     */
+    @PostConstruct
+    public void load () {
+        revenue.set( recompute() );
+    }
+
+    /**
+     * Gets the total revenue
+     *
+     * @return revenue from every completed order
+     */
+    public long getRevenue () {
+        return revenue.get();
+    }
+
+    /**
+     * Adds revenue that was earned before it could be counted, such as that
+     * of orders that had no price when the total was loaded
+     *
+     * @param amount
+     *            the revenue to add
+     */
+    public void credit ( final long amount ) {
+        revenue.addAndGet( amount );
+    }
+
+    /**
+     * Credits an order's price when it is completed
+     *
+     * @param order
+     *            the order
+     * @param transition
+     *            what happened to it
+     */
+    @Override
+    public void orderTransitioned ( final CustomerOrder order, final OrderTransition transition ) {
+        if ( transition.getTo() == OrderEnum.COMPLETED ) {
+            final int price = priceOf( order );
+            AfterCommit.run( "credit revenue for order " + order.getId(), () -> revenue.addAndGet( price ) );
+        }
+    }
+
+    /**
+     * Debits a deleted order's price if it had been credited
+     *
+     * @param order
+     *            the deleted order
+     */
+    @Override
+    public void orderDeleted ( final CustomerOrder order ) {
+        if ( EARNED.contains( order.getCurrentState() ) ) {
+            final int price = priceOf( order );
+            AfterCommit.run( "debit revenue for order " + order.getId(), () -> revenue.addAndGet( -price ) );
+        }
+    }
+
+    /**
+     * Recomputes the total from the orders and the archive and reports how far
+     * the running total has drifted from it. A credit can be committed but not
+     * yet applied while the sum is read, so the drift is only corrected once
+     * two reconciliations in a row find the same amount.
+     *
+     * @return the drift found: the recomputed total minus the running total
+     */
+    @Scheduled ( fixedDelayString = "${coffeemaker.revenue.reconcile-ms:600000}",
+            initialDelayString = "${coffeemaker.revenue.reconcile-ms:600000}" )
+    public synchronized long reconcile () {
+        final long before = revenue.get();
+        final long actual = recompute();
+        if ( revenue.get() != before ) {
+            // the total moved while the sum was read; try again next time
+            return 0;
+        }
+        final long drift = actual - before;
+        if ( drift != 0 ) {
+            System.out.println( "Revenue ledger is " + before + " but orders add up to " + actual );
+            if ( drift == lastDrift ) {
+                revenue.addAndGet( drift );
+                System.out.println( "Revenue ledger corrected by " + drift );
+                lastDrift = 0;
+                return drift;
+            }
+        }
+        lastDrift = drift;
+        return drift;
+    }
+
+    /**
+     * Adds up the revenue of every order, live or archived
+     *
+     * @return the total
+     */
+    private long recompute () {
+        return orderRepository.sumPriceByStatusIn( EARNED ) + archive.getArchivedRevenue();
+    }
+
+    /**
+     * Gets the price an order earns
+     *
+     * @param order
+     *            the order
+     * @return the price it was placed at, or 0 if it has no recipe
+     */
+    private static int priceOf ( final CustomerOrder order ) {
+        return order.getPrice() == null ? 0 : order.getPrice();
+    }
+
+}
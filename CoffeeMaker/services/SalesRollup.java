@@ -0,0 +1,404 @@
+package edu.ncsu.csc.CoffeeMaker.services;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import edu.ncsu.csc.CoffeeMaker.models.CustomerOrder;
+import edu.ncsu.csc.CoffeeMaker.models.OrderTransition;
+import edu.ncsu.csc.CoffeeMaker.models.SalesBucket;
+import edu.ncsu.csc.CoffeeMaker.models.enums.OrderEnum;
+import edu.ncsu.csc.CoffeeMaker.models.enums.SalesGranularity;
+import edu.ncsu.csc.CoffeeMaker.repositories.SalesBucketRepository;
+
+/**
+ * Keeps pre-aggregated sales figures: for each time bucket, recipe and state,
+ * how many orders entered that state and the revenue they earned. Revenue is
+ * earned when an order enters COMPLETED. Figures are never taken back, so
+ * deleting an order does not change past sales.
+ *
+ * Each transition is added to an in-memory minute bucket once it commits, and
+ * the minute buckets are written to the database every few seconds. Old minute
+ * buckets are later compacted into hours, and old hours into days, so a report
+ * reads at most a few rows per recipe and state for each bucket it returns,
+ * however many orders there were.
+ */
+@Component
+public class SalesRollup implements OrderTransitionListener {
+
+    /** Stores the buckets */
+    @Autowired
+    private SalesBucketRepository      bucketRepository;
+
+    /** Used to write each flush and compaction in its own transaction */
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    /** How long minute buckets are kept before they are compacted into hours */
+    @Value ( "${coffeemaker.reports.minute-retention-hours:2}" )
+    private int                        minuteRetentionHours;
+
+    /** How long hour buckets are kept before they are compacted into days */
+    @Value ( "${coffeemaker.reports.hour-retention-days:14}" )
+    private int                        hourRetentionDays;
+
+    /** Minute buckets not yet written, guarded by itself */
+    private final Map<Cell, long[]>    pending = new HashMap<Cell, long[]>();
+
+    /**
+     * Counts a transition in the minute it happened, once it commits
+     *
+     * @param order
+     *            the order
+     * @param transition
+     *            what happened to it
+     */
+    @Override
+    public void orderTransitioned ( final CustomerOrder order, final OrderTransition transition ) {
+        if ( order.getRecipeName() == null ) {
+            return;
+        }
+        final Cell cell = new Cell( SalesGranularity.MINUTE.floor( transition.getTimestamp() ),
+                order.getRecipeName(), transition.getTo() );
+        final Integer price = order.getPrice();
+        final long revenue = transition.getTo() == OrderEnum.COMPLETED && price != null ? price : 0;
+        AfterCommit.run( "roll up sales for order " + order.getId(), () -> add( cell, 1, revenue ) );
+    }
+
+    /**
+     * Writes the pending minute buckets to the database. If that fails they are
+     * kept and written next time.
+     */
+    @Scheduled ( fixedDelayString = "${coffeemaker.reports.flush-ms:5000}" )
+    @PreDestroy
+    public synchronized void flush () {
+        final Map<Cell, long[]> batch;
+        synchronized ( pending ) {
+            if ( pending.isEmpty() ) {
+                return;
+            }
+            batch = new HashMap<Cell, long[]>( pending );
+            pending.clear();
+        }
+        try {
+            new TransactionTemplate( transactionManager ).execute( status -> {
+                for ( final Map.Entry<Cell, long[]> entry : batch.entrySet() ) {
+                    write( SalesGranularity.MINUTE, entry.getKey(), entry.getValue() );
+                }
+                return null;
+            } );
+        }
+        catch ( final RuntimeException e ) {
+            System.out.println( "Could not write sales rollup: " + e.getMessage() );
+            for ( final Map.Entry<Cell, long[]> entry : batch.entrySet() ) {
+                add( entry.getKey(), entry.getValue()[0], entry.getValue()[1] );
+            }
+        }
+    }
+
+    /**
+     * Compacts minute buckets older than the minute retention into hours, and
+     * hour buckets older than the hour retention into days
+     */
+    @Scheduled ( fixedDelayString = "${coffeemaker.reports.compact-ms:3600000}" )
+    public synchronized void compact () {
+        final long now = System.currentTimeMillis();
+        final int minutes = fold( SalesGranularity.MINUTE, SalesGranularity.HOUR,
+                now - Duration.ofHours( minuteRetentionHours ).toMillis() );
+        final int hours = fold( SalesGranularity.HOUR, SalesGranularity.DAY,
+                now - Duration.ofDays( hourRetentionDays ).toMillis() );
+        if ( minutes > 0 || hours > 0 ) {
+            System.out.println( "Compacted " + minutes + " minute and " + hours + " hour sales buckets" );
+        }
+    }
+
+    /**
+     * Reports sales in buckets of the given size. Figures that have already
+     * been compacted into buckets larger than requested are reported in the
+     * bucket their larger bucket starts in.
+     *
+     * @param granularity
+     *            size of the buckets to report
+     * @param from
+     *            start of the report; rounded down to a bucket boundary
+     * @param to
+     *            end of the report, exclusive
+     * @param recipe
+     *            only this recipe, or null for all
+     * @return the non-empty buckets, in order of start, recipe and state
+     */
+    public synchronized List<Sales> report ( final SalesGranularity granularity, final Instant from,
+            final Instant to, final String recipe ) {
+        final long start = granularity.floor( from.toEpochMilli() );
+        final long end = to.toEpochMilli();
+        final Map<Cell, long[]> totals = new TreeMap<Cell, long[]>();
+        for ( final SalesBucket bucket : bucketRepository.findStartingBetween( start, end, recipe ) ) {
+            total( totals, granularity, bucket.getBucketStart(), bucket.getRecipe(), bucket.getStatus(),
+                    bucket.getOrders(), bucket.getRevenue() );
+        }
+        synchronized ( pending ) {
+            for ( final Map.Entry<Cell, long[]> entry : pending.entrySet() ) {
+                final Cell cell = entry.getKey();
+                if ( cell.start >= start && cell.start < end && ( recipe == null || recipe.equals( cell.recipe ) ) ) {
+                    total( totals, granularity, cell.start, cell.recipe, cell.status, entry.getValue()[0],
+                            entry.getValue()[1] );
+                }
+            }
+        }
+        final List<Sales> report = new ArrayList<Sales>( totals.size() );
+        for ( final Map.Entry<Cell, long[]> entry : totals.entrySet() ) {
+            report.add( new Sales( entry.getKey(), entry.getValue() ) );
+        }
+        return report;
+    }
+
+    /**
+     * Adds to a pending minute bucket
+     *
+     * @param cell
+     *            the bucket
+     * @param orders
+     *            number of orders to add
+     * @param revenue
+     *            revenue to add
+     */
+    private void add ( final Cell cell, final long orders, final long revenue ) {
+        synchronized ( pending ) {
+            final long[] counts = pending.computeIfAbsent( cell, c -> new long[2] );
+            counts[0] += orders;
+            counts[1] += revenue;
+        }
+    }
+
+    /**
+     * Adds figures to a report, in the bucket they fall in
+     *
+     * @param totals
+     *            the report so far
+     * @param granularity
+     *            size of the report's buckets
+     * @param start
+     *            start of the stored bucket
+     * @param recipe
+     *            name of the recipe
+     * @param status
+     *            state the orders entered
+     * @param orders
+     *            number of orders
+     * @param revenue
+     *            revenue earned
+     */
+    private static void total ( final Map<Cell, long[]> totals, final SalesGranularity granularity,
+            final long start, final String recipe, final OrderEnum status, final long orders,
+            final long revenue ) {
+        final long[] counts = totals.computeIfAbsent( new Cell( granularity.floor( start ), recipe, status ),
+                c -> new long[2] );
+        counts[0] += orders;
+        counts[1] += revenue;
+    }
+
+    /**
+     * Compacts the buckets of one size that end before a time into buckets of
+     * the next size up, in one transaction
+     *
+     * @param from
+     *            size of the buckets to compact
+     * @param to
+     *            size to compact them into
+     * @param before
+     *            compact buckets older than this; rounded down to a boundary of
+     *            the larger size, so a larger bucket is only ever written once
+     * @return the number of buckets compacted
+     */
+    private int fold ( final SalesGranularity from, final SalesGranularity to, final long before ) {
+        final long cutoff = to.floor( before );
+        return new TransactionTemplate( transactionManager ).execute( status -> {
+            final List<SalesBucket> buckets = bucketRepository.findByGranularityAndBucketStartLessThan( from,
+                    cutoff );
+            if ( buckets.isEmpty() ) {
+                return 0;
+            }
+            final Map<Cell, long[]> folded = new HashMap<Cell, long[]>();
+            for ( final SalesBucket bucket : buckets ) {
+                total( folded, to, bucket.getBucketStart(), bucket.getRecipe(), bucket.getStatus(),
+                        bucket.getOrders(), bucket.getRevenue() );
+            }
+            for ( final Map.Entry<Cell, long[]> entry : folded.entrySet() ) {
+                write( to, entry.getKey(), entry.getValue() );
+            }
+            bucketRepository.deleteOlderThan( from, cutoff );
+            return buckets.size();
+        } );
+    }
+
+    /**
+     * Adds to a stored bucket, creating it if it does not exist. Only called
+     * while holding this object's lock, so two writers never create the same
+     * bucket.
+     *
+     * @param granularity
+     *            size of the bucket
+     * @param cell
+     *            the bucket
+     * @param counts
+     *            number of orders and revenue to add
+     */
+    private void write ( final SalesGranularity granularity, final Cell cell, final long[] counts ) {
+        if ( bucketRepository.increment( granularity, cell.start, cell.recipe, cell.status, counts[0],
+                counts[1] ) == 0 ) {
+            bucketRepository.save(
+                    new SalesBucket( granularity, cell.start, cell.recipe, cell.status, counts[0], counts[1] ) );
+        }
+    }
+
+    /**
+     * The key of a bucket: its start, recipe and state. Ordered for reports.
+     */
+    private static final class Cell implements Comparable<Cell> {
+
+        /** Start of the bucket, in epoch milliseconds */
+        private final long      start;
+
+        /** Name of the recipe */
+        private final String    recipe;
+
+        /** State the orders entered */
+        private final OrderEnum status;
+
+        /**
+         * Creates a key
+         *
+         * @param start
+         *            start of the bucket
+         * @param recipe
+         *            name of the recipe
+         * @param status
+         *            state the orders entered
+         */
+        private Cell ( final long start, final String recipe, final OrderEnum status ) {
+            this.start = start;
+            this.recipe = recipe;
+            this.status = status;
+        }
+
+        @Override
+        public int compareTo ( final Cell other ) {
+            if ( start != other.start ) {
+                return Long.compare( start, other.start );
+            }
+            final int byRecipe = recipe.compareTo( other.recipe );
+            return byRecipe != 0 ? byRecipe : status.compareTo( other.status );
+        }
+
+        @Override
+        public boolean equals ( final Object obj ) {
+            if ( !( obj instanceof Cell ) ) {
+                return false;
+            }
+            final Cell other = (Cell) obj;
+            return start == other.start && recipe.equals( other.recipe ) && status == other.status;
+        }
+
+        @Override
+        public int hashCode () {
+            return Objects.hash( start, recipe, status );
+        }
+    }
+
+    /**
+     * One bucket of a sales report
+     */
+    public static final class Sales {
+
+        /** Start of the bucket, as an ISO-8601 instant */
+        private final String start;
+
+        /** Name of the recipe */
+        private final String recipe;
+
+        /** State the orders entered */
+        private final String status;
+
+        /** Number of orders */
+        private final long   orders;
+
+        /** Revenue earned */
+        private final long   revenue;
+
+        /**
+         * Creates a report bucket
+         *
+         * @param cell
+         *            the bucket's key
+         * @param counts
+         *            number of orders and revenue
+         */
+        private Sales ( final Cell cell, final long[] counts ) {
+            this.start = Instant.ofEpochMilli( cell.start ).toString();
+            this.recipe = cell.recipe;
+            this.status = cell.status.name();
+            this.orders = counts[0];
+            this.revenue = counts[1];
+        }
+
+        /**
+         * Gets the start of the bucket
+         *
+         * @return an ISO-8601 instant
+         */
+        public String getStart () {
+            return start;
+        }
+
+        /**
+         * Gets the name of the recipe
+         *
+         * @return the recipe name
+         */
+        public String getRecipe () {
+            return recipe;
+        }
+
+        /**
+         * Gets the state the orders entered
+         *
+         * @return the state
+         */
+        public String getStatus () {
+            return status;
+        }
+
+        /**
+         * Gets the number of orders
+         *
+         * @return the count
+         */
+        public long getOrders () {
+            return orders;
+        }
+
+        /**
+         * Gets the revenue earned
+         *
+         * @return the revenue
+         */
+        public long getRevenue () {
+            return revenue;
+        }
+    }
+
+}
@@ -9,10 +9,16 @@ import edu.ncsu.csc.CoffeeMaker.models.user.User;
 import edu.ncsu.csc.CoffeeMaker.repositories.UserRepository;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
- * The UserService is used to handle CRUD operations on the User model.
+ * The UserService is used to handle CRUD operations on the User model. It also
+ * remembers the id behind each username it has looked up, forgetting it once
+ * the user's deletion commits, so checking a user exists or finding their id
+ * need not query the database each time.
  *
  * @author Sammy Shea (sgshea)
  */
@@ -25,7 +31,16 @@ public class UserService extends Service<User, Long> {
      * User model.
      */
     @Autowired
-    private UserRepository userRepository;
+    private UserRepository          userRepository;
+
+    /** Ids of the users known to exist, by username */
+    private final Map<String, Long> known      = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Bumped whenever users are deleted, so a lookup that raced with a
+     * deletion is not remembered
+     */
+    private final AtomicLong        generation = new AtomicLong();
 
     /**
      * Returns the user repository
@@ -48,6 +63,67 @@ public class UserService extends Service<User, Long> {
         return userRepository.findByName( name );
     }
 
+    /**
+     * Checks a user with the provided name exists, only asking the database
+     * the first time
+     *
+     * @param name
+     *            Name of the user
+     * @return true if they exist
+     */
+    public boolean exists ( final String name ) {
+        return idOf( name ) != null;
+    }
+
+    /**
+     * Finds the id of the user with the provided name, only asking the
+     * database the first time, or again after the user is deleted
+     *
+     * @param name
+     *            Name of the user, or null
+     * @return the user's id, null if there is no such user
+     */
+    public Long idOf ( final String name ) {
+        if ( name == null ) {
+            return null;
+        }
+        final Long cached = known.get( name );
+        if ( cached != null ) {
+            return cached;
+        }
+        final long seen = generation.get();
+        final User user = findByName( name );
+        if ( user == null || user.getId() == null ) {
+            return null;
+        }
+        final Long id = (Long) user.getId();
+        known.put( name, id );
+        if ( generation.get() != seen ) {
+            // the user may have been deleted since it was read
+            known.remove( name, id );
+        }
+        return id;
+    }
+
+    @Override
+    public void delete ( final User user ) {
+        super.delete( user );
+        final String name = user.getUsername();
+        AfterCommit.run( "forget user " + name, () -> {
+            generation.incrementAndGet();
+            known.remove( name );
+        } );
+    }
+
+    @Override
+    public void deleteAll () {
+        super.deleteAll();
+        AfterCommit.run( "forget users", () -> {
+            generation.incrementAndGet();
+            known.clear();
+        } );
+    }
+
     /**
      * Finds all users with the provided role
      * @param role
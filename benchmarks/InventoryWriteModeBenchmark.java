@@ -0,0 +1,187 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.ncsu.csc.CoffeeMaker.models.Ingredient;
+import edu.ncsu.csc.CoffeeMaker.models.IngredientDictionary;
+import edu.ncsu.csc.CoffeeMaker.models.Inventory;
+import edu.ncsu.csc.CoffeeMaker.models.Recipe;
+import edu.ncsu.csc.CoffeeMaker.services.InventoryLedger;
+import edu.ncsu.csc.CoffeeMaker.services.InventoryWriteBehind;
+
+/**
+ * Compares the two ways inventory deductions can be written, synchronously
+ * and through InventoryWriteBehind, against a simulated database: every update
+ * statement and every commit costs a fixed amount of time, and updates to the
+ * Inventory rows are serialized as they would be by row locks.
+ *
+ * Only the InventoryLedger and InventoryWriteBehind are exercised. Neither
+ * InventoryService, Hibernate nor a real database is involved, so the figures
+ * it prints show how much batching saves for the costs given, not how many
+ * brews per second the application can make. It is a standalone simulation,
+ * kept out of the application sources and so in no package: compile it with
+ * the application's classes on the class path and run it as a Java
+ * application. Optional arguments: threads, seconds, microseconds per
+ * statement, microseconds per commit, flush interval in ms.
+ */
+public class InventoryWriteModeBenchmark {
+
+    /** Stands in for the row locks on the Inventory's Ingredient rows */
+    private static final Object DATABASE = new Object();
+
+    /** Cost of one update statement, in nanoseconds */
+    private static long         statementNanos;
+
+    /** Cost of one commit, in nanoseconds */
+    private static long         commitNanos;
+
+    /**
+     * Runs the benchmark
+     *
+     * @param args
+     *            threads, seconds, statement micros, commit micros, flush ms
+     * @throws InterruptedException
+     *             if interrupted while waiting for the workers
+     */
+    public static void main ( final String[] args ) throws InterruptedException {
+        final int threads = args.length > 0 ? Integer.parseInt( args[0] ) : 8;
+        final int seconds = args.length > 1 ? Integer.parseInt( args[1] ) : 5;
+        statementNanos = TimeUnit.MICROSECONDS.toNanos( args.length > 2 ? Long.parseLong( args[2] ) : 100 );
+        commitNanos = TimeUnit.MICROSECONDS.toNanos( args.length > 3 ? Long.parseLong( args[3] ) : 500 );
+        final long flushMillis = args.length > 4 ? Long.parseLong( args[4] ) : 200;
+
+        final Recipe latte = new Recipe( "Latte", new ArrayList<Ingredient>(), 5 );
+        latte.addIngredient( new Ingredient( "Coffee", 1 ) );
+        latte.addIngredient( new Ingredient( "Milk", 2 ) );
+        latte.addIngredient( new Ingredient( "Sugar", 1 ) );
+
+        final double sync = run( threads, seconds, latte, null, flushMillis );
+        final InventoryWriteBehind writeBehind = new InventoryWriteBehind( InventoryWriteModeBenchmark::transaction,
+                500 );
+        final double behind = run( threads, seconds, latte, writeBehind, flushMillis );
+
+        System.out.printf( "threads=%d statement=%dus commit=%dus%n", threads,
+                TimeUnit.NANOSECONDS.toMicros( statementNanos ), TimeUnit.NANOSECONDS.toMicros( commitNanos ) );
+        System.out.printf( "synchronous:  %,.0f simulated brews/sec%n", sync );
+        System.out.printf( "write-behind: %,.0f simulated brews/sec (flush every %d ms)%n", behind, flushMillis );
+    }
+
+    /**
+     * Brews the recipe from several threads for a fixed time
+     *
+     * @param threads
+     *            number of brewing threads
+     * @param seconds
+     *            how long to brew for
+     * @param recipe
+     *            the recipe to brew
+     * @param writeBehind
+     *            the write-behind buffer, or null to write synchronously
+     * @param flushMillis
+     *            how often the write-behind buffer is flushed
+     * @return simulated brews per second
+     * @throws InterruptedException
+     *             if interrupted while waiting for the workers
+     */
+    private static double run ( final int threads, final int seconds, final Recipe recipe,
+            final InventoryWriteBehind writeBehind, final long flushMillis ) throws InterruptedException {
+        final InventoryLedger ledger = new InventoryLedger();
+        final List<Ingredient> stock = new ArrayList<Ingredient>();
+        for ( final Ingredient ing : recipe.getIngredients() ) {
+            stock.add( new Ingredient( ing.getName(), Integer.MAX_VALUE / 2 ) );
+        }
+        ledger.load( new Inventory( stock ) );
+        final int[] demand = recipe.getDemand();
+        // the benchmark has no database rows, so use the dictionary ids
+        final Map<Long, Integer> perBrew = new HashMap<Long, Integer>();
+        for ( final Ingredient ing : recipe.getIngredients() ) {
+            perBrew.put( (long) IngredientDictionary.lookup( ing.getName() ), ing.getAmount() );
+        }
+
+        final AtomicBoolean running = new AtomicBoolean( true );
+        final AtomicLong brews = new AtomicLong();
+        final List<Thread> workers = new ArrayList<Thread>();
+        for ( int t = 0; t < threads; t++ ) {
+            workers.add( new Thread( () -> {
+                while ( running.get() ) {
+                    if ( ledger.tryDeduct( demand ) ) {
+                        if ( writeBehind == null ) {
+                            transaction( perBrew );
+                        }
+                        else {
+                            for ( final Map.Entry<Long, Integer> delta : perBrew.entrySet() ) {
+                                writeBehind.record( delta.getKey(), delta.getValue() );
+                            }
+                        }
+                        brews.incrementAndGet();
+                    }
+                }
+            } ) );
+        }
+        final Thread flusher = new Thread( () -> {
+            while ( running.get() && writeBehind != null ) {
+                sleep( flushMillis );
+                writeBehind.flush();
+            }
+        } );
+
+        final long start = System.nanoTime();
+        workers.forEach( Thread::start );
+        flusher.start();
+        Thread.sleep( TimeUnit.SECONDS.toMillis( seconds ) );
+        running.set( false );
+        for ( final Thread worker : workers ) {
+            worker.join();
+        }
+        flusher.join();
+        if ( writeBehind != null ) {
+            writeBehind.flush();
+        }
+        return brews.get() / ( ( System.nanoTime() - start ) / 1e9 );
+    }
+
+    /**
+     * Simulates a transaction that runs one update per delta and commits
+     *
+     * @param deltas
+     *            the updates to run
+     */
+    private static void transaction ( final Map<Long, Integer> deltas ) {
+        synchronized ( DATABASE ) {
+            spin( statementNanos * deltas.size() + commitNanos );
+        }
+    }
+
+    /**
+     * Busy-waits, standing in for database work
+     *
+     * @param nanos
+     *            how long to wait
+     */
+    private static void spin ( final long nanos ) {
+        final long end = System.nanoTime() + nanos;
+        while ( System.nanoTime() < end ) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Sleeps, ignoring interrupts
+     *
+     * @param millis
+     *            how long to sleep
+     */
+    private static void sleep ( final long millis ) {
+        try {
+            Thread.sleep( millis );
+        }
+        catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}